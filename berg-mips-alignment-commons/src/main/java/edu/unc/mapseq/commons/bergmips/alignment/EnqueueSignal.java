@@ -0,0 +1,11 @@
+package edu.unc.mapseq.commons.bergmips.alignment;
+
+/**
+ * Published by the executor bundle as an OSGi service. The messaging bundle calls it once a new WorkflowRunAttempt is persisted, so the
+ * attempt is dequeued right away instead of on the next poll.
+ */
+public interface EnqueueSignal {
+
+    public void enqueued(Long workflowRunAttemptId);
+
+}
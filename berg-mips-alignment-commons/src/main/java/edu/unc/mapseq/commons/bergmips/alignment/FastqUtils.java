@@ -0,0 +1,28 @@
+package edu.unc.mapseq.commons.bergmips.alignment;
+
+/**
+ * FASTQ helpers shared by the submit side preflight and the compute node modules, so both agree on when two mates belong together.
+ */
+public final class FastqUtils {
+
+    private FastqUtils() {
+        super();
+    }
+
+    /**
+     * The read name from a record header: without the leading '@', cut at the first whitespace (the Casava 1.8 comment), and without an
+     * old style /1 or /2 mate suffix.
+     */
+    public static String getReadName(String header) {
+        int start = header.startsWith("@") ? 1 : 0;
+        int end = start;
+        while (end < header.length() && !Character.isWhitespace(header.charAt(end))) {
+            end++;
+        }
+        if (end - start > 2 && header.charAt(end - 2) == '/' && (header.charAt(end - 1) == '1' || header.charAt(end - 1) == '2')) {
+            end -= 2;
+        }
+        return header.substring(start, end);
+    }
+
+}
@@ -0,0 +1,223 @@
+package edu.unc.mapseq.commons.bergmips.alignment;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stages reference files (fasta, BWA index, interval lists) to node-local scratch, once per node. The cache directory is named by a
+ * checksum of the file contents. One job at a time populates it in a private temporary directory, verifies it, and renames it into
+ * place, so concurrent jobs on the same node either see a complete copy or wait for one. Nothing is evicted: each new reference build
+ * adds a directory under the cache root, so the workflow leaves caching off unless referenceCacheDirectory is configured.
+ */
+public class ReferenceCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(ReferenceCache.class);
+
+    public static final String COMPLETE_MARKER = ".complete";
+
+    /**
+     * The files bwa index writes next to the fasta, which bwa mem loads into memory.
+     */
+    public static final List<String> BWA_INDEX_EXTENSIONS = Collections
+            .unmodifiableList(Arrays.asList(".amb", ".ann", ".bwt", ".pac", ".sa"));
+
+    public static final String FASTA_INDEX_EXTENSION = ".fai";
+
+    private static final Pattern ENVIRONMENT_VARIABLE_PATTERN = Pattern.compile("\\$\\{?([A-Za-z_][A-Za-z0-9_]*)\\}?");
+
+    private static final Map<String, String> checksumCache = new ConcurrentHashMap<String, String>();
+
+    private static final Object stageLock = new Object();
+
+    private ReferenceCache() {
+        super();
+    }
+
+    /**
+     * Expands $VARIABLE references, as used in the blueprint defaults, from the current environment.
+     */
+    public static String expand(String path) {
+        Matcher matcher = ENVIRONMENT_VARIABLE_PATTERN.matcher(path);
+        StringBuffer sb = new StringBuffer();
+        while (matcher.find()) {
+            String value = System.getenv(matcher.group(1));
+            matcher.appendReplacement(sb, Matcher.quoteReplacement(value != null ? value : matcher.group()));
+        }
+        matcher.appendTail(sb);
+        return sb.toString();
+    }
+
+    /**
+     * The fasta plus whichever of its BWA and samtools index files exist next to it.
+     */
+    public static List<File> getReferenceFiles(File referenceSequence) {
+        List<File> ret = new ArrayList<File>();
+        ret.add(referenceSequence);
+        List<String> extensions = new ArrayList<String>(BWA_INDEX_EXTENSIONS);
+        extensions.add(FASTA_INDEX_EXTENSION);
+        for (String extension : extensions) {
+            File f = new File(referenceSequence.getParentFile(), referenceSequence.getName() + extension);
+            if (f.exists()) {
+                ret.add(f);
+            }
+        }
+        return ret;
+    }
+
+    public static String computeKey(List<File> files) throws IOException {
+        MessageDigest md = createDigest();
+        for (File f : files) {
+            md.update(f.getName().getBytes(StandardCharsets.UTF_8));
+            md.update(checksum(f).getBytes(StandardCharsets.UTF_8));
+        }
+        return toHex(md.digest()).substring(0, 16);
+    }
+
+    /**
+     * The first job on a node stages the files while holding a lock file under cacheRoot. Other jobs block on the lock and find the
+     * complete copy once they get it, so the reference is copied and hashed once per node.
+     */
+    public static File stage(List<File> files, File cacheRoot, String key) throws IOException {
+        logger.debug("ENTERING stage(List<File>, File, String)");
+
+        File target = new File(cacheRoot, key);
+        if (new File(target, COMPLETE_MARKER).exists()) {
+            logger.debug("reference cache hit: {}", target.getAbsolutePath());
+            return target;
+        }
+
+        cacheRoot.mkdirs();
+        File lockFile = new File(cacheRoot, String.format(".%s.lock", key));
+        // a JVM can't hold two locks on one file, so jobs of a batch running in one JVM queue here first
+        synchronized (stageLock) {
+            try (FileChannel channel = FileChannel.open(lockFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                    FileLock lock = channel.lock()) {
+
+                if (new File(target, COMPLETE_MARKER).exists()) {
+                    logger.debug("reference staged by another job while waiting: {}", target.getAbsolutePath());
+                    return target;
+                }
+                if (target.exists()) {
+                    // left behind by a job that died part way through, nobody else can be writing it while we hold the lock
+                    logger.warn("removing incomplete reference cache: {}", target.getAbsolutePath());
+                    FileUtils.deleteDirectory(target);
+                }
+                populate(files, cacheRoot, target, key);
+            }
+        }
+
+        if (!new File(target, COMPLETE_MARKER).exists()) {
+            throw new IOException(String.format("reference cache was not populated: %s", target.getAbsolutePath()));
+        }
+        return target;
+    }
+
+    private static void populate(List<File> files, File cacheRoot, File target, String key) throws IOException {
+        File tmpDir = new File(cacheRoot, String.format(".%s.%s", key, UUID.randomUUID().toString()));
+        tmpDir.mkdirs();
+        try {
+            List<File> copies = new ArrayList<File>();
+            for (File f : files) {
+                File copy = new File(tmpDir, f.getName());
+                Files.copy(f.toPath(), copy.toPath(), StandardCopyOption.COPY_ATTRIBUTES);
+                copies.add(copy);
+            }
+
+            String copyKey = computeKey(copies);
+            if (!key.equals(copyKey)) {
+                throw new IOException(String.format("reference cache checksum mismatch: expected %s, found %s", key, copyKey));
+            }
+            Files.createFile(new File(tmpDir, COMPLETE_MARKER).toPath());
+
+            // an AtomicMoveNotSupportedException means cacheRoot can't give all or nothing visibility, and is passed on as an error
+            Files.move(tmpDir.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            logger.info("staged reference to {}", target.getAbsolutePath());
+        } finally {
+            if (tmpDir.exists()) {
+                FileUtils.deleteQuietly(tmpDir);
+            }
+        }
+    }
+
+    /**
+     * SHA-1 of the file contents, remembered next to the file (or in memory when that directory is read-only) and keyed by size and
+     * modification time so it is only recomputed when the file changes.
+     */
+    public static String checksum(File f) throws IOException {
+        String stamp = String.format("%d:%d", f.length(), f.lastModified());
+        String memoKey = String.format("%s:%s", f.getAbsolutePath(), stamp);
+        String ret = checksumCache.get(memoKey);
+        if (ret != null) {
+            return ret;
+        }
+
+        File sidecar = new File(f.getParentFile(), String.format("%s.sha1", f.getName()));
+        if (sidecar.exists()) {
+            String[] sidecarValues = FileUtils.readFileToString(sidecar, StandardCharsets.UTF_8).trim().split(" ");
+            if (sidecarValues.length == 2 && sidecarValues[0].equals(stamp)) {
+                checksumCache.put(memoKey, sidecarValues[1]);
+                return sidecarValues[1];
+            }
+        }
+
+        MessageDigest md = createDigest();
+        byte[] buffer = new byte[1 << 20];
+        try (InputStream is = new FileInputStream(f)) {
+            int read;
+            while ((read = is.read(buffer)) != -1) {
+                md.update(buffer, 0, read);
+            }
+        }
+        ret = toHex(md.digest());
+        checksumCache.put(memoKey, ret);
+
+        if (f.getParentFile().canWrite()) {
+            try {
+                FileUtils.writeStringToFile(sidecar, String.format("%s %s%n", stamp, ret), StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                logger.warn("could not write checksum sidecar: {}", sidecar.getAbsolutePath());
+            }
+        }
+        return ret;
+    }
+
+    private static MessageDigest createDigest() throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+}
@@ -29,6 +29,7 @@ import org.renci.common.exec.ExecutorException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import edu.unc.mapseq.commons.bergmips.alignment.module.BWAMEMSortCLI;
 import edu.unc.mapseq.dao.MaPSeqDAOBeanService;
 import edu.unc.mapseq.dao.MaPSeqDAOException;
 import edu.unc.mapseq.dao.SampleDAO;
@@ -37,7 +38,6 @@ import edu.unc.mapseq.dao.model.MimeType;
 import edu.unc.mapseq.dao.model.Sample;
 import edu.unc.mapseq.dao.model.WorkflowRun;
 import edu.unc.mapseq.module.sequencing.fastqc.FastQC;
-import edu.unc.mapseq.module.sequencing.picard2.PicardAddOrReplaceReadGroups;
 import edu.unc.mapseq.module.sequencing.picard2.PicardCollectHsMetrics;
 import edu.unc.mapseq.workflow.WorkflowBeanService;
 import edu.unc.mapseq.workflow.sequencing.IRODSBean;
@@ -53,6 +53,8 @@ public class RegisterToIRODSRunnable implements Runnable {
 
     private Long sampleId;
 
+    private Sample sample;
+
     private WorkflowRun workflowRun;
 
     public RegisterToIRODSRunnable() {
@@ -72,7 +74,9 @@ public class RegisterToIRODSRunnable implements Runnable {
         final Set<Sample> sampleSet = new HashSet<Sample>();
         SampleDAO sampleDAO = mapseqDAOBeanService.getSampleDAO();
 
-        if (sampleId != null) {
+        if (sample != null) {
+            sampleSet.add(sample);
+        } else if (sampleId != null) {
             try {
                 sampleSet.add(sampleDAO.findById(sampleId));
             } catch (MaPSeqDAOException e1) {
@@ -184,8 +188,7 @@ public class RegisterToIRODSRunnable implements Runnable {
                                 attributeListWithJob));
 
                         attributeListWithJob = new ArrayList<>(attributeList);
-                        attributeListWithJob
-                                .add(new ImmutablePair<String, String>("MaPSeqJobName", PicardAddOrReplaceReadGroups.class.getSimpleName()));
+                        attributeListWithJob.add(new ImmutablePair<String, String>("MaPSeqJobName", BWAMEMSortCLI.class.getSimpleName()));
                         attributeListWithJob.add(new ImmutablePair<String, String>("MaPSeqMimeType", MimeType.APPLICATION_BAM.toString()));
                         attributeListWithJob.add(new ImmutablePair<String, String>("MaPSeqReferenceSequenceFile", referenceSequence));
                         files2RegisterToIRODS.add(new IRODSBean(new File(workflowDirectory, String.format("%s.mem.rg.bam", workflowRun.getName())),
@@ -289,6 +292,17 @@ public class RegisterToIRODSRunnable implements Runnable {
         this.sampleId = sampleId;
     }
 
+    public Sample getSample() {
+        return sample;
+    }
+
+    /**
+     * Uses an already loaded sample instead of looking it up by id.
+     */
+    public void setSample(Sample sample) {
+        this.sample = sample;
+    }
+
     public WorkflowRun getWorkflowRun() {
         return workflowRun;
     }
@@ -0,0 +1,104 @@
+package edu.unc.mapseq.commons.bergmips.alignment;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.unc.mapseq.dao.MaPSeqDAOBeanService;
+import edu.unc.mapseq.dao.model.Attribute;
+import edu.unc.mapseq.dao.model.Flowcell;
+import edu.unc.mapseq.dao.model.Sample;
+import edu.unc.mapseq.dao.model.WorkflowRunAttempt;
+import edu.unc.mapseq.workflow.sequencing.SequencingWorkflowUtil;
+
+/**
+ * The samples of a workflow run attempt, loaded once with their attributes and flowcell resolved up front, so createGraph() walks the lazy
+ * associations a single time per attempt. "Undetermined" samples are left out. The entities are only read from; anything that saves a
+ * sample after the DAG has run loads it again by id, since the attributes may have changed in the meantime.
+ */
+public class SampleSnapshot {
+
+    private static final Logger logger = LoggerFactory.getLogger(SampleSnapshot.class);
+
+    private final List<Sample> samples = new ArrayList<Sample>();
+
+    private final Map<Long, Sample> sampleById = new HashMap<Long, Sample>();
+
+    private final Map<Long, Map<String, String>> attributesBySampleId = new HashMap<Long, Map<String, String>>();
+
+    private final Map<Long, Flowcell> flowcellBySampleId = new HashMap<Long, Flowcell>();
+
+    private SampleSnapshot() {
+        super();
+    }
+
+    public static SampleSnapshot load(MaPSeqDAOBeanService mapseqDAOBeanService, WorkflowRunAttempt attempt) {
+        logger.debug("ENTERING load(MaPSeqDAOBeanService, WorkflowRunAttempt)");
+        long start = System.currentTimeMillis();
+
+        SampleSnapshot ret = new SampleSnapshot();
+        List<Sample> sampleList = new ArrayList<Sample>(SequencingWorkflowUtil.getAggregatedSamples(mapseqDAOBeanService, attempt));
+        // a stable order keeps job numbering the same between runs of the same attempt
+        Collections.sort(sampleList, (a, b) -> a.getId().compareTo(b.getId()));
+
+        for (Sample sample : sampleList) {
+            if ("Undetermined".equals(sample.getBarcode())) {
+                continue;
+            }
+            ret.samples.add(sample);
+            ret.sampleById.put(sample.getId(), sample);
+
+            Map<String, String> attributes = new LinkedHashMap<String, String>();
+            Set<Attribute> attributeSet = sample.getAttributes();
+            if (attributeSet != null) {
+                for (Attribute attribute : attributeSet) {
+                    attributes.put(attribute.getName(), attribute.getValue());
+                }
+            }
+            ret.attributesBySampleId.put(sample.getId(), attributes);
+            ret.flowcellBySampleId.put(sample.getId(), sample.getFlowcell());
+        }
+
+        logger.info("loaded {} samples in {} ms", ret.samples.size(), System.currentTimeMillis() - start);
+        return ret;
+    }
+
+    public List<Sample> getSamples() {
+        return samples;
+    }
+
+    public Sample getSample(Long sampleId) {
+        return sampleById.get(sampleId);
+    }
+
+    public String getAttribute(Sample sample, String name) {
+        Map<String, String> attributes = attributesBySampleId.get(sample.getId());
+        return attributes != null ? attributes.get(name) : null;
+    }
+
+    /**
+     * Keeps the snapshot in step with an attribute that has just been saved for the sample.
+     */
+    public void setAttribute(Sample sample, String name, String value) {
+        Map<String, String> attributes = attributesBySampleId.get(sample.getId());
+        if (attributes != null) {
+            attributes.put(name, value);
+        }
+    }
+
+    public String getSubjectName(Sample sample) {
+        return getAttribute(sample, "subjectName");
+    }
+
+    public Flowcell getFlowcell(Sample sample) {
+        return flowcellBySampleId.get(sample.getId());
+    }
+
+}
@@ -42,6 +42,8 @@ public class SaveCollectHsMetricsAttributesRunnable implements Runnable {
 
     private Long sampleId;
 
+    private Sample sample;
+
     private Long flowcellId;
 
     private MaPSeqDAOBeanService mapseqDAOBeanService;
@@ -68,7 +70,9 @@ public class SaveCollectHsMetricsAttributesRunnable implements Runnable {
                 sampleSet.addAll(sampleDAO.findByFlowcellId(flowcellId));
             }
 
-            if (sampleId != null) {
+            if (this.sample != null) {
+                sampleSet.add(this.sample);
+            } else if (sampleId != null) {
                 Sample sample = sampleDAO.findById(sampleId);
                 if (sample == null) {
                     logger.error("Sample was not found");
@@ -107,9 +111,9 @@ public class SaveCollectHsMetricsAttributesRunnable implements Runnable {
                         }
                     }
 
-                    String[] dataArray = dataLine.split("\t");
+                    String[] dataArray = dataLine.split("\t", -1);
 
-                    for (int i = 0; i < keyList.size(); i++) {
+                    for (int i = 0; i < keyList.size() && i < dataArray.length; i++) {
                         String key = keyList.get(i);
                         String value = dataArray[i];
                         if (StringUtils.isNotEmpty(value)) {
@@ -145,6 +149,17 @@ public class SaveCollectHsMetricsAttributesRunnable implements Runnable {
         this.sampleId = sampleId;
     }
 
+    public Sample getSample() {
+        return sample;
+    }
+
+    /**
+     * Uses an already loaded sample instead of looking it up by id.
+     */
+    public void setSample(Sample sample) {
+        this.sample = sample;
+    }
+
     public Long getFlowcellId() {
         return flowcellId;
     }
@@ -0,0 +1,77 @@
+package edu.unc.mapseq.commons.bergmips.alignment.instrumentation;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock free histogram of durations in milliseconds. Bucket i holds values below 2^i ms. Recording costs a few atomic adds and never
+ * allocates. Percentiles are reported as the upper bound of their bucket, so they are accurate to within a factor of two.
+ */
+public class LatencyHistogram {
+
+    private static final int BUCKETS = 48;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+    private final AtomicLong count = new AtomicLong();
+
+    private final AtomicLong sum = new AtomicLong();
+
+    private final AtomicLong max = new AtomicLong();
+
+    public LatencyHistogram() {
+        super();
+    }
+
+    public void record(long millis) {
+        long value = Math.max(0L, millis);
+        buckets.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value)));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    /**
+     * Records the time since start, as returned by System.currentTimeMillis().
+     */
+    public void recordSince(long start) {
+        record(System.currentTimeMillis() - start);
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public double getMean() {
+        long n = count.get();
+        return n > 0 ? (double) sum.get() / n : 0D;
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @param quantile
+     *            between 0 and 1
+     */
+    public long getPercentile(double quantile) {
+        long n = count.get();
+        if (n == 0) {
+            return 0L;
+        }
+        long rank = (long) Math.ceil(quantile * n);
+        long seen = 0L;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets.get(i);
+            if (seen >= rank) {
+                return Math.min(max.get(), i == 0 ? 0L : (1L << i) - 1);
+            }
+        }
+        return max.get();
+    }
+
+}
@@ -0,0 +1,97 @@
+package edu.unc.mapseq.commons.bergmips.alignment.instrumentation;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * The timers, counters and gauges of the attempt lifecycle, from message receipt to metrics persistence. There is one registry per
+ * container. It lives in this bundle, so the messaging, executor and workflow bundles all record into it. {@link PipelineMetricsMBean}
+ * publishes it over JMX.
+ */
+public class PipelineMetrics {
+
+    public static final String MESSAGE_DELIVERY = "message.delivery";
+
+    public static final String MESSAGE_PERSIST = "message.persist";
+
+    public static final String MESSAGES_RECEIVED = "message.received";
+
+    public static final String MESSAGES_REJECTED = "message.rejected";
+
+    public static final String MESSAGES_DUPLICATE = "message.duplicate";
+
+    public static final String ATTEMPTS_ENQUEUED = "message.attemptsEnqueued";
+
+    public static final String DEQUEUE = "executor.dequeue";
+
+    public static final String DEQUEUE_LATENCY = "executor.dequeueLatency";
+
+    public static final String ATTEMPTS_DEQUEUED = "executor.attemptsDequeued";
+
+    public static final String QUEUE_DEPTH = "executor.queueDepth";
+
+    public static final String OLDEST_ENQUEUED_AGE = "executor.oldestEnqueuedAge";
+
+    public static final String RUNNING_ATTEMPTS = "executor.runningAttempts";
+
+    public static final String CREATE_GRAPH = "workflow.createGraph";
+
+    public static final String DAG_RUN = "workflow.dagRun";
+
+    public static final String JOB_RUN = "workflow.jobRun";
+
+    public static final String POST_RUN = "workflow.postRun";
+
+    public static final String ATTEMPTS_SUCCEEDED = "workflow.attemptsSucceeded";
+
+    public static final String ATTEMPTS_FAILED = "workflow.attemptsFailed";
+
+    public static final String IRODS_REGISTRATION = "postRun.irodsRegistration";
+
+    public static final String METRICS_PERSISTENCE = "postRun.metricsPersistence";
+
+    private static final Map<String, LatencyHistogram> timers = new ConcurrentSkipListMap<String, LatencyHistogram>();
+
+    private static final Map<String, AtomicLong> counters = new ConcurrentSkipListMap<String, AtomicLong>();
+
+    private static final Map<String, Supplier<? extends Number>> gauges = new ConcurrentHashMap<String, Supplier<? extends Number>>();
+
+    private PipelineMetrics() {
+        super();
+    }
+
+    public static LatencyHistogram timer(String name) {
+        return timers.computeIfAbsent(name, k -> new LatencyHistogram());
+    }
+
+    public static AtomicLong counter(String name) {
+        return counters.computeIfAbsent(name, k -> new AtomicLong());
+    }
+
+    /**
+     * Registers or replaces a gauge. The supplier is called on every JMX read, so it must be cheap.
+     */
+    public static void gauge(String name, Supplier<? extends Number> supplier) {
+        gauges.put(name, supplier);
+    }
+
+    public static void removeGauge(String name) {
+        gauges.remove(name);
+    }
+
+    static Map<String, LatencyHistogram> getTimers() {
+        return timers;
+    }
+
+    static Map<String, AtomicLong> getCounters() {
+        return counters;
+    }
+
+    static Map<String, Supplier<? extends Number>> getGauges() {
+        return gauges;
+    }
+
+}
@@ -0,0 +1,151 @@
+package edu.unc.mapseq.commons.bergmips.alignment.instrumentation;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Publishes the {@link PipelineMetrics} whose names start with one of the given prefixes as read only JMX attributes. Each timer becomes
+ * "&lt;name&gt;.count", ".mean", ".p50", ".p95", ".p99" and ".max" in milliseconds. Metrics created after registration show up on the
+ * next read of the MBeanInfo.
+ */
+public class PipelineMetricsMBean implements DynamicMBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(PipelineMetricsMBean.class);
+
+    public static final String DOMAIN = "edu.unc.mapseq.bergmips.alignment";
+
+    private final String[] prefixes;
+
+    private ObjectName objectName;
+
+    public PipelineMetricsMBean(String... prefixes) {
+        super();
+        this.prefixes = prefixes;
+    }
+
+    public void register(String name) {
+        try {
+            objectName = new ObjectName(String.format("%s:type=Metrics,name=%s", DOMAIN, name));
+            if (ManagementFactory.getPlatformMBeanServer().isRegistered(objectName)) {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            }
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        } catch (Exception e) {
+            logger.warn("could not register metrics MBean", e);
+        }
+    }
+
+    public void unregister() {
+        try {
+            if (objectName != null && ManagementFactory.getPlatformMBeanServer().isRegistered(objectName)) {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            }
+        } catch (Exception e) {
+            logger.warn("could not unregister metrics MBean", e);
+        }
+    }
+
+    private boolean isPublished(String name) {
+        for (String prefix : prefixes) {
+            if (name.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Map<String, Supplier<Object>> getValues() {
+        Map<String, Supplier<Object>> ret = new LinkedHashMap<String, Supplier<Object>>();
+        for (Map.Entry<String, LatencyHistogram> entry : PipelineMetrics.getTimers().entrySet()) {
+            if (isPublished(entry.getKey())) {
+                LatencyHistogram histogram = entry.getValue();
+                ret.put(entry.getKey() + ".count", () -> histogram.getCount());
+                ret.put(entry.getKey() + ".mean", () -> histogram.getMean());
+                ret.put(entry.getKey() + ".p50", () -> histogram.getPercentile(0.5));
+                ret.put(entry.getKey() + ".p95", () -> histogram.getPercentile(0.95));
+                ret.put(entry.getKey() + ".p99", () -> histogram.getPercentile(0.99));
+                ret.put(entry.getKey() + ".max", () -> histogram.getMax());
+            }
+        }
+        for (Map.Entry<String, AtomicLong> entry : PipelineMetrics.getCounters().entrySet()) {
+            if (isPublished(entry.getKey())) {
+                AtomicLong counter = entry.getValue();
+                ret.put(entry.getKey(), () -> counter.get());
+            }
+        }
+        for (Map.Entry<String, Supplier<? extends Number>> entry : PipelineMetrics.getGauges().entrySet()) {
+            if (isPublished(entry.getKey())) {
+                Supplier<? extends Number> gauge = entry.getValue();
+                ret.put(entry.getKey(), () -> gauge.get());
+            }
+        }
+        return ret;
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Supplier<Object> value = getValues().get(attribute);
+        if (value == null) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        return value.get();
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        Map<String, Supplier<Object>> values = getValues();
+        AttributeList ret = new AttributeList();
+        for (String attribute : attributes) {
+            Supplier<Object> value = values.get(attribute);
+            if (value != null) {
+                ret.add(new Attribute(attribute, value.get()));
+            }
+        }
+        return ret;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) {
+        throw new UnsupportedOperationException("metrics are read only");
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) {
+        throw new UnsupportedOperationException(actionName);
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attributeInfos = new ArrayList<MBeanAttributeInfo>();
+        for (Map.Entry<String, Supplier<Object>> entry : getValues().entrySet()) {
+            Object value = entry.getValue().get();
+            String type = value != null ? value.getClass().getName() : Long.class.getName();
+            attributeInfos.add(new MBeanAttributeInfo(entry.getKey(), type, entry.getKey(), true, false, false));
+        }
+        return new MBeanInfo(getClass().getName(), "BergMIPs alignment pipeline metrics", attributeInfos.toArray(new MBeanAttributeInfo[0]),
+                null, new MBeanOperationInfo[0], null);
+    }
+
+}
@@ -0,0 +1,503 @@
+package edu.unc.mapseq.commons.bergmips.alignment.metrics;
+
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import htsjdk.samtools.AlignmentBlock;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMTag;
+import htsjdk.samtools.TextCigarCodec;
+import htsjdk.samtools.reference.ReferenceSequenceFile;
+
+/**
+ * Single pass hybrid selection metrics over a coordinate sorted BAM. Records are fed through {@link #accept(SAMRecord)} and per-base target
+ * depth is kept in one int array per target, so memory is bounded by the target territory rather than by the BAM. Bait and target lookups go
+ * through {@link IntervalIndex}. The columns and their order match picard.analysis.directed.HsMetrics so the output can be read by
+ * {@code SaveCollectHsMetricsAttributesRunnable}.
+ *
+ * HS_PENALTY_* and HET_SNP_* are not computed and are written empty, as are AT_DROPOUT and GC_DROPOUT when no reference is given.
+ * Picard models those from its theoretical sensitivity and duplication curves over the base quality histogram, which this pass does
+ * not keep. SaveCollectHsMetricsAttributesRunnable skips empty values, so a sample moved to this engine keeps whatever HS_PENALTY_* and
+ * HET_SNP_* attributes an earlier Picard run saved rather than having them blanked; use the picard engine where those columns are needed.
+ */
+public class HsMetricsCalculator {
+
+    public static final String METRICS_CLASS = "picard.analysis.directed.HsMetrics";
+
+    public static final List<String> COLUMNS = Arrays.asList("BAIT_SET", "GENOME_SIZE", "BAIT_TERRITORY", "TARGET_TERRITORY",
+            "BAIT_DESIGN_EFFICIENCY", "TOTAL_READS", "PF_READS", "PF_UNIQUE_READS", "PCT_PF_READS", "PCT_PF_UQ_READS", "PF_UQ_READS_ALIGNED",
+            "PCT_PF_UQ_READS_ALIGNED", "PF_BASES_ALIGNED", "PF_UQ_BASES_ALIGNED", "ON_BAIT_BASES", "NEAR_BAIT_BASES", "OFF_BAIT_BASES",
+            "ON_TARGET_BASES", "PCT_SELECTED_BASES", "PCT_OFF_BAIT", "ON_BAIT_VS_SELECTED", "MEAN_BAIT_COVERAGE", "MEAN_TARGET_COVERAGE",
+            "MEDIAN_TARGET_COVERAGE", "PCT_USABLE_BASES_ON_BAIT", "PCT_USABLE_BASES_ON_TARGET", "FOLD_ENRICHMENT", "ZERO_CVG_TARGETS_PCT",
+            "PCT_EXC_DUPE", "PCT_EXC_MAPQ", "PCT_EXC_BASEQ", "PCT_EXC_OVERLAP", "PCT_EXC_OFF_TARGET", "FOLD_80_BASE_PENALTY", "PCT_TARGET_BASES_1X",
+            "PCT_TARGET_BASES_2X", "PCT_TARGET_BASES_10X", "PCT_TARGET_BASES_20X", "PCT_TARGET_BASES_30X", "PCT_TARGET_BASES_40X",
+            "PCT_TARGET_BASES_50X", "PCT_TARGET_BASES_100X", "HS_LIBRARY_SIZE", "HS_PENALTY_10X", "HS_PENALTY_20X", "HS_PENALTY_30X",
+            "HS_PENALTY_40X", "HS_PENALTY_50X", "HS_PENALTY_100X", "AT_DROPOUT", "GC_DROPOUT", "HET_SNP_SENSITIVITY", "HET_SNP_Q");
+
+    private static final int[] COVERAGE_LEVELS = new int[] { 1, 2, 10, 20, 30, 40, 50, 100 };
+
+    private final IntervalIndex baits;
+
+    private final IntervalIndex targets;
+
+    private final Map<String, int[][]> targetDepth = new HashMap<String, int[][]>();
+
+    private final DecimalFormat format = new DecimalFormat("0.######", DecimalFormatSymbols.getInstance(Locale.US));
+
+    private int minimumMappingQuality = 20;
+
+    private int minimumBaseQuality = 20;
+
+    private int nearDistance = 250;
+
+    private boolean clipOverlappingReads = true;
+
+    private long genomeSize;
+
+    private long totalReads;
+
+    private long pfReads;
+
+    private long pfUniqueReads;
+
+    private long pfUniqueReadsAligned;
+
+    private long pfBases;
+
+    private long pfBasesAligned;
+
+    private long pfUniqueBasesAligned;
+
+    private long onBaitBases;
+
+    private long nearBaitBases;
+
+    private long offBaitBases;
+
+    private long onTargetBases;
+
+    private long excludedDupe;
+
+    private long excludedMappingQuality;
+
+    private long excludedBaseQuality;
+
+    private long excludedOverlap;
+
+    private long excludedOffTarget;
+
+    private long selectedPairs;
+
+    private long selectedUniquePairs;
+
+    private String currentContig;
+
+    private IntervalIndex.Contig currentBaits;
+
+    private IntervalIndex.Contig currentTargets;
+
+    private int[][] currentDepth;
+
+    public HsMetricsCalculator(IntervalIndex baits, IntervalIndex targets) {
+        super();
+        this.baits = baits;
+        this.targets = targets;
+        for (IntervalIndex.Contig contig : targets.getContigs()) {
+            int[][] depth = new int[contig.size()][];
+            for (int i = 0; i < contig.size(); i++) {
+                depth[i] = new int[contig.getLength(i)];
+            }
+            targetDepth.put(contig.getName(), depth);
+        }
+    }
+
+    public void accept(SAMRecord record) {
+        if (record.isSecondaryOrSupplementary()) {
+            return;
+        }
+        totalReads++;
+        if (record.getReadFailsVendorQualityCheckFlag()) {
+            return;
+        }
+        pfReads++;
+        pfBases += record.getReadLength();
+
+        boolean duplicate = record.getDuplicateReadFlag();
+        if (!duplicate) {
+            pfUniqueReads++;
+        }
+        if (record.getReadUnmappedFlag()) {
+            return;
+        }
+        if (!duplicate) {
+            pfUniqueReadsAligned++;
+        }
+
+        String contig = record.getReferenceName();
+        if (!contig.equals(currentContig)) {
+            // records arrive coordinate sorted, so the contig lookups only change at contig boundaries
+            currentContig = contig;
+            currentBaits = baits.getContig(contig);
+            currentTargets = targets.getContig(contig);
+            currentDepth = targetDepth.get(contig);
+        }
+        List<AlignmentBlock> blocks = record.getAlignmentBlocks();
+
+        int mappedBases = 0;
+        int readOnBait = 0;
+        for (AlignmentBlock block : blocks) {
+            int blockEnd = block.getReferenceStart() + block.getLength() - 1;
+            mappedBases += block.getLength();
+            if (currentBaits != null) {
+                readOnBait += currentBaits.overlapBases(block.getReferenceStart(), blockEnd);
+            }
+            if (!duplicate && currentTargets != null) {
+                onTargetBases += currentTargets.overlapBases(block.getReferenceStart(), blockEnd);
+            }
+        }
+        pfBasesAligned += mappedBases;
+
+        boolean selected = readOnBait > 0 || (currentBaits != null
+                && currentBaits.distanceToNearest(record.getAlignmentStart(), record.getAlignmentEnd()) <= nearDistance);
+        if (record.getReadPairedFlag() && record.getFirstOfPairFlag() && !record.getMateUnmappedFlag() && selected) {
+            selectedPairs++;
+            if (!duplicate) {
+                selectedUniquePairs++;
+            }
+        }
+
+        if (duplicate) {
+            excludedDupe += mappedBases;
+            return;
+        }
+
+        pfUniqueBasesAligned += mappedBases;
+        if (readOnBait > 0) {
+            onBaitBases += readOnBait;
+            nearBaitBases += mappedBases - readOnBait;
+        } else if (selected) {
+            nearBaitBases += mappedBases;
+        } else {
+            offBaitBases += mappedBases;
+        }
+
+        if (record.getMappingQuality() < minimumMappingQuality) {
+            excludedMappingQuality += mappedBases;
+            return;
+        }
+
+        if (currentTargets == null) {
+            excludedOffTarget += mappedBases;
+            return;
+        }
+        int targetCount = currentTargets.size();
+        int mateEnd = clipOverlappingReads ? getOverlappingMateEnd(record) : 0;
+        byte[] qualities = record.getBaseQualities();
+
+        for (AlignmentBlock block : blocks) {
+            int referenceStart = block.getReferenceStart();
+            int readOffset = block.getReadStart() - 1;
+
+            int idx = currentTargets.ceilingIndex(referenceStart);
+
+            for (int i = 0; i < block.getLength(); i++) {
+                int position = referenceStart + i;
+                while (idx < targetCount && currentTargets.getEnd(idx) < position) {
+                    idx++;
+                }
+                if (idx >= targetCount || currentTargets.getStart(idx) > position) {
+                    excludedOffTarget++;
+                } else if (position <= mateEnd) {
+                    excludedOverlap++;
+                } else if (qualities.length > 0 && qualities[readOffset + i] < minimumBaseQuality) {
+                    excludedBaseQuality++;
+                } else {
+                    currentDepth[idx][position - currentTargets.getStart(idx)]++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Reference end of the mate when this read is the later of an overlapping pair, so bases the mate already covered are not counted twice.
+     * Needs the MC tag, otherwise nothing is clipped.
+     */
+    private int getOverlappingMateEnd(SAMRecord record) {
+        if (!record.getReadPairedFlag() || record.getMateUnmappedFlag()
+                || !record.getReferenceIndex().equals(record.getMateReferenceIndex())) {
+            return 0;
+        }
+        int start = record.getAlignmentStart();
+        int mateStart = record.getMateAlignmentStart();
+        if (start < mateStart || (start == mateStart && record.getFirstOfPairFlag())) {
+            return 0;
+        }
+        String mateCigar = record.getStringAttribute(SAMTag.MC.name());
+        if (mateCigar == null) {
+            return 0;
+        }
+        return mateStart + TextCigarCodec.decode(mateCigar).getReferenceLength() - 1;
+    }
+
+    /**
+     * @param reference
+     *            indexed reference used for AT/GC dropout, may be null
+     */
+    public Map<String, String> getMetrics(ReferenceSequenceFile reference) {
+        Map<String, String> ret = new LinkedHashMap<String, String>();
+        for (String column : COLUMNS) {
+            ret.put(column, "");
+        }
+
+        long baitTerritory = baits.getTerritory();
+        long targetTerritory = targets.getTerritory();
+        long selectedBases = onBaitBases + nearBaitBases;
+        long allSelectionBases = selectedBases + offBaitBases;
+
+        long[] histogram = new long[1];
+        long coverageSum = 0L;
+        int zeroCoverageTargets = 0;
+        long[] territoryAtGc = new long[101];
+        long[] coverageAtGc = new long[101];
+        for (IntervalIndex.Contig contig : targets.getContigs()) {
+            int[][] depth = targetDepth.get(contig.getName());
+            for (int i = 0; i < depth.length; i++) {
+                long targetCoverage = 0L;
+                for (int d : depth[i]) {
+                    if (d >= histogram.length) {
+                        histogram = Arrays.copyOf(histogram, Math.max(d + 1, histogram.length * 2));
+                    }
+                    histogram[d]++;
+                    targetCoverage += d;
+                }
+                coverageSum += targetCoverage;
+                if (targetCoverage == 0L) {
+                    zeroCoverageTargets++;
+                }
+                if (reference != null) {
+                    int gc = getGcPercent(reference.getSubsequenceAt(contig.getName(), contig.getStart(i), contig.getEnd(i)).getBases());
+                    if (gc >= 0) {
+                        territoryAtGc[gc] += depth[i].length;
+                        coverageAtGc[gc] += targetCoverage;
+                    }
+                }
+            }
+        }
+
+        double meanTargetCoverage = ratio(coverageSum, targetTerritory);
+
+        ret.put("BAIT_SET", baits.getName());
+        ret.put("GENOME_SIZE", Long.toString(genomeSize));
+        ret.put("BAIT_TERRITORY", Long.toString(baitTerritory));
+        ret.put("TARGET_TERRITORY", Long.toString(targetTerritory));
+        ret.put("BAIT_DESIGN_EFFICIENCY", format(ratio(targetTerritory, baitTerritory)));
+        ret.put("TOTAL_READS", Long.toString(totalReads));
+        ret.put("PF_READS", Long.toString(pfReads));
+        ret.put("PF_UNIQUE_READS", Long.toString(pfUniqueReads));
+        ret.put("PCT_PF_READS", format(ratio(pfReads, totalReads)));
+        ret.put("PCT_PF_UQ_READS", format(ratio(pfUniqueReads, totalReads)));
+        ret.put("PF_UQ_READS_ALIGNED", Long.toString(pfUniqueReadsAligned));
+        ret.put("PCT_PF_UQ_READS_ALIGNED", format(ratio(pfUniqueReadsAligned, pfUniqueReads)));
+        ret.put("PF_BASES_ALIGNED", Long.toString(pfBasesAligned));
+        ret.put("PF_UQ_BASES_ALIGNED", Long.toString(pfUniqueBasesAligned));
+        ret.put("ON_BAIT_BASES", Long.toString(onBaitBases));
+        ret.put("NEAR_BAIT_BASES", Long.toString(nearBaitBases));
+        ret.put("OFF_BAIT_BASES", Long.toString(offBaitBases));
+        ret.put("ON_TARGET_BASES", Long.toString(onTargetBases));
+        ret.put("PCT_SELECTED_BASES", format(ratio(selectedBases, allSelectionBases)));
+        ret.put("PCT_OFF_BAIT", format(ratio(offBaitBases, allSelectionBases)));
+        ret.put("ON_BAIT_VS_SELECTED", format(ratio(onBaitBases, selectedBases)));
+        ret.put("MEAN_BAIT_COVERAGE", format(ratio(onBaitBases, baitTerritory)));
+        ret.put("MEAN_TARGET_COVERAGE", format(meanTargetCoverage));
+        ret.put("MEDIAN_TARGET_COVERAGE", format(percentile(histogram, targetTerritory, 0.5D)));
+        ret.put("PCT_USABLE_BASES_ON_BAIT", format(ratio(onBaitBases, pfBases)));
+        ret.put("PCT_USABLE_BASES_ON_TARGET", format(ratio(onTargetBases, pfBases)));
+        if (allSelectionBases > 0 && baitTerritory > 0 && genomeSize > 0) {
+            ret.put("FOLD_ENRICHMENT", format(ratio(onBaitBases, allSelectionBases) / ratio(baitTerritory, genomeSize)));
+        }
+        ret.put("ZERO_CVG_TARGETS_PCT", format(ratio(zeroCoverageTargets, targets.size())));
+        ret.put("PCT_EXC_DUPE", format(ratio(excludedDupe, pfBasesAligned)));
+        ret.put("PCT_EXC_MAPQ", format(ratio(excludedMappingQuality, pfBasesAligned)));
+        ret.put("PCT_EXC_BASEQ", format(ratio(excludedBaseQuality, pfBasesAligned)));
+        ret.put("PCT_EXC_OVERLAP", format(ratio(excludedOverlap, pfBasesAligned)));
+        ret.put("PCT_EXC_OFF_TARGET", format(ratio(excludedOffTarget, pfBasesAligned)));
+
+        // fold 80 is taken over bases with non-zero coverage, as in Picard
+        long nonZeroBases = targetTerritory - histogram[0];
+        if (nonZeroBases > 0) {
+            long[] nonZeroHistogram = Arrays.copyOf(histogram, histogram.length);
+            nonZeroHistogram[0] = 0L;
+            double twentiethPercentile = percentile(nonZeroHistogram, nonZeroBases, 0.2D);
+            if (twentiethPercentile > 0) {
+                ret.put("FOLD_80_BASE_PENALTY", format(meanTargetCoverage / twentiethPercentile));
+            }
+        }
+
+        long atOrAbove = targetTerritory;
+        int level = 0;
+        for (int depth = 0; depth < histogram.length && level < COVERAGE_LEVELS.length; depth++) {
+            while (level < COVERAGE_LEVELS.length && COVERAGE_LEVELS[level] == depth) {
+                ret.put(String.format("PCT_TARGET_BASES_%dX", depth), format(ratio(atOrAbove, targetTerritory)));
+                level++;
+            }
+            atOrAbove -= histogram[depth];
+        }
+        for (; level < COVERAGE_LEVELS.length; level++) {
+            ret.put(String.format("PCT_TARGET_BASES_%dX", COVERAGE_LEVELS[level]), format(0D));
+        }
+
+        Long librarySize = estimateLibrarySize(selectedPairs, selectedUniquePairs);
+        if (librarySize != null) {
+            ret.put("HS_LIBRARY_SIZE", Long.toString(librarySize));
+        }
+
+        if (reference != null && targetTerritory > 0 && coverageSum > 0) {
+            double atDropout = 0D;
+            double gcDropout = 0D;
+            for (int gc = 0; gc <= 100; gc++) {
+                double dropout = 100D * territoryAtGc[gc] / targetTerritory - 100D * coverageAtGc[gc] / coverageSum;
+                if (dropout > 0) {
+                    if (gc <= 50) {
+                        atDropout += dropout;
+                    }
+                    if (gc >= 50) {
+                        gcDropout += dropout;
+                    }
+                }
+            }
+            ret.put("AT_DROPOUT", format(atDropout));
+            ret.put("GC_DROPOUT", format(gcDropout));
+        }
+
+        return ret;
+    }
+
+    private static int getGcPercent(byte[] bases) {
+        int gc = 0;
+        int called = 0;
+        for (byte b : bases) {
+            switch (b) {
+                case 'G':
+                case 'g':
+                case 'C':
+                case 'c':
+                    gc++;
+                    called++;
+                    break;
+                case 'A':
+                case 'a':
+                case 'T':
+                case 't':
+                    called++;
+                    break;
+                default:
+                    break;
+            }
+        }
+        return called == 0 ? -1 : (int) Math.round(100D * gc / called);
+    }
+
+    private static double percentile(long[] histogram, long total, double fraction) {
+        if (total == 0) {
+            return 0D;
+        }
+        double threshold = total * fraction;
+        long cumulative = 0L;
+        for (int depth = 0; depth < histogram.length; depth++) {
+            cumulative += histogram[depth];
+            if (cumulative >= threshold) {
+                return depth;
+            }
+        }
+        return histogram.length - 1;
+    }
+
+    /**
+     * Same estimator as Picard's DuplicationMetrics.estimateLibrarySize, solving C/X = 1 - exp(-N/X) for X by bisection.
+     */
+    static Long estimateLibrarySize(long readPairs, long uniqueReadPairs) {
+        long readPairDuplicates = readPairs - uniqueReadPairs;
+        if (readPairs <= 0 || readPairDuplicates <= 0) {
+            return null;
+        }
+        double m = 1.0D;
+        double M = 100.0D;
+        if (uniqueReadPairs >= readPairs || librarySizeFunction(m * uniqueReadPairs, uniqueReadPairs, readPairs) < 0) {
+            return null;
+        }
+        while (librarySizeFunction(M * uniqueReadPairs, uniqueReadPairs, readPairs) > 0) {
+            M *= 10.0D;
+        }
+        for (int i = 0; i < 40; i++) {
+            double r = (m + M) / 2.0D;
+            double u = librarySizeFunction(r * uniqueReadPairs, uniqueReadPairs, readPairs);
+            if (u == 0) {
+                break;
+            } else if (u > 0) {
+                m = r;
+            } else {
+                M = r;
+            }
+        }
+        return (long) (uniqueReadPairs * (m + M) / 2.0D);
+    }
+
+    private static double librarySizeFunction(double x, double c, double n) {
+        return c / x - 1 + Math.exp(-n / x);
+    }
+
+    private static double ratio(double numerator, double denominator) {
+        return denominator == 0 ? 0D : numerator / denominator;
+    }
+
+    private String format(double value) {
+        return format.format(value);
+    }
+
+    public int getMinimumMappingQuality() {
+        return minimumMappingQuality;
+    }
+
+    public void setMinimumMappingQuality(int minimumMappingQuality) {
+        this.minimumMappingQuality = minimumMappingQuality;
+    }
+
+    public int getMinimumBaseQuality() {
+        return minimumBaseQuality;
+    }
+
+    public void setMinimumBaseQuality(int minimumBaseQuality) {
+        this.minimumBaseQuality = minimumBaseQuality;
+    }
+
+    public int getNearDistance() {
+        return nearDistance;
+    }
+
+    public void setNearDistance(int nearDistance) {
+        this.nearDistance = nearDistance;
+    }
+
+    public boolean isClipOverlappingReads() {
+        return clipOverlappingReads;
+    }
+
+    public void setClipOverlappingReads(boolean clipOverlappingReads) {
+        this.clipOverlappingReads = clipOverlappingReads;
+    }
+
+    public long getGenomeSize() {
+        return genomeSize;
+    }
+
+    public void setGenomeSize(long genomeSize) {
+        this.genomeSize = genomeSize;
+    }
+
+}
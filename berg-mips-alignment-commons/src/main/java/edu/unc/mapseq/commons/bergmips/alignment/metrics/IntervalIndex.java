@@ -0,0 +1,329 @@
+package edu.unc.mapseq.commons.bergmips.alignment.metrics;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.unc.mapseq.commons.bergmips.alignment.ReferenceCache;
+
+/**
+ * Binary, memory-mapped form of an interval_list. Each contig holds its merged intervals as sorted start and end int arrays, so the ends
+ * are sorted too and every query is a binary search. The index file is built once per interval list, named by the list's checksum, and
+ * mapped read-only so concurrent jobs on a node share the same pages.
+ *
+ * Layout: magic, version, name, contig count, then per contig its name and interval count, padded to 4 bytes, followed by the starts and
+ * ends of each contig in the same order.
+ */
+public class IntervalIndex {
+
+    private static final Logger logger = LoggerFactory.getLogger(IntervalIndex.class);
+
+    private static final int MAGIC = 0x49494458;
+
+    private static final int VERSION = 1;
+
+    public static final String EXTENSION = ".iidx";
+
+    private final String name;
+
+    private final Map<String, Contig> contigs = new LinkedHashMap<String, Contig>();
+
+    private long territory = 0L;
+
+    private int size = 0;
+
+    private IntervalIndex(String name) {
+        super();
+        this.name = name;
+    }
+
+    /**
+     * Maps the index for the interval list, building it in the cache directory first if no index with a matching checksum exists there.
+     */
+    public static IntervalIndex open(File intervalListFile, File cacheDirectory) throws IOException {
+        String key = ReferenceCache.checksum(intervalListFile).substring(0, 16);
+        File indexFile = new File(cacheDirectory, String.format("%s.%s%s", intervalListFile.getName(), key, EXTENSION));
+        if (!indexFile.exists()) {
+            cacheDirectory.mkdirs();
+            build(IntervalList.parse(intervalListFile), indexFile);
+            logger.info("built interval index {}", indexFile.getAbsolutePath());
+        }
+        return map(indexFile);
+    }
+
+    /**
+     * Writes the index through a temporary file and renames it into place, so readers never map a partial index.
+     */
+    public static void build(IntervalList intervalList, File indexFile) throws IOException {
+        ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+        try (DataOutputStream header = new DataOutputStream(headerBytes)) {
+            header.writeInt(MAGIC);
+            header.writeInt(VERSION);
+            header.writeUTF(intervalList.getName());
+            header.writeInt(intervalList.getContigs().size());
+            for (String contig : intervalList.getContigs()) {
+                header.writeUTF(contig);
+                header.writeInt(intervalList.getStarts(contig).length);
+            }
+            while (header.size() % 4 != 0) {
+                header.writeByte(0);
+            }
+        }
+
+        File tmpIndexFile = new File(indexFile.getParentFile(), String.format(".%s.%s", indexFile.getName(), UUID.randomUUID().toString()));
+        try {
+            try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpIndexFile)))) {
+                dos.write(headerBytes.toByteArray());
+                for (String contig : intervalList.getContigs()) {
+                    for (int start : intervalList.getStarts(contig)) {
+                        dos.writeInt(start);
+                    }
+                    for (int end : intervalList.getEnds(contig)) {
+                        dos.writeInt(end);
+                    }
+                }
+            }
+            Files.move(tmpIndexFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmpIndexFile.toPath());
+        }
+    }
+
+    public static IntervalIndex map(File indexFile) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        if (buffer.getInt() != MAGIC) {
+            throw new IOException(String.format("not an interval index: %s", indexFile.getAbsolutePath()));
+        }
+        int version = buffer.getInt();
+        if (version != VERSION) {
+            throw new IOException(String.format("unsupported interval index version %d: %s", version, indexFile.getAbsolutePath()));
+        }
+
+        IntervalIndex ret = new IntervalIndex(readUTF(buffer));
+        int contigCount = buffer.getInt();
+        String[] names = new String[contigCount];
+        int[] counts = new int[contigCount];
+        for (int i = 0; i < contigCount; i++) {
+            names[i] = readUTF(buffer);
+            counts[i] = buffer.getInt();
+        }
+
+        int offset = (buffer.position() + 3) & ~3;
+        for (int i = 0; i < contigCount; i++) {
+            Contig contig = new Contig(names[i], slice(buffer, offset, counts[i]), slice(buffer, offset + 4 * counts[i], counts[i]));
+            offset += 8 * counts[i];
+            ret.contigs.put(names[i], contig);
+            ret.size += contig.size();
+            ret.territory += contig.getTerritory();
+        }
+        return ret;
+    }
+
+    private static IntBuffer slice(ByteBuffer buffer, int offset, int count) {
+        ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position(offset);
+        duplicate.limit(offset + 4 * count);
+        return duplicate.slice().asIntBuffer();
+    }
+
+    private static String readUTF(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the contig, or null when the interval list has nothing on it
+     */
+    public Contig getContig(String contig) {
+        return contigs.get(contig);
+    }
+
+    public Collection<Contig> getContigs() {
+        return contigs.values();
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long getTerritory() {
+        return territory;
+    }
+
+    public boolean overlaps(String contig, int start, int end) {
+        Contig c = contigs.get(contig);
+        return c != null && c.overlaps(start, end);
+    }
+
+    public boolean contains(String contig, int start, int end) {
+        Contig c = contigs.get(contig);
+        return c != null && c.contains(start, end);
+    }
+
+    public int distanceToNearest(String contig, int start, int end) {
+        Contig c = contigs.get(contig);
+        return c != null ? c.distanceToNearest(start, end) : Integer.MAX_VALUE;
+    }
+
+    /**
+     * Merged intervals of one contig. Positions are 1-based and inclusive, as in the interval_list.
+     */
+    public static class Contig {
+
+        private final String name;
+
+        private final IntBuffer starts;
+
+        private final IntBuffer ends;
+
+        private final int size;
+
+        Contig(String name, IntBuffer starts, IntBuffer ends) {
+            super();
+            this.name = name;
+            this.starts = starts;
+            this.ends = ends;
+            this.size = starts.limit();
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public int getStart(int idx) {
+            return starts.get(idx);
+        }
+
+        public int getEnd(int idx) {
+            return ends.get(idx);
+        }
+
+        public int getLength(int idx) {
+            return ends.get(idx) - starts.get(idx) + 1;
+        }
+
+        public long getTerritory() {
+            long ret = 0L;
+            for (int i = 0; i < size; i++) {
+                ret += getLength(i);
+            }
+            return ret;
+        }
+
+        /**
+         * @return the last interval starting at or before position, or -1
+         */
+        public int floorIndex(int position) {
+            int low = 0;
+            int high = size - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (starts.get(mid) <= position) {
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return high;
+        }
+
+        /**
+         * @return the first interval ending at or after position, or size() if there is none
+         */
+        public int ceilingIndex(int position) {
+            int idx = floorIndex(position);
+            return idx >= 0 && ends.get(idx) >= position ? idx : idx + 1;
+        }
+
+        public boolean overlaps(int start, int end) {
+            int idx = floorIndex(end);
+            return idx >= 0 && ends.get(idx) >= start;
+        }
+
+        /**
+         * @return true when [start, end] lies entirely inside a single interval
+         */
+        public boolean contains(int start, int end) {
+            int idx = floorIndex(start);
+            return idx >= 0 && ends.get(idx) >= end;
+        }
+
+        /**
+         * @return the number of bases of [start, end] that fall inside intervals
+         */
+        public int overlapBases(int start, int end) {
+            int ret = 0;
+            for (int idx = floorIndex(end); idx >= 0 && ends.get(idx) >= start; idx--) {
+                ret += Math.min(end, ends.get(idx)) - Math.max(start, starts.get(idx)) + 1;
+            }
+            return ret;
+        }
+
+        /**
+         * @return the interval closest to [start, end], an overlapping one if any, or -1 when the contig is empty
+         */
+        public int nearest(int start, int end) {
+            if (size == 0) {
+                return -1;
+            }
+            int idx = floorIndex(end);
+            if (idx < 0) {
+                return 0;
+            }
+            if (ends.get(idx) >= start || idx + 1 >= size) {
+                return idx;
+            }
+            return start - ends.get(idx) <= starts.get(idx + 1) - end ? idx : idx + 1;
+        }
+
+        /**
+         * @return 0 when [start, end] overlaps an interval, otherwise the gap to the closest one
+         */
+        public int distanceToNearest(int start, int end) {
+            int idx = nearest(start, end);
+            if (idx < 0) {
+                return Integer.MAX_VALUE;
+            }
+            if (starts.get(idx) > end) {
+                return starts.get(idx) - end;
+            }
+            if (ends.get(idx) < start) {
+                return start - ends.get(idx);
+            }
+            return 0;
+        }
+
+    }
+
+}
@@ -0,0 +1,112 @@
+package edu.unc.mapseq.commons.bergmips.alignment.metrics;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A Picard interval_list parsed into sorted, merged, 1-based inclusive start/end arrays per contig. This is the build input for
+ * {@link IntervalIndex}; queries go through the index.
+ */
+public class IntervalList {
+
+    private final String name;
+
+    private final Map<String, int[]> starts = new LinkedHashMap<String, int[]>();
+
+    private final Map<String, int[]> ends = new LinkedHashMap<String, int[]>();
+
+    private long territory = 0L;
+
+    public IntervalList(String name) {
+        super();
+        this.name = name;
+    }
+
+    public static IntervalList parse(File intervalListFile) throws IOException {
+        String name = intervalListFile.getName();
+        if (name.contains(".")) {
+            name = name.substring(0, name.lastIndexOf('.'));
+        }
+        IntervalList ret = new IntervalList(name);
+
+        Map<String, List<int[]>> intervalsByContig = new LinkedHashMap<String, List<int[]>>();
+        try (BufferedReader br = Files.newBufferedReader(intervalListFile.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                if (line.isEmpty() || line.startsWith("@")) {
+                    continue;
+                }
+                String[] columns = line.split("\t");
+                if (!intervalsByContig.containsKey(columns[0])) {
+                    intervalsByContig.put(columns[0], new ArrayList<int[]>());
+                }
+                intervalsByContig.get(columns[0]).add(new int[] { Integer.parseInt(columns[1]), Integer.parseInt(columns[2]) });
+            }
+        }
+
+        for (Map.Entry<String, List<int[]>> entry : intervalsByContig.entrySet()) {
+            int[][] intervals = entry.getValue().toArray(new int[0][]);
+            Arrays.sort(intervals, (a, b) -> Integer.compare(a[0], b[0]));
+            int[] contigStarts = new int[intervals.length];
+            int[] contigEnds = new int[intervals.length];
+            int count = 0;
+            for (int[] interval : intervals) {
+                if (count > 0 && interval[0] <= contigEnds[count - 1] + 1) {
+                    contigEnds[count - 1] = Math.max(contigEnds[count - 1], interval[1]);
+                } else {
+                    contigStarts[count] = interval[0];
+                    contigEnds[count] = interval[1];
+                    count++;
+                }
+            }
+            ret.add(entry.getKey(), Arrays.copyOf(contigStarts, count), Arrays.copyOf(contigEnds, count));
+        }
+        return ret;
+    }
+
+    public void add(String contig, int[] contigStarts, int[] contigEnds) {
+        starts.put(contig, contigStarts);
+        ends.put(contig, contigEnds);
+        for (int i = 0; i < contigStarts.length; i++) {
+            territory += contigEnds[i] - contigStarts[i] + 1;
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Set<String> getContigs() {
+        return starts.keySet();
+    }
+
+    public int[] getStarts(String contig) {
+        return starts.get(contig);
+    }
+
+    public int[] getEnds(String contig) {
+        return ends.get(contig);
+    }
+
+    public int size() {
+        int ret = 0;
+        for (int[] contigStarts : starts.values()) {
+            ret += contigStarts.length;
+        }
+        return ret;
+    }
+
+    public long getTerritory() {
+        return territory;
+    }
+
+}
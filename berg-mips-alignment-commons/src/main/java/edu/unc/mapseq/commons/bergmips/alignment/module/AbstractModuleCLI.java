@@ -0,0 +1,98 @@
+package edu.unc.mapseq.commons.bergmips.alignment.module;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.lang3.StringUtils;
+import org.renci.common.exec.BashExecutor;
+import org.renci.common.exec.CommandInput;
+import org.renci.common.exec.CommandOutput;
+import org.renci.common.exec.ExecutorException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Base class for the pipeline-local modules that are run on the compute node by mapseq-run-module. Arguments are passed the same way as the
+ * stock mapseq module CLIs, as "--name value" pairs or bare "--flag" switches.
+ */
+public abstract class AbstractModuleCLI {
+
+    private static final Logger logger = LoggerFactory.getLogger(AbstractModuleCLI.class);
+
+    private final Map<String, String> arguments = new HashMap<String, String>();
+
+    public AbstractModuleCLI() {
+        super();
+    }
+
+    public abstract Integer execute() throws Exception;
+
+    public void parse(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String key = args[i];
+            if (!key.startsWith("--")) {
+                continue;
+            }
+            if (i + 1 < args.length && !args[i + 1].startsWith("--")) {
+                arguments.put(key, args[++i]);
+            } else {
+                arguments.put(key, Boolean.TRUE.toString());
+            }
+        }
+    }
+
+    public String getArgument(String name) {
+        return arguments.get(name);
+    }
+
+    public String getArgument(String name, String defaultValue) {
+        String value = arguments.get(name);
+        return StringUtils.isNotEmpty(value) ? value : defaultValue;
+    }
+
+    public String getRequiredArgument(String name) {
+        String value = arguments.get(name);
+        if (StringUtils.isEmpty(value)) {
+            throw new IllegalArgumentException(String.format("%s is required", name));
+        }
+        return value;
+    }
+
+    public boolean hasArgument(String name) {
+        return arguments.containsKey(name);
+    }
+
+    protected Integer executeCommand(String command, File workDir) {
+        logger.debug("command: {}", command);
+        CommandInput commandInput = new CommandInput();
+        commandInput.setExitImmediately(Boolean.FALSE);
+        commandInput.setCommand(command);
+        commandInput.setWorkDir(workDir);
+        File mapseqrc = new File(System.getProperty("user.home"), ".mapseqrc");
+        CommandOutput commandOutput = null;
+        try {
+            commandOutput = BashExecutor.getInstance().execute(commandInput, mapseqrc);
+            if (commandOutput.getExitCode() != 0) {
+                logger.warn("command failed: {}", command);
+                logger.warn("commandOutput.getStderr(): {}", commandOutput.getStderr());
+            }
+            return commandOutput.getExitCode();
+        } catch (ExecutorException e) {
+            logger.error(e.getMessage(), e);
+        }
+        return -1;
+    }
+
+    protected static void run(AbstractModuleCLI module, String[] args) {
+        Integer exitCode = -1;
+        try {
+            module.parse(args);
+            exitCode = module.execute();
+        } catch (Exception e) {
+            logger.error(e.getMessage(), e);
+        }
+        System.exit(exitCode);
+    }
+
+}
@@ -0,0 +1,130 @@
+package edu.unc.mapseq.commons.bergmips.alignment.module;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.unc.mapseq.commons.bergmips.alignment.ReferenceCache;
+
+/**
+ * Aligns a read pair with bwa mem and pipes the alignments straight into samtools sort, so the intermediate SAM never touches disk. The read
+ * group is applied inline by bwa and the coordinate sorted BAM is written to a temporary name before being renamed into place.
+ */
+public class BWAMEMSortCLI extends AbstractModuleCLI {
+
+    private static final Logger logger = LoggerFactory.getLogger(BWAMEMSortCLI.class);
+
+    public static final String FASTADB = "--fastaDB";
+
+    public static final String FASTQ1 = "--fastq1";
+
+    public static final String FASTQ2 = "--fastq2";
+
+    public static final String OUTPUT = "--output";
+
+    public static final String THREADS = "--threads";
+
+    public static final String SORTMEMORY = "--sortMemory";
+
+    public static final String VERBOSITY = "--verbosity";
+
+    public static final String MARKSHORTERSPLITHITS = "--markShorterSplitHits";
+
+    public static final String REFERENCECACHEDIRECTORY = "--referenceCacheDirectory";
+
+    public static final String REFERENCECACHEKEY = "--referenceCacheKey";
+
+    public static final String READGROUPID = "--readGroupId";
+
+    public static final String READGROUPLIBRARY = "--readGroupLibrary";
+
+    public static final String READGROUPPLATFORM = "--readGroupPlatform";
+
+    public static final String READGROUPPLATFORMUNIT = "--readGroupPlatformUnit";
+
+    public static final String READGROUPSAMPLENAME = "--readGroupSampleName";
+
+    public static final String READGROUPCENTERNAME = "--readGroupCenterName";
+
+    public BWAMEMSortCLI() {
+        super();
+    }
+
+    @Override
+    public Integer execute() throws Exception {
+        logger.debug("ENTERING execute()");
+
+        File output = new File(getRequiredArgument(OUTPUT));
+        File tmpOutput = getTmpOutput(output);
+        File tmpDir = new File(output.getParentFile(), "tmp");
+        if (!tmpDir.exists()) {
+            tmpDir.mkdirs();
+        }
+
+        String fastaDB = getRequiredArgument(FASTADB);
+        if (hasArgument(REFERENCECACHEDIRECTORY) && hasArgument(REFERENCECACHEKEY)) {
+            try {
+                File referenceSequence = new File(ReferenceCache.expand(fastaDB));
+                File cachedDirectory = ReferenceCache.stage(ReferenceCache.getReferenceFiles(referenceSequence),
+                        new File(ReferenceCache.expand(getArgument(REFERENCECACHEDIRECTORY))), getArgument(REFERENCECACHEKEY));
+                fastaDB = new File(cachedDirectory, referenceSequence.getName()).getAbsolutePath();
+            } catch (IOException e) {
+                logger.warn("could not use node-local reference cache, falling back to shared reference", e);
+            }
+        }
+
+        String command = buildCommand(fastaDB, output);
+        Integer exitCode = executeCommand(command, output.getParentFile());
+        if (exitCode != 0 && tmpOutput.exists()) {
+            tmpOutput.delete();
+        }
+        return exitCode;
+    }
+
+    /**
+     * The bwa mem | samtools sort pipeline run by bash. The read group values come from sample and flowcell names, so the read group is
+     * single quoted with any quote in it escaped, and nothing in a name is run by the shell.
+     */
+    public String buildCommand(String fastaDB, File output) {
+        File tmpDir = new File(output.getParentFile(), "tmp");
+        String threads = getArgument(THREADS, "1");
+
+        StringBuilder readGroup = new StringBuilder("@RG");
+        readGroup.append("\\tID:").append(getRequiredArgument(READGROUPID));
+        readGroup.append("\\tLB:").append(getRequiredArgument(READGROUPLIBRARY));
+        readGroup.append("\\tPL:").append(getRequiredArgument(READGROUPPLATFORM));
+        readGroup.append("\\tPU:").append(getArgument(READGROUPPLATFORMUNIT, getRequiredArgument(READGROUPID)));
+        readGroup.append("\\tSM:").append(getRequiredArgument(READGROUPSAMPLENAME));
+        readGroup.append("\\tCN:").append(getArgument(READGROUPCENTERNAME, "UNC"));
+
+        StringBuilder command = new StringBuilder("set -o pipefail\n");
+        command.append("$BERGMIPSALIGNMENT_BWA_HOME/bin/bwa mem");
+        if (hasArgument(MARKSHORTERSPLITHITS)) {
+            command.append(" -M");
+        }
+        command.append(String.format(" -v %s -t %s -R %s %s %s %s", getArgument(VERBOSITY, "1"), threads, quote(readGroup.toString()), fastaDB,
+                getRequiredArgument(FASTQ1), getRequiredArgument(FASTQ2)));
+        command.append(String.format(" | $BERGMIPSALIGNMENT_SAMTOOLS_HOME/bin/samtools sort -@ %s -m %s -T %s -O bam -o %s -", threads,
+                getArgument(SORTMEMORY, "768M"), new File(tmpDir, output.getName()).getAbsolutePath(), getTmpOutput(output).getAbsolutePath()));
+        command.append(String.format(" && mv %s %s%n", getTmpOutput(output).getAbsolutePath(), output.getAbsolutePath()));
+        return command.toString();
+    }
+
+    private File getTmpOutput(File output) {
+        return new File(output.getParentFile(), String.format("%s.tmp", output.getName()));
+    }
+
+    /**
+     * @return the value as one single quoted bash word
+     */
+    public static String quote(String value) {
+        return String.format("'%s'", value.replace("'", "'\\''"));
+    }
+
+    public static void main(String[] args) {
+        run(new BWAMEMSortCLI(), args);
+    }
+
+}
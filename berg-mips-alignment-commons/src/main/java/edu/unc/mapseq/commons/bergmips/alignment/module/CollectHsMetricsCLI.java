@@ -0,0 +1,118 @@
+package edu.unc.mapseq.commons.bergmips.alignment.module;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Date;
+import java.util.Map;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.unc.mapseq.commons.bergmips.alignment.ReferenceCache;
+import edu.unc.mapseq.commons.bergmips.alignment.metrics.HsMetricsCalculator;
+import edu.unc.mapseq.commons.bergmips.alignment.metrics.IntervalIndex;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.ValidationStringency;
+import htsjdk.samtools.reference.IndexedFastaSequenceFile;
+import htsjdk.samtools.reference.ReferenceSequenceFile;
+
+/**
+ * In-process replacement for Picard CollectHsMetrics. The BAM is read once with {@link HsMetricsCalculator} and the result is written in
+ * Picard's metrics file layout, so downstream parsing of the .hs.metrics file is unchanged.
+ */
+public class CollectHsMetricsCLI extends AbstractModuleCLI {
+
+    private static final Logger logger = LoggerFactory.getLogger(CollectHsMetricsCLI.class);
+
+    public static final String INPUT = "--input";
+
+    public static final String OUTPUT = "--output";
+
+    public static final String REFERENCESEQUENCE = "--referenceSequence";
+
+    public static final String BAITINTERVALS = "--baitIntervals";
+
+    public static final String TARGETINTERVALS = "--targetIntervals";
+
+    public static final String MINIMUMMAPPINGQUALITY = "--minimumMappingQuality";
+
+    public static final String MINIMUMBASEQUALITY = "--minimumBaseQuality";
+
+    public static final String NEARDISTANCE = "--nearDistance";
+
+    public static final String INTERVALCACHEDIRECTORY = "--intervalCacheDirectory";
+
+    public CollectHsMetricsCLI() {
+        super();
+    }
+
+    @Override
+    public Integer execute() throws Exception {
+        logger.debug("ENTERING execute()");
+
+        File input = new File(getRequiredArgument(INPUT));
+        File output = new File(getRequiredArgument(OUTPUT));
+
+        File intervalCacheDirectory = new File(ReferenceCache.expand(
+                getArgument(INTERVALCACHEDIRECTORY, new File(System.getProperty("java.io.tmpdir"), "mapseq-interval-index").getAbsolutePath())));
+        IntervalIndex baits = IntervalIndex.open(new File(ReferenceCache.expand(getRequiredArgument(BAITINTERVALS))), intervalCacheDirectory);
+        IntervalIndex targets = IntervalIndex.open(new File(ReferenceCache.expand(getRequiredArgument(TARGETINTERVALS))),
+                intervalCacheDirectory);
+
+        HsMetricsCalculator calculator = new HsMetricsCalculator(baits, targets);
+        calculator.setMinimumMappingQuality(Integer.valueOf(getArgument(MINIMUMMAPPINGQUALITY, "20")));
+        calculator.setMinimumBaseQuality(Integer.valueOf(getArgument(MINIMUMBASEQUALITY, "20")));
+        calculator.setNearDistance(Integer.valueOf(getArgument(NEARDISTANCE, "250")));
+
+        long start = System.currentTimeMillis();
+        try (SamReader reader = SamReaderFactory.makeDefault().validationStringency(ValidationStringency.SILENT).open(input)) {
+            calculator.setGenomeSize(reader.getFileHeader().getSequenceDictionary().getReferenceLength());
+            for (SAMRecord record : reader) {
+                calculator.accept(record);
+            }
+        }
+
+        Map<String, String> metrics = null;
+        if (hasArgument(REFERENCESEQUENCE)) {
+            try (ReferenceSequenceFile reference = new IndexedFastaSequenceFile(
+                    new File(ReferenceCache.expand(getArgument(REFERENCESEQUENCE))))) {
+                metrics = calculator.getMetrics(reference);
+            }
+        } else {
+            metrics = calculator.getMetrics(null);
+        }
+        logger.info("collected hs metrics for {} in {} ms", input.getName(), System.currentTimeMillis() - start);
+
+        write(metrics, output);
+        return 0;
+    }
+
+    private void write(Map<String, String> metrics, File output) throws IOException {
+        File tmpOutput = new File(output.getParentFile(), String.format("%s.tmp", output.getName()));
+        try (BufferedWriter bw = Files.newBufferedWriter(tmpOutput.toPath(), StandardCharsets.UTF_8)) {
+            bw.write("## htsjdk.samtools.metrics.StringHeader\n");
+            bw.write(String.format("# %s %s=%s %s=%s %s=%s %s=%s%n", getClass().getSimpleName(), INPUT, getArgument(INPUT), OUTPUT,
+                    getArgument(OUTPUT), BAITINTERVALS, getArgument(BAITINTERVALS), TARGETINTERVALS, getArgument(TARGETINTERVALS)));
+            bw.write("## htsjdk.samtools.metrics.StringHeader\n");
+            bw.write(String.format("# Started on: %s%n%n", new Date()));
+            bw.write(String.format("## METRICS CLASS\t%s%n", HsMetricsCalculator.METRICS_CLASS));
+            bw.write(StringUtils.join(metrics.keySet(), "\t"));
+            bw.write("\n");
+            bw.write(StringUtils.join(metrics.values(), "\t"));
+            bw.write("\n\n");
+        }
+        Files.move(tmpOutput.toPath(), output.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public static void main(String[] args) {
+        run(new CollectHsMetricsCLI(), args);
+    }
+
+}
@@ -0,0 +1,70 @@
+package edu.unc.mapseq.commons.bergmips.alignment.module;
+
+import java.io.File;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Merges coordinate sorted chunk BAMs into a single BAM with samtools merge, writing through a temporary name. The chunks share their
+ * read group and program headers, which are combined rather than renamed, so the result matches an unscattered alignment. With
+ * --removeInputs the chunk BAMs and any listed intermediate files are deleted once the merged BAM is in place.
+ */
+public class MergeBAMCLI extends AbstractModuleCLI {
+
+    private static final Logger logger = LoggerFactory.getLogger(MergeBAMCLI.class);
+
+    public static final String INPUTS = "--inputs";
+
+    public static final String OUTPUT = "--output";
+
+    public static final String THREADS = "--threads";
+
+    public static final String REMOVEINPUTS = "--removeInputs";
+
+    public static final String INTERMEDIATES = "--intermediates";
+
+    public MergeBAMCLI() {
+        super();
+    }
+
+    @Override
+    public Integer execute() throws Exception {
+        logger.debug("ENTERING execute()");
+
+        File output = new File(getRequiredArgument(OUTPUT));
+        File tmpOutput = new File(output.getParentFile(), String.format("%s.tmp", output.getName()));
+        String[] inputs = StringUtils.split(getRequiredArgument(INPUTS), ',');
+
+        // every chunk carries the same @RG and @PG, -c -p keeps them as they are instead of suffixing the IDs and rewriting the reads
+        String command = String.format("$BERGMIPSALIGNMENT_SAMTOOLS_HOME/bin/samtools merge -f -c -p -@ %s %s %s && mv %s %s%n",
+                getArgument(THREADS, "1"), tmpOutput.getAbsolutePath(), StringUtils.join(inputs, " "), tmpOutput.getAbsolutePath(),
+                output.getAbsolutePath());
+
+        Integer exitCode = executeCommand(command, output.getParentFile());
+        if (exitCode != 0) {
+            if (tmpOutput.exists()) {
+                tmpOutput.delete();
+            }
+            return exitCode;
+        }
+
+        if (hasArgument(REMOVEINPUTS)) {
+            for (String input : inputs) {
+                new File(input).delete();
+            }
+            if (hasArgument(INTERMEDIATES)) {
+                for (String intermediate : StringUtils.split(getArgument(INTERMEDIATES), ',')) {
+                    new File(intermediate).delete();
+                }
+            }
+        }
+        return exitCode;
+    }
+
+    public static void main(String[] args) {
+        run(new MergeBAMCLI(), args);
+    }
+
+}
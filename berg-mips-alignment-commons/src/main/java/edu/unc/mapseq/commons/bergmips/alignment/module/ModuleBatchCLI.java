@@ -0,0 +1,73 @@
+package edu.unc.mapseq.commons.bergmips.alignment.module;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs a list of module invocations inside a single Condor job. Each line of the command file is "label&lt;TAB&gt;module arguments" and is
+ * handed to mapseq-run-module in turn. The exit status of every line is written to a ".status" file next to the command file, and the
+ * job exits with the status of the first failed line. With --failFast the remaining lines are not run and are recorded as "skipped".
+ */
+public class ModuleBatchCLI extends AbstractModuleCLI {
+
+    private static final Logger logger = LoggerFactory.getLogger(ModuleBatchCLI.class);
+
+    public static final String COMMANDFILE = "--commandFile";
+
+    public static final String FAILFAST = "--failFast";
+
+    public ModuleBatchCLI() {
+        super();
+    }
+
+    @Override
+    public Integer execute() throws Exception {
+        logger.debug("ENTERING execute()");
+
+        File commandFile = new File(getRequiredArgument(COMMANDFILE));
+        boolean failFast = hasArgument(FAILFAST);
+
+        List<String> lines = FileUtils.readLines(commandFile, StandardCharsets.UTF_8);
+        List<String> statusLines = new ArrayList<String>();
+
+        Integer firstFailure = null;
+        for (String line : lines) {
+            if (StringUtils.isBlank(line)) {
+                continue;
+            }
+            String label = StringUtils.substringBefore(line, "\t");
+            String invocation = StringUtils.substringAfter(line, "\t");
+
+            if (failFast && firstFailure != null) {
+                statusLines.add(String.format("%s\tskipped", label));
+                continue;
+            }
+
+            Integer exitCode = executeCommand(String.format("$MAPSEQ_CLIENT_HOME/bin/mapseq-run-module %s%n", invocation),
+                    commandFile.getParentFile());
+            logger.info("{}: exit status {}", label, exitCode);
+            statusLines.add(String.format("%s\t%d", label, exitCode));
+
+            if (exitCode != 0 && firstFailure == null) {
+                firstFailure = exitCode;
+            }
+        }
+
+        File statusFile = new File(commandFile.getParentFile(), String.format("%s.status", commandFile.getName()));
+        FileUtils.writeLines(statusFile, StandardCharsets.UTF_8.name(), statusLines);
+
+        return firstFailure == null ? 0 : firstFailure;
+    }
+
+    public static void main(String[] args) {
+        run(new ModuleBatchCLI(), args);
+    }
+
+}
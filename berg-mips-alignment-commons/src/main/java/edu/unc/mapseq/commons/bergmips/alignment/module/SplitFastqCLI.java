@@ -0,0 +1,146 @@
+package edu.unc.mapseq.commons.bergmips.alignment.module;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.unc.mapseq.commons.bergmips.alignment.FastqUtils;
+
+/**
+ * Splits a gzipped FASTQ pair into a number of chunk pairs, dealing records out round-robin so both mates of a pair always land in the
+ * same chunk. The mates' read names are compared as they go, and the split fails when the two files are out of step, leaving no chunk
+ * files behind. Chunk files are named "&lt;outputPrefix&gt;.chunk&lt;n&gt;.r1.fastq.gz" and ".r2.fastq.gz".
+ */
+public class SplitFastqCLI extends AbstractModuleCLI {
+
+    private static final Logger logger = LoggerFactory.getLogger(SplitFastqCLI.class);
+
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    public static final String FASTQ1 = "--fastq1";
+
+    public static final String FASTQ2 = "--fastq2";
+
+    public static final String OUTPUTPREFIX = "--outputPrefix";
+
+    public static final String CHUNKS = "--chunks";
+
+    public SplitFastqCLI() {
+        super();
+    }
+
+    public static File getChunkFile(String outputPrefix, int chunk, int read) {
+        return new File(String.format("%s.chunk%d.r%d.fastq.gz", outputPrefix, chunk, read));
+    }
+
+    @Override
+    public Integer execute() throws Exception {
+        logger.debug("ENTERING execute()");
+
+        String outputPrefix = getRequiredArgument(OUTPUTPREFIX);
+        int chunks = Integer.valueOf(getRequiredArgument(CHUNKS));
+
+        Writer[] r1Writers = new Writer[chunks];
+        Writer[] r2Writers = new Writer[chunks];
+        long records = 0;
+        boolean complete = false;
+
+        try (BufferedReader r1Reader = createReader(new File(getRequiredArgument(FASTQ1)));
+                BufferedReader r2Reader = createReader(new File(getRequiredArgument(FASTQ2)))) {
+
+            for (int i = 0; i < chunks; i++) {
+                r1Writers[i] = createWriter(getChunkFile(outputPrefix, i, 1));
+                r2Writers[i] = createWriter(getChunkFile(outputPrefix, i, 2));
+            }
+
+            String[] r1Record = new String[4];
+            String[] r2Record = new String[4];
+            while (readRecord(r1Reader, r1Record)) {
+                if (!readRecord(r2Reader, r2Record)) {
+                    logger.error("read 2 ended before read 1 after {} records", records);
+                    return 1;
+                }
+                if (!FastqUtils.getReadName(r1Record[0]).equals(FastqUtils.getReadName(r2Record[0]))) {
+                    logger.error("mates are out of sync at record {}: {} and {}", records, r1Record[0], r2Record[0]);
+                    return 1;
+                }
+                int chunk = (int) (records % chunks);
+                writeRecord(r1Writers[chunk], r1Record);
+                writeRecord(r2Writers[chunk], r2Record);
+                records++;
+            }
+            if (r2Reader.readLine() != null) {
+                logger.error("read 1 ended before read 2 after {} records", records);
+                return 1;
+            }
+            complete = true;
+        } finally {
+            for (int i = 0; i < chunks; i++) {
+                if (r1Writers[i] != null) {
+                    r1Writers[i].close();
+                }
+                if (r2Writers[i] != null) {
+                    r2Writers[i].close();
+                }
+            }
+            if (!complete) {
+                // a retry or a resumed attempt must not mistake a partial split for finished chunks
+                for (int i = 0; i < chunks; i++) {
+                    FileUtils.deleteQuietly(getChunkFile(outputPrefix, i, 1));
+                    FileUtils.deleteQuietly(getChunkFile(outputPrefix, i, 2));
+                }
+            }
+        }
+
+        logger.info("split {} records into {} chunks", records, chunks);
+        return 0;
+    }
+
+    private BufferedReader createReader(File f) throws IOException {
+        return new BufferedReader(
+                new InputStreamReader(new GZIPInputStream(new FileInputStream(f), BUFFER_SIZE), StandardCharsets.US_ASCII), BUFFER_SIZE);
+    }
+
+    private Writer createWriter(File f) throws IOException {
+        return new BufferedWriter(
+                new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(f), BUFFER_SIZE), StandardCharsets.US_ASCII), BUFFER_SIZE);
+    }
+
+    private boolean readRecord(BufferedReader reader, String[] record) throws IOException {
+        for (int i = 0; i < 4; i++) {
+            record[i] = reader.readLine();
+            if (record[i] == null) {
+                if (i > 0) {
+                    throw new IOException("truncated FASTQ record");
+                }
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void writeRecord(Writer writer, String[] record) throws IOException {
+        for (String line : record) {
+            writer.write(line);
+            writer.write('\n');
+        }
+    }
+
+    public static void main(String[] args) {
+        run(new SplitFastqCLI(), args);
+    }
+
+}
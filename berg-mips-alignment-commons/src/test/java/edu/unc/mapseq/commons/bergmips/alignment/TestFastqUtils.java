@@ -0,0 +1,21 @@
+package edu.unc.mapseq.commons.bergmips.alignment;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class TestFastqUtils {
+
+    @Test
+    public void testGetReadName() {
+        assertEquals("HWI-ST1:1:FC1:1:1101:1000:2000", FastqUtils.getReadName("@HWI-ST1:1:FC1:1:1101:1000:2000"));
+        assertEquals("read0", FastqUtils.getReadName("@read0/1"));
+        assertEquals("read0", FastqUtils.getReadName("@read0/2"));
+        assertEquals("read0", FastqUtils.getReadName("@read0 1:N:0:ACGT"));
+        assertEquals("read0", FastqUtils.getReadName("@read0/2\t1:N:0:ACGT"));
+        // only mate suffixes are stripped
+        assertEquals("read0/3", FastqUtils.getReadName("@read0/3"));
+        assertEquals("/1", FastqUtils.getReadName("@/1"));
+    }
+
+}
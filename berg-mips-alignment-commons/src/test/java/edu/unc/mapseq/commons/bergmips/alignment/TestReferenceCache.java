@@ -0,0 +1,127 @@
+package edu.unc.mapseq.commons.bergmips.alignment;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestReferenceCache {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testReferenceFiles() throws Exception {
+        File fasta = write("hg19.fa", ">chr1\nACGT\n");
+        write("hg19.fa.bwt", "bwt");
+        write("hg19.fa.fai", "chr1\t4\t6\t4\t5\n");
+        assertEquals(Arrays.asList(fasta, new File(folder.getRoot(), "hg19.fa.bwt"), new File(folder.getRoot(), "hg19.fa.fai")),
+                ReferenceCache.getReferenceFiles(fasta));
+    }
+
+    @Test
+    public void testComputeKey() throws Exception {
+        File fasta = write("hg19.fa", ">chr1\nACGT\n");
+        File index = write("hg19.fa.bwt", "bwt");
+        String key = ReferenceCache.computeKey(Arrays.asList(fasta, index));
+        assertEquals(16, key.length());
+        assertEquals(key, ReferenceCache.computeKey(Arrays.asList(fasta, index)));
+
+        // same size, different content, and a later mtime so the memo and the sidecar are not reused
+        FileUtils.writeStringToFile(fasta, ">chr1\nACGA\n", StandardCharsets.UTF_8);
+        fasta.setLastModified(fasta.lastModified() + 60000L);
+        assertNotEquals(key, ReferenceCache.computeKey(Arrays.asList(fasta, index)));
+    }
+
+    @Test
+    public void testChecksumSidecar() throws Exception {
+        File fasta = write("hg19.fa", ">chr1\nACGT\n");
+        String checksum = ReferenceCache.checksum(fasta);
+        assertEquals(40, checksum.length());
+
+        File sidecar = new File(folder.getRoot(), "hg19.fa.sha1");
+        assertTrue(sidecar.exists());
+        String stamp = String.format("%d:%d", fasta.length(), fasta.lastModified());
+        assertEquals(String.format("%s %s", stamp, checksum), FileUtils.readFileToString(sidecar, StandardCharsets.UTF_8).trim());
+
+        // a sidecar matching the size and mtime is trusted over the contents, as it is when a fresh JVM has no memo
+        File other = write("other.fa", ">chr2\nTTTT\n");
+        String otherStamp = String.format("%d:%d", other.length(), other.lastModified());
+        FileUtils.writeStringToFile(new File(folder.getRoot(), "other.fa.sha1"), String.format("%s %s%n", otherStamp, "cafe"),
+                StandardCharsets.UTF_8);
+        assertEquals("cafe", ReferenceCache.checksum(other));
+    }
+
+    @Test
+    public void testConcurrentStage() throws Exception {
+        final List<File> files = Arrays.asList(write("hg19.fa", ">chr1\nACGT\n"), write("hg19.fa.bwt", "bwt"));
+        final String key = ReferenceCache.computeKey(files);
+        final File cacheRoot = new File(folder.getRoot(), "cache");
+
+        int threads = 8;
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService es = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<File>> futures = new ArrayList<Future<File>>();
+            for (int i = 0; i < threads; i++) {
+                futures.add(es.submit(new Callable<File>() {
+                    @Override
+                    public File call() throws Exception {
+                        start.await();
+                        return ReferenceCache.stage(files, cacheRoot, key);
+                    }
+                }));
+            }
+            start.countDown();
+            for (Future<File> future : futures) {
+                assertEquals(new File(cacheRoot, key), future.get());
+            }
+        } finally {
+            es.shutdownNow();
+        }
+
+        File target = new File(cacheRoot, key);
+        assertTrue(new File(target, ReferenceCache.COMPLETE_MARKER).exists());
+        assertEquals(">chr1\nACGT\n", FileUtils.readFileToString(new File(target, "hg19.fa"), StandardCharsets.UTF_8));
+        // only the key directory and its lock file are left, no temporary directories
+        for (File f : cacheRoot.listFiles()) {
+            assertTrue(f.getName(), f.equals(target) || f.getName().equals(String.format(".%s.lock", key)));
+        }
+    }
+
+    @Test
+    public void testIncompleteCacheReplaced() throws Exception {
+        List<File> files = Arrays.asList(write("hg19.fa", ">chr1\nACGT\n"));
+        String key = ReferenceCache.computeKey(files);
+        File cacheRoot = new File(folder.getRoot(), "cache");
+        File target = new File(cacheRoot, key);
+        target.mkdirs();
+        FileUtils.writeStringToFile(new File(target, "hg19.fa"), ">chr1\nAC", StandardCharsets.UTF_8);
+
+        ReferenceCache.stage(files, cacheRoot, key);
+        assertTrue(new File(target, ReferenceCache.COMPLETE_MARKER).exists());
+        assertEquals(">chr1\nACGT\n", FileUtils.readFileToString(new File(target, "hg19.fa"), StandardCharsets.UTF_8));
+    }
+
+    private File write(String name, String content) throws Exception {
+        File f = new File(folder.getRoot(), name);
+        FileUtils.writeStringToFile(f, content, StandardCharsets.UTF_8);
+        return f;
+    }
+
+}
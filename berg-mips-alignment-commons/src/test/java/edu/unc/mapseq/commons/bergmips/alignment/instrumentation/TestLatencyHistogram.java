@@ -0,0 +1,49 @@
+package edu.unc.mapseq.commons.bergmips.alignment.instrumentation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+public class TestLatencyHistogram {
+
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+        assertEquals(1000L, histogram.getCount());
+        assertEquals(500.5D, histogram.getMean(), 0.001D);
+        assertEquals(1000L, histogram.getMax());
+        // bucket bounds, within a factor of two of the true values
+        assertEquals(511L, histogram.getPercentile(0.5));
+        assertEquals(1000L, histogram.getPercentile(0.99));
+        assertEquals(0L, new LatencyHistogram().getPercentile(0.5));
+    }
+
+    @Test
+    public void testMBean() throws Exception {
+        PipelineMetrics.timer("test.phase").record(42L);
+        PipelineMetrics.counter("test.count").incrementAndGet();
+        PipelineMetrics.gauge("test.depth", () -> 7);
+        PipelineMetrics.counter("other.count").incrementAndGet();
+
+        PipelineMetricsMBean mbean = new PipelineMetricsMBean("test.");
+        mbean.register("Test");
+        try {
+            ObjectName objectName = new ObjectName(PipelineMetricsMBean.DOMAIN + ":type=Metrics,name=Test");
+            assertEquals(1L, ManagementFactory.getPlatformMBeanServer().getAttribute(objectName, "test.phase.count"));
+            assertEquals(42L, ManagementFactory.getPlatformMBeanServer().getAttribute(objectName, "test.phase.max"));
+            assertEquals(7, ManagementFactory.getPlatformMBeanServer().getAttribute(objectName, "test.depth"));
+            assertTrue(ManagementFactory.getPlatformMBeanServer().getMBeanInfo(objectName).getAttributes().length == 8);
+        } finally {
+            mbean.unregister();
+        }
+    }
+
+}
@@ -0,0 +1,175 @@
+package edu.unc.mapseq.commons.bergmips.alignment.metrics;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.apache.commons.lang3.StringUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceRecord;
+
+public class TestHsMetricsCalculator {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private SAMFileHeader header;
+
+    private IntervalIndex intervals;
+
+    @Before
+    public void setup() throws Exception {
+        header = new SAMFileHeader();
+        header.setSortOrder(SAMFileHeader.SortOrder.coordinate);
+        header.addSequence(new SAMSequenceRecord("1", 1000));
+
+        File intervalList = folder.newFile("baits.interval_list");
+        Files.write(intervalList.toPath(), Arrays.asList("@HD\tVN:1.5", "@SQ\tSN:1\tLN:1000", "1\t101\t200\t+\tt1", "1\t301\t400\t+\tt2"),
+                StandardCharsets.UTF_8);
+        intervals = IntervalIndex.open(intervalList, folder.newFolder("cache"));
+    }
+
+    private SAMRecord createRecord(String name, int start, int baseQuality) {
+        SAMRecord record = new SAMRecord(header);
+        record.setReadName(name);
+        record.setReferenceName("1");
+        record.setAlignmentStart(start);
+        record.setCigarString("50M");
+        record.setMappingQuality(60);
+        record.setReadString(StringUtils.repeat("A", 50));
+        byte[] qualities = new byte[50];
+        Arrays.fill(qualities, (byte) baseQuality);
+        record.setBaseQualities(qualities);
+        return record;
+    }
+
+    @Test
+    public void testColumns() {
+        HsMetricsCalculator calculator = new HsMetricsCalculator(intervals, intervals);
+        calculator.setGenomeSize(1000L);
+
+        // on target, the first 10 bases below the base quality cut off
+        SAMRecord record = createRecord("r1", 101, 30);
+        byte[] qualities = record.getBaseQualities().clone();
+        Arrays.fill(qualities, 0, 10, (byte) 10);
+        record.setBaseQualities(qualities);
+        calculator.accept(record);
+
+        // 20 bases on the end of t1, 30 past it
+        calculator.accept(createRecord("r2", 181, 30));
+
+        record = createRecord("r3", 301, 30);
+        record.setDuplicateReadFlag(true);
+        calculator.accept(record);
+
+        record = createRecord("r4", 311, 30);
+        record.setMappingQuality(10);
+        calculator.accept(record);
+
+        // more than nearDistance from t2
+        calculator.accept(createRecord("r5", 700, 30));
+
+        record = createRecord("r6", 0, 30);
+        record.setReferenceName(SAMRecord.NO_ALIGNMENT_REFERENCE_NAME);
+        record.setCigarString(SAMRecord.NO_ALIGNMENT_CIGAR);
+        record.setReadUnmappedFlag(true);
+        calculator.accept(record);
+
+        record = createRecord("r7", 101, 30);
+        record.setReadFailsVendorQualityCheckFlag(true);
+        calculator.accept(record);
+
+        record = createRecord("r8", 101, 30);
+        record.setNotPrimaryAlignmentFlag(true);
+        calculator.accept(record);
+
+        Map<String, String> metrics = calculator.getMetrics(null);
+        assertEquals(HsMetricsCalculator.COLUMNS.size(), metrics.size());
+
+        assertEquals("baits", metrics.get("BAIT_SET"));
+        assertEquals("1000", metrics.get("GENOME_SIZE"));
+        assertEquals("200", metrics.get("BAIT_TERRITORY"));
+        assertEquals("200", metrics.get("TARGET_TERRITORY"));
+        assertEquals("1", metrics.get("BAIT_DESIGN_EFFICIENCY"));
+        assertEquals("7", metrics.get("TOTAL_READS"));
+        assertEquals("6", metrics.get("PF_READS"));
+        assertEquals("5", metrics.get("PF_UNIQUE_READS"));
+        assertEquals("0.857143", metrics.get("PCT_PF_READS"));
+        assertEquals("0.714286", metrics.get("PCT_PF_UQ_READS"));
+        assertEquals("4", metrics.get("PF_UQ_READS_ALIGNED"));
+        assertEquals("0.8", metrics.get("PCT_PF_UQ_READS_ALIGNED"));
+        assertEquals("250", metrics.get("PF_BASES_ALIGNED"));
+        assertEquals("200", metrics.get("PF_UQ_BASES_ALIGNED"));
+        assertEquals("120", metrics.get("ON_BAIT_BASES"));
+        assertEquals("30", metrics.get("NEAR_BAIT_BASES"));
+        assertEquals("50", metrics.get("OFF_BAIT_BASES"));
+        assertEquals("120", metrics.get("ON_TARGET_BASES"));
+        assertEquals("0.75", metrics.get("PCT_SELECTED_BASES"));
+        assertEquals("0.25", metrics.get("PCT_OFF_BAIT"));
+        assertEquals("0.8", metrics.get("ON_BAIT_VS_SELECTED"));
+        assertEquals("0.6", metrics.get("MEAN_BAIT_COVERAGE"));
+        assertEquals("0.3", metrics.get("MEAN_TARGET_COVERAGE"));
+        assertEquals("0", metrics.get("MEDIAN_TARGET_COVERAGE"));
+        assertEquals("0.4", metrics.get("PCT_USABLE_BASES_ON_BAIT"));
+        assertEquals("0.4", metrics.get("PCT_USABLE_BASES_ON_TARGET"));
+        assertEquals("3", metrics.get("FOLD_ENRICHMENT"));
+        assertEquals("0.5", metrics.get("ZERO_CVG_TARGETS_PCT"));
+        assertEquals("0.2", metrics.get("PCT_EXC_DUPE"));
+        assertEquals("0.2", metrics.get("PCT_EXC_MAPQ"));
+        assertEquals("0.04", metrics.get("PCT_EXC_BASEQ"));
+        assertEquals("0", metrics.get("PCT_EXC_OVERLAP"));
+        assertEquals("0.32", metrics.get("PCT_EXC_OFF_TARGET"));
+        assertEquals("0.3", metrics.get("FOLD_80_BASE_PENALTY"));
+        assertEquals("0.3", metrics.get("PCT_TARGET_BASES_1X"));
+        assertEquals("0", metrics.get("PCT_TARGET_BASES_2X"));
+        assertEquals("0", metrics.get("PCT_TARGET_BASES_100X"));
+
+        // unpaired, no reference and not computed
+        for (String column : Arrays.asList("HS_LIBRARY_SIZE", "AT_DROPOUT", "GC_DROPOUT", "HS_PENALTY_10X", "HS_PENALTY_100X",
+                "HET_SNP_SENSITIVITY", "HET_SNP_Q")) {
+            assertEquals(column, "", metrics.get(column));
+        }
+    }
+
+    @Test
+    public void testOverlappingPair() {
+        HsMetricsCalculator calculator = new HsMetricsCalculator(intervals, intervals);
+        calculator.setGenomeSize(1000L);
+
+        SAMRecord first = createRecord("p1", 101, 30);
+        first.setReadPairedFlag(true);
+        first.setFirstOfPairFlag(true);
+        first.setMateReferenceName("1");
+        first.setMateAlignmentStart(131);
+        first.setAttribute("MC", "50M");
+        calculator.accept(first);
+
+        // bases 131-150 were already counted from the first of pair
+        SAMRecord second = createRecord("p1", 131, 30);
+        second.setReadPairedFlag(true);
+        second.setSecondOfPairFlag(true);
+        second.setMateReferenceName("1");
+        second.setMateAlignmentStart(101);
+        second.setAttribute("MC", "50M");
+        calculator.accept(second);
+
+        Map<String, String> metrics = calculator.getMetrics(null);
+        assertEquals("100", metrics.get("ON_TARGET_BASES"));
+        assertEquals("0.2", metrics.get("PCT_EXC_OVERLAP"));
+        assertEquals("0.4", metrics.get("MEAN_TARGET_COVERAGE"));
+        assertEquals("0.4", metrics.get("PCT_TARGET_BASES_1X"));
+        // one selected pair and no duplicates
+        assertEquals("", metrics.get("HS_LIBRARY_SIZE"));
+    }
+
+}
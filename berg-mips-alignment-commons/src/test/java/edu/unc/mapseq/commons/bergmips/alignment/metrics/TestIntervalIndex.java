@@ -0,0 +1,72 @@
+package edu.unc.mapseq.commons.bergmips.alignment.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestIntervalIndex {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private IntervalIndex createIndex() throws Exception {
+        File intervalList = folder.newFile("test.interval_list");
+        Files.write(intervalList.toPath(),
+                Arrays.asList("@HD\tVN:1.5", "@SQ\tSN:1\tLN:1000", "1\t500\t600\t+\tc", "1\t100\t200\t+\ta", "1\t150\t250\t+\tb",
+                        "2\t10\t20\t+\td"),
+                StandardCharsets.UTF_8);
+        return IntervalIndex.open(intervalList, folder.newFolder("cache"));
+    }
+
+    @Test
+    public void testBuild() throws Exception {
+        IntervalIndex index = createIndex();
+        assertEquals("test", index.getName());
+        assertEquals(3, index.size());
+        assertEquals(151 + 101 + 11, index.getTerritory());
+
+        IntervalIndex.Contig contig = index.getContig("1");
+        assertEquals(2, contig.size());
+        assertEquals(100, contig.getStart(0));
+        assertEquals(250, contig.getEnd(0));
+        assertNull(index.getContig("3"));
+    }
+
+    @Test
+    public void testQueries() throws Exception {
+        IntervalIndex index = createIndex();
+        IntervalIndex.Contig contig = index.getContig("1");
+
+        assertTrue(contig.overlaps(240, 300));
+        assertFalse(contig.overlaps(251, 499));
+        assertTrue(contig.contains(120, 240));
+        assertFalse(contig.contains(240, 260));
+        assertEquals(11 + 1, contig.overlapBases(240, 500));
+
+        assertEquals(0, contig.nearest(260, 300));
+        assertEquals(1, contig.nearest(400, 450));
+        assertEquals(50, contig.distanceToNearest(400, 450));
+        assertEquals(0, index.distanceToNearest("2", 15, 15));
+        assertEquals(Integer.MAX_VALUE, index.distanceToNearest("3", 15, 15));
+        assertEquals(2, contig.ceilingIndex(601));
+    }
+
+    @Test
+    public void testCacheReuse() throws Exception {
+        IntervalIndex index = createIndex();
+        File[] indexFiles = new File(folder.getRoot(), "cache").listFiles();
+        assertEquals(1, indexFiles.length);
+        assertEquals(index.getTerritory(), IntervalIndex.map(indexFiles[0]).getTerritory());
+    }
+
+}
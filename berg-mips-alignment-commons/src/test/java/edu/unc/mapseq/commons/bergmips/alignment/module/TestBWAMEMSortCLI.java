@@ -0,0 +1,47 @@
+package edu.unc.mapseq.commons.bergmips.alignment.module;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestBWAMEMSortCLI {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testQuote() throws Exception {
+        String value = "@RG\\tSM:O'Brien'; touch pwned; echo '";
+        File output = folder.newFile("quote.out");
+        Process process = new ProcessBuilder("/bin/bash", "-c", String.format("printf %%s %s", BWAMEMSortCLI.quote(value)))
+                .directory(folder.getRoot()).redirectOutput(output).start();
+        assertEquals(0, process.waitFor());
+        assertEquals(value, new String(Files.readAllBytes(output.toPath()), StandardCharsets.UTF_8));
+        assertFalse(new File(folder.getRoot(), "pwned").exists());
+    }
+
+    @Test
+    public void testBuildCommand() {
+        BWAMEMSortCLI module = new BWAMEMSortCLI();
+        module.parse(new String[] { BWAMEMSortCLI.FASTQ1, "/data/s1_R1.fastq.gz", BWAMEMSortCLI.FASTQ2, "/data/s1_R2.fastq.gz",
+                BWAMEMSortCLI.THREADS, "4", BWAMEMSortCLI.READGROUPID, "FC1-L001", BWAMEMSortCLI.READGROUPLIBRARY, "O'Brien.ACGT",
+                BWAMEMSortCLI.READGROUPPLATFORM, "Illumina", BWAMEMSortCLI.READGROUPSAMPLENAME, "O'Brien" });
+        String command = module.buildCommand("/ref/hg19.fa", new File("/out/s1.bam"));
+
+        assertTrue(command.startsWith("set -o pipefail\n$BERGMIPSALIGNMENT_BWA_HOME/bin/bwa mem -v 1 -t 4 "
+                + "-R '@RG\\tID:FC1-L001\\tLB:O'\\''Brien.ACGT\\tPL:Illumina\\tPU:FC1-L001\\tSM:O'\\''Brien\\tCN:UNC' "
+                + "/ref/hg19.fa /data/s1_R1.fastq.gz /data/s1_R2.fastq.gz"));
+        assertTrue(command.contains(
+                "| $BERGMIPSALIGNMENT_SAMTOOLS_HOME/bin/samtools sort -@ 4 -m 768M -T /out/tmp/s1.bam -O bam -o /out/s1.bam.tmp -"));
+        assertTrue(command.contains("&& mv /out/s1.bam.tmp /out/s1.bam"));
+    }
+
+}
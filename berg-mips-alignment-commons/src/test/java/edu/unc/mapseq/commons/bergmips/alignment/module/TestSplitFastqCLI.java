@@ -0,0 +1,132 @@
+package edu.unc.mapseq.commons.bergmips.alignment.module;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestSplitFastqCLI {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testRoundRobin() throws Exception {
+        File fastq1 = writeFastq("r1.fastq.gz", 7, "/1", 0);
+        File fastq2 = writeFastq("r2.fastq.gz", 7, "/2", 0);
+        String outputPrefix = new File(folder.getRoot(), "sample").getAbsolutePath();
+
+        assertEquals(Integer.valueOf(0), split(fastq1, fastq2, outputPrefix, 3));
+
+        int[] expected = new int[] { 3, 2, 2 };
+        for (int chunk = 0; chunk < 3; chunk++) {
+            List<String> r1Headers = readHeaders(SplitFastqCLI.getChunkFile(outputPrefix, chunk, 1));
+            List<String> r2Headers = readHeaders(SplitFastqCLI.getChunkFile(outputPrefix, chunk, 2));
+            assertEquals(expected[chunk], r1Headers.size());
+            assertEquals(expected[chunk], r2Headers.size());
+            for (int i = 0; i < r1Headers.size(); i++) {
+                // records are dealt out in turn, so chunk n holds records n, n + chunks, ...
+                assertEquals(String.format("@read%d/1", chunk + i * 3), r1Headers.get(i));
+                assertEquals(String.format("@read%d/2", chunk + i * 3), r2Headers.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void testMismatchedMates() throws Exception {
+        File fastq1 = writeFastq("r1.fastq.gz", 5, "/1", 0);
+        File fastq2 = writeFastq("r2.fastq.gz", 5, "/2", 1);
+        String outputPrefix = new File(folder.getRoot(), "sample").getAbsolutePath();
+
+        assertEquals(Integer.valueOf(1), split(fastq1, fastq2, outputPrefix, 2));
+        assertNoChunks(outputPrefix, 2);
+    }
+
+    @Test
+    public void testShortMate() throws Exception {
+        File fastq1 = writeFastq("r1.fastq.gz", 5, "/1", 0);
+        File fastq2 = writeFastq("r2.fastq.gz", 4, "/2", 0);
+        String outputPrefix = new File(folder.getRoot(), "sample").getAbsolutePath();
+
+        assertEquals(Integer.valueOf(1), split(fastq1, fastq2, outputPrefix, 2));
+        assertNoChunks(outputPrefix, 2);
+
+        assertEquals(Integer.valueOf(1), split(fastq2, fastq1, outputPrefix, 2));
+        assertNoChunks(outputPrefix, 2);
+    }
+
+    @Test
+    public void testTruncatedRecord() throws Exception {
+        File fastq1 = writeFastq("r1.fastq.gz", 3, "/1", 0);
+        File fastq2 = new File(folder.getRoot(), "r2.fastq.gz");
+        try (Writer writer = new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(fastq2)), StandardCharsets.US_ASCII)) {
+            writer.write("@read0/2\nACGT\n+\nIIII\n@read1/2\nACGT\n");
+        }
+        String outputPrefix = new File(folder.getRoot(), "sample").getAbsolutePath();
+
+        try {
+            split(fastq1, fastq2, outputPrefix, 2);
+            fail("expected a truncated record to fail");
+        } catch (IOException e) {
+            assertEquals("truncated FASTQ record", e.getMessage());
+        }
+        assertNoChunks(outputPrefix, 2);
+    }
+
+    private Integer split(File fastq1, File fastq2, String outputPrefix, int chunks) throws Exception {
+        SplitFastqCLI module = new SplitFastqCLI();
+        module.parse(new String[] { SplitFastqCLI.FASTQ1, fastq1.getAbsolutePath(), SplitFastqCLI.FASTQ2, fastq2.getAbsolutePath(),
+                SplitFastqCLI.OUTPUTPREFIX, outputPrefix, SplitFastqCLI.CHUNKS, String.valueOf(chunks) });
+        return module.execute();
+    }
+
+    private void assertNoChunks(String outputPrefix, int chunks) {
+        for (int chunk = 0; chunk < chunks; chunk++) {
+            assertFalse(SplitFastqCLI.getChunkFile(outputPrefix, chunk, 1).exists());
+            assertFalse(SplitFastqCLI.getChunkFile(outputPrefix, chunk, 2).exists());
+        }
+    }
+
+    private File writeFastq(String name, int records, String suffix, int offset) throws IOException {
+        File f = new File(folder.getRoot(), name);
+        try (Writer writer = new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(f)), StandardCharsets.US_ASCII)) {
+            for (int i = 0; i < records; i++) {
+                writer.write(String.format("@read%d%s%nACGT%n+%nIIII%n", i + offset, suffix));
+            }
+        }
+        return f;
+    }
+
+    private List<String> readHeaders(File f) throws IOException {
+        List<String> ret = new ArrayList<String>();
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new GZIPInputStream(new FileInputStream(f)), StandardCharsets.US_ASCII))) {
+            String line;
+            int i = 0;
+            while ((line = reader.readLine()) != null) {
+                if (i++ % 4 == 0) {
+                    ret.add(line);
+                }
+            }
+        }
+        return ret;
+    }
+
+}
@@ -0,0 +1,248 @@
+package edu.unc.mapseq.executor.bergmips.alignment;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.unc.mapseq.dao.model.Attribute;
+import edu.unc.mapseq.dao.model.WorkflowRun;
+import edu.unc.mapseq.dao.model.WorkflowRunAttempt;
+
+/**
+ * Decides which enqueued attempts start when there are fewer free slots than waiting attempts. The rest stay enqueued until the next
+ * dequeue. The order is:
+ * <ol>
+ * <li>effective priority: the "priority" WorkflowRun attribute (default 0), plus one for every agingInterval minutes the attempt has
+ * waited since it was created, up to maxAgingBoost, so low priority work still gets through without waiting its way past every band</li>
+ * <li>fair share within that priority: the fewest running or already picked attempts for the attempt's share key. The key is the
+ * "shareKey" WorkflowRun attribute, else the study of the attempt's samples when a {@link StudyLookup} is set and finds one, else the
+ * flowcell at the start of the run name. Attempts that have waited out the boost share a band, so a study with a long backlog takes
+ * turns with the others instead of going first by age.</li>
+ * <li>the attempt that has waited longest</li>
+ * </ol>
+ * Waiting time is taken from the attempt's persisted created date, so it survives a restart and is the same on every node. An attempt
+ * without one waits from when this scheduler first saw it.
+ */
+public class AttemptScheduler {
+
+    private static final Logger logger = LoggerFactory.getLogger(AttemptScheduler.class);
+
+    public static final String PRIORITY = "priority";
+
+    public static final String SHAREKEY = "shareKey";
+
+    private final Map<Long, Long> waitingSinceById = new HashMap<Long, Long>();
+
+    private final Map<Long, String> shareKeyById = new HashMap<Long, String>();
+
+    private final Map<String, Integer> runningByShareKey = new HashMap<String, Integer>();
+
+    private final Map<Long, String> studyById = new HashMap<Long, String>();
+
+    private Long agingInterval = 60L;
+
+    private Long maxAgingBoost = 3L;
+
+    private StudyLookup studyLookup;
+
+    private boolean waitingKnown = true;
+
+    public AttemptScheduler() {
+        super();
+    }
+
+    /**
+     * @return the attempts to start now, in order, at most capacity minus the number already running
+     */
+    public synchronized List<WorkflowRunAttempt> select(List<WorkflowRunAttempt> enqueued, int capacity) {
+        logger.debug("ENTERING select(List<WorkflowRunAttempt>, int)");
+        long now = System.currentTimeMillis();
+
+        waitingKnown = true;
+        Set<Long> enqueuedIds = new HashSet<Long>();
+        for (WorkflowRunAttempt attempt : enqueued) {
+            enqueuedIds.add(attempt.getId());
+            if (attempt.getCreated() != null) {
+                waitingSinceById.put(attempt.getId(), attempt.getCreated().getTime());
+            } else if (!waitingSinceById.containsKey(attempt.getId())) {
+                waitingSinceById.put(attempt.getId(), now);
+            }
+        }
+        // forget attempts that were dequeued elsewhere or deleted
+        waitingSinceById.keySet().retainAll(enqueuedIds);
+        Set<Long> knownIds = new HashSet<Long>(enqueuedIds);
+        knownIds.addAll(shareKeyById.keySet());
+        studyById.keySet().retainAll(knownIds);
+
+        int free = capacity - shareKeyById.size();
+        List<WorkflowRunAttempt> candidates = new ArrayList<WorkflowRunAttempt>(enqueued);
+        List<WorkflowRunAttempt> ret = new ArrayList<WorkflowRunAttempt>();
+        Map<String, Integer> usage = new HashMap<String, Integer>(runningByShareKey);
+
+        while (free > 0 && !candidates.isEmpty()) {
+            WorkflowRunAttempt best = null;
+            long bestPriority = 0L;
+            int bestUsage = 0;
+            for (WorkflowRunAttempt attempt : candidates) {
+                long waited = Math.max(0L, now - waitingSinceById.get(attempt.getId()));
+                long boost = Math.min(Math.max(0L, maxAgingBoost), waited / (Math.max(1L, agingInterval) * 60 * 1000));
+                long priority = getPriority(attempt.getWorkflowRun()) + boost;
+                Integer shareUsage = usage.get(getShareKey(attempt));
+                int attemptUsage = shareUsage != null ? shareUsage : 0;
+                if (best == null || priority > bestPriority || (priority == bestPriority && (attemptUsage < bestUsage
+                        || (attemptUsage == bestUsage && waitingSinceById.get(attempt.getId()) < waitingSinceById.get(best.getId()))))) {
+                    best = attempt;
+                    bestPriority = priority;
+                    bestUsage = attemptUsage;
+                }
+            }
+            candidates.remove(best);
+            String shareKey = getShareKey(best);
+            usage.put(shareKey, bestUsage + 1);
+            logger.info("WorkflowRunAttempt {}: effective priority {}, share {} ({} running or picked)", best.getId(), bestPriority,
+                    shareKey, bestUsage);
+            ret.add(best);
+            free--;
+        }
+
+        if (!candidates.isEmpty()) {
+            logger.info("{} WorkflowRunAttempts left enqueued, {} running", candidates.size(), shareKeyById.size());
+        }
+        return ret;
+    }
+
+    /**
+     * Nothing is enqueued, so no wait clock keeps running.
+     */
+    public synchronized void clearWaiting() {
+        waitingKnown = true;
+        waitingSinceById.clear();
+    }
+
+    /**
+     * The queue was not read, so what is waiting is unknown until the next {@link #select(List, int)}.
+     */
+    public synchronized void markWaitingUnknown() {
+        waitingKnown = false;
+    }
+
+    /**
+     * @return how long the longest waiting attempt has been enqueued, in milliseconds, or -1 when the queue was not read
+     */
+    public synchronized long getOldestWaitingAge() {
+        if (!waitingKnown) {
+            return -1L;
+        }
+        long oldest = System.currentTimeMillis();
+        for (Long waitingSince : waitingSinceById.values()) {
+            oldest = Math.min(oldest, waitingSince);
+        }
+        return System.currentTimeMillis() - oldest;
+    }
+
+    /**
+     * Counts the attempt against its share key until {@link #release(WorkflowRunAttempt)}.
+     */
+    public synchronized void acquire(WorkflowRunAttempt attempt) {
+        String shareKey = getShareKey(attempt);
+        waitingSinceById.remove(attempt.getId());
+        shareKeyById.put(attempt.getId(), shareKey);
+        Integer running = runningByShareKey.get(shareKey);
+        runningByShareKey.put(shareKey, running != null ? running + 1 : 1);
+    }
+
+    public synchronized void release(WorkflowRunAttempt attempt) {
+        String shareKey = shareKeyById.remove(attempt.getId());
+        if (shareKey == null) {
+            return;
+        }
+        Integer running = runningByShareKey.get(shareKey);
+        if (running == null || running <= 1) {
+            runningByShareKey.remove(shareKey);
+        } else {
+            runningByShareKey.put(shareKey, running - 1);
+        }
+    }
+
+    public synchronized int getRunningCount() {
+        return shareKeyById.size();
+    }
+
+    public static long getPriority(WorkflowRun workflowRun) {
+        String value = getAttribute(workflowRun, PRIORITY);
+        if (StringUtils.isNotEmpty(value)) {
+            try {
+                return Long.valueOf(value.trim());
+            } catch (NumberFormatException e) {
+                logger.warn("ignoring malformed priority of WorkflowRun {}: {}", workflowRun.getName(), value);
+            }
+        }
+        return 0L;
+    }
+
+    /**
+     * The "shareKey" attribute, else the study, looked up once per attempt, else the flowcell.
+     */
+    private String getShareKey(WorkflowRunAttempt attempt) {
+        WorkflowRun workflowRun = attempt.getWorkflowRun();
+        String value = getAttribute(workflowRun, SHAREKEY);
+        if (StringUtils.isNotEmpty(value)) {
+            return value;
+        }
+        if (studyLookup != null) {
+            String study = studyById.get(attempt.getId());
+            if (study == null) {
+                study = StringUtils.defaultString(studyLookup.getStudyName(attempt));
+                studyById.put(attempt.getId(), study);
+            }
+            if (StringUtils.isNotEmpty(study)) {
+                return study;
+            }
+        }
+        return StringUtils.substringBefore(workflowRun.getName(), "_");
+    }
+
+    private static String getAttribute(WorkflowRun workflowRun, String name) {
+        Set<Attribute> attributeSet = workflowRun.getAttributes();
+        if (attributeSet != null) {
+            for (Attribute attribute : attributeSet) {
+                if (name.equals(attribute.getName())) {
+                    return attribute.getValue();
+                }
+            }
+        }
+        return null;
+    }
+
+    public Long getAgingInterval() {
+        return agingInterval;
+    }
+
+    public void setAgingInterval(Long agingInterval) {
+        this.agingInterval = agingInterval;
+    }
+
+    public Long getMaxAgingBoost() {
+        return maxAgingBoost;
+    }
+
+    public void setMaxAgingBoost(Long maxAgingBoost) {
+        this.maxAgingBoost = maxAgingBoost;
+    }
+
+    public StudyLookup getStudyLookup() {
+        return studyLookup;
+    }
+
+    public void setStudyLookup(StudyLookup studyLookup) {
+        this.studyLookup = studyLookup;
+    }
+
+}
@@ -1,20 +1,43 @@
 package edu.unc.mapseq.executor.bergmips.alignment;
 
 import java.util.Timer;
+import java.util.TimerTask;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public class BergMIPsAlignmentWorkflowExecutorService {
+import edu.unc.mapseq.commons.bergmips.alignment.EnqueueSignal;
+import edu.unc.mapseq.commons.bergmips.alignment.instrumentation.PipelineMetrics;
+import edu.unc.mapseq.commons.bergmips.alignment.instrumentation.PipelineMetricsMBean;
+
+/**
+ * Dequeues as soon as the message listener signals a new attempt. The periodic poll stays as a slow reconciliation pass for attempts
+ * enqueued while this bundle was down or whose signal was lost. Signals and polls run on the same timer thread, so two dequeues never
+ * overlap. Signals arriving within signalDelay seconds of each other share one dequeue, which runs at the earliest deadline asked for, so a
+ * new attempt's wake up is not held back behind a pending admission retry.
+ */
+public class BergMIPsAlignmentWorkflowExecutorService implements EnqueueSignal {
 
     private static final Logger logger = LoggerFactory.getLogger(BergMIPsAlignmentWorkflowExecutorService.class);
 
     private static final Timer mainTimer = new Timer();
 
+    private TimerTask pendingSignal;
+
+    private long pendingDeadline;
+
+    private Timer leaseTimer;
+
+    private final PipelineMetricsMBean metricsMBean = new PipelineMetricsMBean("executor.", "workflow.", "postRun.");
+
     private BergMIPsAlignmentWorkflowExecutorTask task;
 
     private Long period = 5L;
 
+    private Long signalDelay = 2L;
+
+    private Long admissionRetryDelay = 60L;
+
     public BergMIPsAlignmentWorkflowExecutorService() {
         super();
     }
@@ -22,13 +45,85 @@ public class BergMIPsAlignmentWorkflowExecutorService {
     public void start() throws Exception {
         logger.info("ENTERING start()");
         long delay = 1 * 60 * 1000;
+        PipelineMetrics.gauge(PipelineMetrics.QUEUE_DEPTH, () -> task.getQueueDepth());
+        PipelineMetrics.gauge(PipelineMetrics.OLDEST_ENQUEUED_AGE, () -> task.getAttemptScheduler().getOldestWaitingAge());
+        PipelineMetrics.gauge(PipelineMetrics.RUNNING_ATTEMPTS, () -> task.getAttemptScheduler().getRunningCount());
+        metricsMBean.register("Executor");
+
+        task.setWakeUp(() -> signal(signalDelay));
+        task.setAdmissionRetry(() -> signal(admissionRetryDelay));
         mainTimer.scheduleAtFixedRate(task, delay, period * 60 * 1000);
+
+        final LeaseManager leaseManager = task.getLeaseManager();
+        if (leaseManager.isEnabled()) {
+            // its own thread, so a slow dequeue never delays a heartbeat past the lease expiry
+            long heartbeat = leaseManager.getLeaseDuration() * 60 * 1000 / 3;
+            leaseTimer = new Timer(true);
+            leaseTimer.scheduleAtFixedRate(new TimerTask() {
+
+                @Override
+                public void run() {
+                    leaseManager.heartbeat();
+                }
+
+            }, heartbeat, heartbeat);
+        }
     }
 
     public void stop() throws Exception {
         logger.info("ENTERING stop()");
         mainTimer.purge();
         mainTimer.cancel();
+        if (leaseTimer != null) {
+            leaseTimer.cancel();
+        }
+        task.shutdown();
+        metricsMBean.unregister();
+        PipelineMetrics.removeGauge(PipelineMetrics.QUEUE_DEPTH);
+        PipelineMetrics.removeGauge(PipelineMetrics.OLDEST_ENQUEUED_AGE);
+        PipelineMetrics.removeGauge(PipelineMetrics.RUNNING_ATTEMPTS);
+    }
+
+    @Override
+    public void enqueued(Long workflowRunAttemptId) {
+        logger.debug("ENTERING enqueued(Long)");
+        task.recordEnqueued(workflowRunAttemptId);
+        signal(signalDelay);
+    }
+
+    /**
+     * Schedules one dequeue after the delay in seconds. A pending dequeue due no later is left to cover this signal too, one due later is
+     * cancelled and replaced.
+     */
+    synchronized void signal(Long delay) {
+        long deadline = System.currentTimeMillis() + delay * 1000;
+        if (pendingSignal != null) {
+            if (pendingDeadline <= deadline) {
+                return;
+            }
+            pendingSignal.cancel();
+            pendingSignal = null;
+        }
+        TimerTask signalTask = new TimerTask() {
+
+            @Override
+            public void run() {
+                synchronized (BergMIPsAlignmentWorkflowExecutorService.this) {
+                    if (pendingSignal == this) {
+                        pendingSignal = null;
+                    }
+                }
+                task.run();
+            }
+
+        };
+        try {
+            mainTimer.schedule(signalTask, delay * 1000);
+            pendingSignal = signalTask;
+            pendingDeadline = deadline;
+        } catch (IllegalStateException e) {
+            logger.warn("executor is stopped, enqueued attempts are left for the next start");
+        }
     }
 
     public BergMIPsAlignmentWorkflowExecutorTask getTask() {
@@ -47,4 +142,20 @@ public class BergMIPsAlignmentWorkflowExecutorService {
         this.period = period;
     }
 
+    public Long getAdmissionRetryDelay() {
+        return admissionRetryDelay;
+    }
+
+    public void setAdmissionRetryDelay(Long admissionRetryDelay) {
+        this.admissionRetryDelay = admissionRetryDelay;
+    }
+
+    public Long getSignalDelay() {
+        return signalDelay;
+    }
+
+    public void setSignalDelay(Long signalDelay) {
+        this.signalDelay = signalDelay;
+    }
+
 }
@@ -1,8 +1,15 @@
 package edu.unc.mapseq.executor.bergmips.alignment;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 
 import org.apache.commons.collections.CollectionUtils;
 import org.osgi.framework.Bundle;
@@ -11,17 +18,20 @@ import org.osgi.framework.FrameworkUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import edu.unc.mapseq.commons.bergmips.alignment.instrumentation.PipelineMetrics;
 import edu.unc.mapseq.dao.MaPSeqDAOBeanService;
 import edu.unc.mapseq.dao.MaPSeqDAOException;
 import edu.unc.mapseq.dao.WorkflowDAO;
 import edu.unc.mapseq.dao.WorkflowRunAttemptDAO;
 import edu.unc.mapseq.dao.model.Workflow;
 import edu.unc.mapseq.dao.model.WorkflowRunAttempt;
+import edu.unc.mapseq.dao.model.WorkflowRunAttemptStatusType;
 import edu.unc.mapseq.dao.model.WorkflowSystemType;
 import edu.unc.mapseq.workflow.WorkflowBeanService;
 import edu.unc.mapseq.workflow.WorkflowExecutor;
 import edu.unc.mapseq.workflow.WorkflowTPE;
 import edu.unc.mapseq.workflow.bergmips.alignment.BergMIPsAlignmentWorkflow;
+import edu.unc.mapseq.workflow.bergmips.alignment.CombinedBergMIPsAlignmentWorkflow;
 
 public class BergMIPsAlignmentWorkflowExecutorTask extends TimerTask {
 
@@ -29,10 +39,44 @@ public class BergMIPsAlignmentWorkflowExecutorTask extends TimerTask {
 
     private static final WorkflowTPE threadPoolExecutor = new WorkflowTPE();
 
+    private final Map<Long, Long> enqueuedTimeById = new ConcurrentHashMap<Long, Long>();
+
     private WorkflowBeanService workflowBeanService;
 
     private String workflowName;
 
+    private Boolean combineAttempts = Boolean.FALSE;
+
+    private Integer maxCombinedAttempts = 100;
+
+    private Integer maxRunningAttempts = 100;
+
+    private AttemptScheduler attemptScheduler = new AttemptScheduler();
+
+    private CapacityProbe capacityProbe = new FixedCapacityProbe();
+
+    private LeaseManager leaseManager = new LeaseManager();
+
+    private CondorDAGRemover dagRemover = new CondorDAGRemover();
+
+    private volatile int queueDepth = 0;
+
+    private Long workflowId;
+
+    private String version;
+
+    private String threadMode = "platform";
+
+    private ExecutorService virtualThreadExecutor;
+
+    private Integer maxConcurrentWork = 8;
+
+    private Semaphore workPermits = new Semaphore(maxConcurrentWork);
+
+    private Runnable wakeUp;
+
+    private Runnable admissionRetry;
+
     public BergMIPsAlignmentWorkflowExecutorTask() {
         super();
     }
@@ -40,6 +84,7 @@ public class BergMIPsAlignmentWorkflowExecutorTask extends TimerTask {
     @Override
     public void run() {
         logger.info("ENTERING run()");
+        long start = System.currentTimeMillis();
 
         threadPoolExecutor.setCorePoolSize(workflowBeanService.getCorePoolSize());
         threadPoolExecutor.setMaximumPoolSize(workflowBeanService.getMaxPoolSize());
@@ -53,48 +98,229 @@ public class BergMIPsAlignmentWorkflowExecutorTask extends TimerTask {
 
         try {
 
-            Workflow workflow = null;
-            List<Workflow> workflowList = workflowDAO.findByName(getWorkflowName());
-            if (CollectionUtils.isEmpty(workflowList)) {
-                workflow = new Workflow(getWorkflowName(), WorkflowSystemType.EXPERIMENTAL);
-                workflow.setId(workflowDAO.save(workflow));
-            } else {
-                workflow = workflowList.get(0);
-            }
-
-            if (workflow == null) {
+            Long workflowId = getWorkflowId(workflowDAO);
+            if (workflowId == null) {
                 logger.error("Could not find or create {} workflow", getWorkflowName());
                 return;
             }
 
-            BundleContext bundleContext = FrameworkUtil.getBundle(getClass()).getBundleContext();
-            Bundle bundle = bundleContext.getBundle();
-            String version = bundle.getVersion().toString();
+            for (Long workflowRunAttemptId : leaseManager.takeOverExpired()) {
+                recover(workflowRunAttemptDAO, workflowRunAttemptId);
+            }
+
+            if (attemptScheduler.getRunningCount() >= maxRunningAttempts) {
+                // nothing could be dequeued, so skip loading the queue, a finishing attempt signals the next dequeue
+                logger.info("all {} slots are running, not reading the queue", maxRunningAttempts);
+                queueDepth = -1;
+                attemptScheduler.markWaitingUnknown();
+                return;
+            }
 
-            List<WorkflowRunAttempt> attempts = workflowRunAttemptDAO.findEnqueued(workflow.getId());
-            if (CollectionUtils.isNotEmpty(attempts)) {
-                logger.info("dequeuing {} WorkflowRunAttempt", attempts.size());
+            List<WorkflowRunAttempt> enqueued = workflowRunAttemptDAO.findEnqueued(workflowId);
+            queueDepth = enqueued != null ? enqueued.size() : 0;
+            if (CollectionUtils.isEmpty(enqueued)) {
+                attemptScheduler.clearWaiting();
+            } else {
+                int capacity = maxRunningAttempts;
+                int admittable = capacityProbe.getAdmittableAttempts();
+                if (admittable >= 0) {
+                    capacity = Math.min(capacity, attemptScheduler.getRunningCount() + admittable);
+                }
+                List<WorkflowRunAttempt> attempts = attemptScheduler.select(enqueued, capacity);
+                if (attempts.size() < enqueued.size() && admittable >= 0 && admittable < enqueued.size() && admissionRetry != null) {
+                    // the cluster draining does not signal us, look again soon rather than at the next reconciliation poll
+                    admissionRetry.run();
+                }
+                logger.info("dequeuing {} of {} WorkflowRunAttempt", attempts.size(), enqueued.size());
+                List<BergMIPsAlignmentWorkflow> batch = new ArrayList<BergMIPsAlignmentWorkflow>();
                 for (WorkflowRunAttempt attempt : attempts) {
 
+                    if (!leaseManager.claim(attempt.getId())) {
+                        continue;
+                    }
+                    if (leaseManager.isEnabled() && workflowRunAttemptDAO.findById(attempt.getId()).getDequeued() != null) {
+                        // another node dequeued and finished it since our findEnqueued
+                        leaseManager.release(attempt.getId());
+                        continue;
+                    }
+
                     BergMIPsAlignmentWorkflow alignmentWorkflow = new BergMIPsAlignmentWorkflow();
-                    attempt.setVersion(version);
+                    attempt.setVersion(getVersion());
                     attempt.setDequeued(new Date());
                     workflowRunAttemptDAO.save(attempt);
 
+                    PipelineMetrics.counter(PipelineMetrics.ATTEMPTS_DEQUEUED).incrementAndGet();
+                    Long enqueuedTime = enqueuedTimeById.remove(attempt.getId());
+                    if (enqueuedTime != null) {
+                        PipelineMetrics.timer(PipelineMetrics.DEQUEUE_LATENCY).record(attempt.getDequeued().getTime() - enqueuedTime);
+                        logger.info("WorkflowRunAttempt {}: enqueue to dequeue latency {} ms", attempt.getId(),
+                                attempt.getDequeued().getTime() - enqueuedTime);
+                    } else {
+                        logger.info("WorkflowRunAttempt {}: dequeued by reconciliation poll", attempt.getId());
+                    }
+
                     alignmentWorkflow.setWorkflowBeanService(workflowBeanService);
                     alignmentWorkflow.setWorkflowRunAttempt(attempt);
-                    threadPoolExecutor.submit(new WorkflowExecutor(alignmentWorkflow));
+                    alignmentWorkflow.setWorkPermits(workPermits);
+                    attemptScheduler.acquire(attempt);
+
+                    if (!combineAttempts) {
+                        submit(alignmentWorkflow, Collections.singletonList(alignmentWorkflow));
+                        continue;
+                    }
+
+                    batch.add(alignmentWorkflow);
+                    if (batch.size() >= maxCombinedAttempts) {
+                        submitCombined(batch);
+                        batch = new ArrayList<BergMIPsAlignmentWorkflow>();
+                    }
 
                 }
 
+                if (!batch.isEmpty()) {
+                    submitCombined(batch);
+                }
+
             }
 
         } catch (MaPSeqDAOException e) {
             e.printStackTrace();
+        } finally {
+            PipelineMetrics.timer(PipelineMetrics.DEQUEUE).recordSince(start);
         }
 
     }
 
+    /**
+     * The workflow and the bundle version do not change while the bundle is running, so they are looked up once instead of on every
+     * dequeue.
+     */
+    private synchronized Long getWorkflowId(WorkflowDAO workflowDAO) throws MaPSeqDAOException {
+        if (workflowId == null) {
+            List<Workflow> workflowList = workflowDAO.findByName(getWorkflowName());
+            if (CollectionUtils.isEmpty(workflowList)) {
+                Workflow workflow = new Workflow(getWorkflowName(), WorkflowSystemType.EXPERIMENTAL);
+                workflowId = workflowDAO.save(workflow);
+            } else {
+                workflowId = workflowList.get(0).getId();
+            }
+        }
+        return workflowId;
+    }
+
+    private synchronized String getVersion() {
+        if (version == null) {
+            BundleContext bundleContext = FrameworkUtil.getBundle(getClass()).getBundleContext();
+            Bundle bundle = bundleContext.getBundle();
+            version = bundle.getVersion().toString();
+        }
+        return version;
+    }
+
+    /**
+     * In virtual mode each attempt gets its own virtual thread, so an attempt waiting on its DAG costs next to nothing and
+     * maxRunningAttempts can be set far above the platform pool size. Virtual threads need Java 21; on an older runtime the WorkflowTPE is
+     * used.
+     */
+    private synchronized ExecutorService getWorkflowExecutorService() {
+        if ("virtual".equalsIgnoreCase(threadMode)) {
+            if (virtualThreadExecutor == null) {
+                try {
+                    virtualThreadExecutor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                    logger.info("running workflows on virtual threads");
+                } catch (ReflectiveOperationException e) {
+                    logger.warn("virtual threads need Java 21, running workflows on the WorkflowTPE");
+                    threadMode = "platform";
+                    return threadPoolExecutor;
+                }
+            }
+            return virtualThreadExecutor;
+        }
+        return threadPoolExecutor;
+    }
+
+    public synchronized void shutdown() {
+        if (virtualThreadExecutor != null) {
+            virtualThreadExecutor.shutdown();
+            virtualThreadExecutor = null;
+        }
+    }
+
+    /**
+     * The node running the attempt died. Its DAG may still be running or may have been cut short, so the DAG is removed, the attempt is
+     * failed and a new one is enqueued for the same WorkflowRun. The new attempt resumes from the stages that completed. When the DAG
+     * cannot be removed the lease is left to expire, and the recovery is tried again once it has.
+     */
+    private void recover(WorkflowRunAttemptDAO workflowRunAttemptDAO, Long workflowRunAttemptId) {
+        try {
+            WorkflowRunAttempt attempt = workflowRunAttemptDAO.findById(workflowRunAttemptId);
+            if (attempt != null && attempt.getFinished() == null) {
+                if (!dagRemover.remove(attempt.getCondorDAGClusterId())) {
+                    logger.error("WorkflowRunAttempt {} was orphaned but its DAG {} is still queued, not enqueuing it again",
+                            workflowRunAttemptId, attempt.getCondorDAGClusterId());
+                    leaseManager.abandon(workflowRunAttemptId);
+                    return;
+                }
+
+                attempt.setStatus(WorkflowRunAttemptStatusType.FAILED);
+                attempt.setFinished(new Date());
+                workflowRunAttemptDAO.save(attempt);
+
+                WorkflowRunAttempt retry = new WorkflowRunAttempt();
+                retry.setStatus(WorkflowRunAttemptStatusType.PENDING);
+                retry.setWorkflowRun(attempt.getWorkflowRun());
+                retry.setId(workflowRunAttemptDAO.save(retry));
+                logger.warn("WorkflowRunAttempt {} was orphaned, enqueued {} to resume it", workflowRunAttemptId, retry.getId());
+            }
+        } catch (MaPSeqDAOException e) {
+            logger.error(e.getMessage(), e);
+        } finally {
+            leaseManager.release(workflowRunAttemptId);
+        }
+    }
+
+    /**
+     * Called when the message listener signals a new attempt, the time is used for the enqueue to dequeue latency.
+     */
+    public void recordEnqueued(Long workflowRunAttemptId) {
+        if (workflowRunAttemptId != null) {
+            enqueuedTimeById.put(workflowRunAttemptId, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * All attempts dequeued in one tick go into one DAG, so a flowcell enqueued per sample does not start a DAGMan per sample.
+     */
+    private void submitCombined(List<BergMIPsAlignmentWorkflow> batch) {
+        if (batch.size() == 1) {
+            submit(batch.get(0), batch);
+            return;
+        }
+        logger.info("combining {} WorkflowRunAttempts into one DAG", batch.size());
+        submit(new CombinedBergMIPsAlignmentWorkflow(batch), batch);
+    }
+
+    /**
+     * Frees the scheduler slots of the attempts once the workflow is done and asks for a dequeue, so waiting attempts start without
+     * waiting for the reconciliation poll.
+     */
+    private void submit(BergMIPsAlignmentWorkflow alignmentWorkflow, List<BergMIPsAlignmentWorkflow> members) {
+        final WorkflowExecutor workflowExecutor = new WorkflowExecutor(alignmentWorkflow);
+        getWorkflowExecutorService().submit(() -> {
+            try {
+                workflowExecutor.run();
+            } finally {
+                for (BergMIPsAlignmentWorkflow member : members) {
+                    attemptScheduler.release(member.getWorkflowRunAttempt());
+                    leaseManager.release(member.getWorkflowRunAttempt().getId());
+                }
+                if (wakeUp != null) {
+                    wakeUp.run();
+                }
+            }
+        });
+    }
+
     public String getWorkflowName() {
         return workflowName;
     }
@@ -103,6 +329,105 @@ public class BergMIPsAlignmentWorkflowExecutorTask extends TimerTask {
         this.workflowName = workflowName;
     }
 
+    public Boolean getCombineAttempts() {
+        return combineAttempts;
+    }
+
+    public void setCombineAttempts(Boolean combineAttempts) {
+        this.combineAttempts = combineAttempts;
+    }
+
+    public Integer getMaxCombinedAttempts() {
+        return maxCombinedAttempts;
+    }
+
+    public void setMaxCombinedAttempts(Integer maxCombinedAttempts) {
+        this.maxCombinedAttempts = maxCombinedAttempts;
+    }
+
+    public Integer getMaxRunningAttempts() {
+        return maxRunningAttempts;
+    }
+
+    public void setMaxRunningAttempts(Integer maxRunningAttempts) {
+        this.maxRunningAttempts = maxRunningAttempts;
+    }
+
+    public AttemptScheduler getAttemptScheduler() {
+        return attemptScheduler;
+    }
+
+    public void setAttemptScheduler(AttemptScheduler attemptScheduler) {
+        this.attemptScheduler = attemptScheduler;
+    }
+
+    public CapacityProbe getCapacityProbe() {
+        return capacityProbe;
+    }
+
+    public void setCapacityProbe(CapacityProbe capacityProbe) {
+        this.capacityProbe = capacityProbe;
+    }
+
+    /**
+     * @return the number of enqueued attempts seen by the last dequeue, or -1 when it did not read the queue because every slot was running
+     */
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    public String getThreadMode() {
+        return threadMode;
+    }
+
+    public void setThreadMode(String threadMode) {
+        this.threadMode = threadMode;
+    }
+
+    /**
+     * The number of attempts that may be in createGraph() or postRun() at once, whatever the thread mode.
+     */
+    public void setMaxConcurrentWork(Integer maxConcurrentWork) {
+        this.maxConcurrentWork = maxConcurrentWork;
+        this.workPermits = new Semaphore(maxConcurrentWork);
+    }
+
+    public Integer getMaxConcurrentWork() {
+        return maxConcurrentWork;
+    }
+
+    public LeaseManager getLeaseManager() {
+        return leaseManager;
+    }
+
+    public void setLeaseManager(LeaseManager leaseManager) {
+        this.leaseManager = leaseManager;
+    }
+
+    public CondorDAGRemover getDagRemover() {
+        return dagRemover;
+    }
+
+    public void setDagRemover(CondorDAGRemover dagRemover) {
+        this.dagRemover = dagRemover;
+    }
+
+    public Runnable getAdmissionRetry() {
+        return admissionRetry;
+    }
+
+    public void setAdmissionRetry(Runnable admissionRetry) {
+        this.admissionRetry = admissionRetry;
+    }
+
+    public Runnable getWakeUp() {
+        return wakeUp;
+    }
+
+    public void setWakeUp(Runnable wakeUp) {
+        this.wakeUp = wakeUp;
+    }
+
     public WorkflowBeanService getWorkflowBeanService() {
         return workflowBeanService;
     }
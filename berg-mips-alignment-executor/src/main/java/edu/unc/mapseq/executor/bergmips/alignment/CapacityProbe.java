@@ -0,0 +1,13 @@
+package edu.unc.mapseq.executor.bergmips.alignment;
+
+/**
+ * Tells the executor how many more attempts the cluster can take right now.
+ */
+public interface CapacityProbe {
+
+    /**
+     * @return the number of attempts that can be dequeued now, or a negative number when the capacity is unknown and no limit applies
+     */
+    public int getAdmittableAttempts();
+
+}
@@ -0,0 +1,102 @@
+package edu.unc.mapseq.executor.bergmips.alignment;
+
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Admits attempts while the schedd's idle job count stays under maxIdleJobs, counting jobsPerAttempt idle jobs for each new attempt.
+ * The counts come from the last totals line of "condor_q -totals", which covers all users. When condor_q fails or cannot be parsed,
+ * no limit applies and only the scheduler's maxRunningAttempts holds. The default jobsPerAttempt of 4 is an unscattered single sample
+ * attempt with the default fusionRules and batchSize 1: FastQC of each read, the fused bwa mem and index, and the hybrid selection
+ * metrics. Raise it when attempts hold several samples, alignment is scattered, or fusionRules change the job count.
+ */
+public class CondorCapacityProbe implements CapacityProbe {
+
+    private static final Logger logger = LoggerFactory.getLogger(CondorCapacityProbe.class);
+
+    private static final Pattern IDLE_PATTERN = Pattern.compile("(\\d+) idle");
+
+    private static final Pattern RUNNING_PATTERN = Pattern.compile("(\\d+) running");
+
+    private String command = "condor_q -totals";
+
+    private Integer maxIdleJobs = 500;
+
+    private Integer jobsPerAttempt = 4;
+
+    private Long timeout = 30L;
+
+    public CondorCapacityProbe() {
+        super();
+    }
+
+    @Override
+    public int getAdmittableAttempts() {
+        logger.debug("ENTERING getAdmittableAttempts()");
+        List<String> lines = CondorCommand.run(command, timeout);
+        if (lines == null) {
+            logger.warn("admitting without a cluster limit");
+            return -1;
+        }
+        int[] totals = parseTotals(lines);
+        if (totals == null) {
+            logger.warn("no totals in {} output, admitting without a cluster limit", command);
+            return -1;
+        }
+        int ret = Math.max(0, (maxIdleJobs - totals[0]) / Math.max(1, jobsPerAttempt));
+        logger.info("idle: {}, running: {}, admittable attempts: {}", totals[0], totals[1], ret);
+        return ret;
+    }
+
+    /**
+     * @return the idle and running counts of the last totals line, or null when there is none
+     */
+    public static int[] parseTotals(List<String> lines) {
+        int[] ret = null;
+        for (String line : lines) {
+            Matcher idleMatcher = IDLE_PATTERN.matcher(line);
+            Matcher runningMatcher = RUNNING_PATTERN.matcher(line);
+            if (idleMatcher.find() && runningMatcher.find()) {
+                ret = new int[] { Integer.valueOf(idleMatcher.group(1)), Integer.valueOf(runningMatcher.group(1)) };
+            }
+        }
+        return ret;
+    }
+
+    public String getCommand() {
+        return command;
+    }
+
+    public void setCommand(String command) {
+        this.command = command;
+    }
+
+    public Integer getMaxIdleJobs() {
+        return maxIdleJobs;
+    }
+
+    public void setMaxIdleJobs(Integer maxIdleJobs) {
+        this.maxIdleJobs = maxIdleJobs;
+    }
+
+    public Integer getJobsPerAttempt() {
+        return jobsPerAttempt;
+    }
+
+    public void setJobsPerAttempt(Integer jobsPerAttempt) {
+        this.jobsPerAttempt = jobsPerAttempt;
+    }
+
+    public Long getTimeout() {
+        return timeout;
+    }
+
+    public void setTimeout(Long timeout) {
+        this.timeout = timeout;
+    }
+
+}
@@ -0,0 +1,58 @@
+package edu.unc.mapseq.executor.bergmips.alignment;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs a condor command line through bash for the executor. Unlike the modules' BashExecutor it gives up after a timeout, since an
+ * unresponsive schedd must not hold the dequeue thread.
+ */
+public final class CondorCommand {
+
+    private static final Logger logger = LoggerFactory.getLogger(CondorCommand.class);
+
+    private CondorCommand() {
+        super();
+    }
+
+    /**
+     * @return the output lines, stderr included, or null when the command could not be run, timed out or exited non-zero
+     */
+    public static List<String> run(String command, long timeout) {
+        logger.debug("ENTERING run(String, long)");
+        File output = null;
+        try {
+            output = File.createTempFile("condor", ".out");
+            Process process = new ProcessBuilder("/bin/bash", "-c", command).redirectErrorStream(true).redirectOutput(output).start();
+            if (!process.waitFor(timeout, TimeUnit.SECONDS)) {
+                process.destroyForcibly();
+                logger.warn("{} timed out", command);
+                return null;
+            }
+            List<String> lines = Files.readAllLines(output.toPath(), StandardCharsets.UTF_8);
+            if (process.exitValue() != 0) {
+                logger.warn("{} exited with {}: {}", command, process.exitValue(), lines);
+                return null;
+            }
+            return lines;
+        } catch (IOException e) {
+            logger.warn("could not run {}", command, e);
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } finally {
+            if (output != null) {
+                output.delete();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,74 @@
+package edu.unc.mapseq.executor.bergmips.alignment;
+
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Removes the DAG of an orphaned attempt before it is enqueued again, so the old and the new DAG never write the same outputs. The DAG
+ * counts as gone when condor_rm succeeds, or when condor_q no longer lists its cluster. The commands must reach the schedd the DAG was
+ * submitted to, e.g. "condor_rm -name &lt;schedd&gt;" when the executor nodes submit to different schedds.
+ */
+public class CondorDAGRemover {
+
+    private static final Logger logger = LoggerFactory.getLogger(CondorDAGRemover.class);
+
+    private String removeCommand = "condor_rm";
+
+    private String queryCommand = "condor_q -af ClusterId";
+
+    private Long timeout = 30L;
+
+    public CondorDAGRemover() {
+        super();
+    }
+
+    /**
+     * @return true when the DAG is no longer in the queue
+     */
+    public boolean remove(Integer clusterId) {
+        logger.debug("ENTERING remove(Integer)");
+        if (clusterId == null) {
+            // never submitted
+            return true;
+        }
+        List<String> lines = CondorCommand.run(String.format("%s %d", removeCommand, clusterId), timeout);
+        if (lines != null) {
+            logger.info("removed DAG {}", clusterId);
+            return true;
+        }
+        lines = CondorCommand.run(String.format("%s %d", queryCommand, clusterId), timeout);
+        if (lines != null && lines.stream().allMatch(a -> a.trim().isEmpty())) {
+            logger.info("DAG {} has already left the queue", clusterId);
+            return true;
+        }
+        logger.error("could not remove DAG {}", clusterId);
+        return false;
+    }
+
+    public String getRemoveCommand() {
+        return removeCommand;
+    }
+
+    public void setRemoveCommand(String removeCommand) {
+        this.removeCommand = removeCommand;
+    }
+
+    public String getQueryCommand() {
+        return queryCommand;
+    }
+
+    public void setQueryCommand(String queryCommand) {
+        this.queryCommand = queryCommand;
+    }
+
+    public Long getTimeout() {
+        return timeout;
+    }
+
+    public void setTimeout(Long timeout) {
+        this.timeout = timeout;
+    }
+
+}
@@ -0,0 +1,32 @@
+package edu.unc.mapseq.executor.bergmips.alignment;
+
+/**
+ * Always admits the same number of attempts. For tests, and for hosts without a Condor client.
+ */
+public class FixedCapacityProbe implements CapacityProbe {
+
+    private int capacity = -1;
+
+    public FixedCapacityProbe() {
+        super();
+    }
+
+    public FixedCapacityProbe(int capacity) {
+        super();
+        this.capacity = capacity;
+    }
+
+    @Override
+    public int getAdmittableAttempts() {
+        return capacity;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public void setCapacity(int capacity) {
+        this.capacity = capacity;
+    }
+
+}
@@ -0,0 +1,289 @@
+package edu.unc.mapseq.executor.bergmips.alignment;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.unc.mapseq.commons.bergmips.alignment.ReferenceCache;
+
+/**
+ * Lets several executor nodes share one queue. Before an attempt is dequeued it is claimed with a lease file "&lt;id&gt;.lease" in a
+ * directory all nodes can see. The file is written under a unique name and then hard linked into place, and the link fails when the
+ * lease already exists, so exactly one node wins a claim. The lease records its owner and an expiry. The owner renews it on every
+ * heartbeat and deletes it when the attempt is finished. A lease that is past its expiry belongs to a node that died. Another node takes
+ * it over by renaming the file away, which only one node can do. Leasing is off until leaseDirectory is set.
+ */
+public class LeaseManager {
+
+    private static final Logger logger = LoggerFactory.getLogger(LeaseManager.class);
+
+    private static final String LEASE_SUFFIX = ".lease";
+
+    private static final Pattern STRAY_PATTERN = Pattern.compile("(\\d+)\\.lease\\..+");
+
+    private final Set<Long> heldLeases = ConcurrentHashMap.newKeySet();
+
+    private String leaseDirectory = "";
+
+    private String owner = ManagementFactory.getRuntimeMXBean().getName();
+
+    private Long leaseDuration = 10L;
+
+    public LeaseManager() {
+        super();
+    }
+
+    public boolean isEnabled() {
+        return StringUtils.isNotEmpty(leaseDirectory);
+    }
+
+    private File getDirectory() {
+        File ret = new File(ReferenceCache.expand(leaseDirectory));
+        if (!ret.exists()) {
+            ret.mkdirs();
+        }
+        return ret;
+    }
+
+    private File getLeaseFile(Long workflowRunAttemptId) {
+        return new File(getDirectory(), String.format("%d%s", workflowRunAttemptId, LEASE_SUFFIX));
+    }
+
+    /**
+     * @return true when this node now owns the attempt
+     */
+    public boolean claim(Long workflowRunAttemptId) {
+        if (!isEnabled()) {
+            return true;
+        }
+        File leaseFile = getLeaseFile(workflowRunAttemptId);
+        File tmpFile = null;
+        try {
+            tmpFile = writeTmp(workflowRunAttemptId);
+            Files.createLink(leaseFile.toPath(), tmpFile.toPath());
+            heldLeases.add(workflowRunAttemptId);
+            logger.info("claimed WorkflowRunAttempt {} as {}", workflowRunAttemptId, owner);
+            return true;
+        } catch (FileAlreadyExistsException e) {
+            logger.debug("WorkflowRunAttempt {} is claimed by another node", workflowRunAttemptId);
+            return false;
+        } catch (IOException e) {
+            logger.error(String.format("could not claim WorkflowRunAttempt %d", workflowRunAttemptId), e);
+            return false;
+        } finally {
+            if (tmpFile != null) {
+                tmpFile.delete();
+            }
+        }
+    }
+
+    /**
+     * Pushes the expiry of every lease this node holds. The lease is first renamed to a private name, so a node taking it over meanwhile
+     * finds nothing to rename, and it is only linked back when it is still ours. A lease that has disappeared or has a new owner was
+     * taken over, and is dropped without touching the other node's lease.
+     */
+    public void heartbeat() {
+        logger.debug("ENTERING heartbeat()");
+        for (Long workflowRunAttemptId : heldLeases) {
+            File leaseFile = getLeaseFile(workflowRunAttemptId);
+            File renewFile = getPrivateFile(leaseFile);
+            try {
+                Files.move(leaseFile.toPath(), renewFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (NoSuchFileException e) {
+                logger.error("lease of WorkflowRunAttempt {} was taken over", workflowRunAttemptId);
+                heldLeases.remove(workflowRunAttemptId);
+                continue;
+            } catch (IOException e) {
+                logger.error(String.format("could not renew lease of WorkflowRunAttempt %d", workflowRunAttemptId), e);
+                continue;
+            }
+            File tmpFile = null;
+            try {
+                Properties lease = read(renewFile);
+                if (!owner.equals(lease.getProperty("owner"))) {
+                    logger.error("lease of WorkflowRunAttempt {} was taken over by {}", workflowRunAttemptId, lease.getProperty("owner"));
+                    heldLeases.remove(workflowRunAttemptId);
+                    putBack(renewFile, leaseFile);
+                    continue;
+                }
+                tmpFile = writeTmp(workflowRunAttemptId);
+                Files.createLink(leaseFile.toPath(), tmpFile.toPath());
+                Files.delete(renewFile.toPath());
+            } catch (FileAlreadyExistsException e) {
+                logger.error("lease of WorkflowRunAttempt {} was claimed while it was renewed", workflowRunAttemptId);
+                heldLeases.remove(workflowRunAttemptId);
+                renewFile.delete();
+            } catch (IOException e) {
+                logger.error(String.format("could not renew lease of WorkflowRunAttempt %d", workflowRunAttemptId), e);
+                putBack(renewFile, leaseFile);
+            } finally {
+                if (tmpFile != null) {
+                    tmpFile.delete();
+                }
+            }
+        }
+    }
+
+    public void release(Long workflowRunAttemptId) {
+        if (!isEnabled() || !heldLeases.remove(workflowRunAttemptId)) {
+            return;
+        }
+        File leaseFile = getLeaseFile(workflowRunAttemptId);
+        try {
+            if (owner.equals(read(leaseFile).getProperty("owner"))) {
+                Files.delete(leaseFile.toPath());
+            }
+        } catch (IOException e) {
+            logger.warn("could not release lease of WorkflowRunAttempt {}: {}", workflowRunAttemptId, e.getMessage());
+        }
+    }
+
+    /**
+     * Stops renewing a lease without deleting it, so it expires and the attempt is taken over again later, by any node.
+     */
+    public void abandon(Long workflowRunAttemptId) {
+        if (heldLeases.remove(workflowRunAttemptId)) {
+            logger.info("abandoned lease of WorkflowRunAttempt {}", workflowRunAttemptId);
+        }
+    }
+
+    /**
+     * Claims every expired lease that this node manages to rename away first. A lease left under a private name by a node that died while
+     * renewing or taking it over is put back first, so it expires like any other.
+     *
+     * @return the ids of the attempts taken over, each now leased to this node
+     */
+    public List<Long> takeOverExpired() {
+        List<Long> ret = new ArrayList<Long>();
+        if (!isEnabled()) {
+            return ret;
+        }
+        File[] leaseFiles = getDirectory().listFiles((dir, name) -> name.endsWith(LEASE_SUFFIX));
+        if (leaseFiles == null) {
+            return ret;
+        }
+        long now = System.currentTimeMillis();
+        File[] strayFiles = getDirectory().listFiles((dir, name) -> STRAY_PATTERN.matcher(name).matches());
+        if (strayFiles != null) {
+            for (File strayFile : strayFiles) {
+                // renames keep the time of the last heartbeat, a live rename is put back long before this
+                if (strayFile.lastModified() < now - 2 * leaseDuration * 60 * 1000) {
+                    putBack(strayFile, getLeaseFile(Long.valueOf(STRAY_PATTERN.matcher(strayFile.getName()).replaceAll("$1"))));
+                }
+            }
+        }
+        for (File leaseFile : leaseFiles) {
+            Long workflowRunAttemptId = Long.valueOf(StringUtils.removeEnd(leaseFile.getName(), LEASE_SUFFIX));
+            try {
+                Properties lease = read(leaseFile);
+                if (Long.valueOf(lease.getProperty("expires")) > now) {
+                    continue;
+                }
+                File takeoverFile = getPrivateFile(leaseFile);
+                Files.move(leaseFile.toPath(), takeoverFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                Properties takenOver = read(takeoverFile);
+                if (Long.valueOf(takenOver.getProperty("expires")) > now) {
+                    // renewed between the read and the rename, give it back
+                    putBack(takeoverFile, leaseFile);
+                    continue;
+                }
+                Files.delete(takeoverFile.toPath());
+                logger.warn("lease of WorkflowRunAttempt {} held by {} expired", workflowRunAttemptId, takenOver.getProperty("owner"));
+                if (claim(workflowRunAttemptId)) {
+                    ret.add(workflowRunAttemptId);
+                }
+            } catch (NoSuchFileException e) {
+                logger.debug("lease of WorkflowRunAttempt {} was released or taken over by another node", workflowRunAttemptId);
+            } catch (IOException | NumberFormatException e) {
+                logger.warn("could not read lease of WorkflowRunAttempt {}: {}", workflowRunAttemptId, e.getMessage());
+            }
+        }
+        return ret;
+    }
+
+    private File getPrivateFile(File leaseFile) {
+        return new File(leaseFile.getParentFile(), String.format("%s.%s", leaseFile.getName(), UUID.randomUUID()));
+    }
+
+    /**
+     * Links a lease renamed to a private name back into place, unless a new lease was claimed meanwhile.
+     */
+    private void putBack(File privateFile, File leaseFile) {
+        try {
+            Files.createLink(leaseFile.toPath(), privateFile.toPath());
+        } catch (FileAlreadyExistsException e) {
+            logger.warn("{} was claimed again before {} could be put back", leaseFile.getName(), privateFile.getName());
+        } catch (IOException e) {
+            logger.error(String.format("could not put back %s", leaseFile.getName()), e);
+            return;
+        }
+        privateFile.delete();
+    }
+
+    private File writeTmp(Long workflowRunAttemptId) throws IOException {
+        long now = System.currentTimeMillis();
+        Properties lease = new Properties();
+        lease.setProperty("owner", owner);
+        lease.setProperty("workflowRunAttemptId", String.valueOf(workflowRunAttemptId));
+        lease.setProperty("heartbeat", String.valueOf(now));
+        lease.setProperty("expires", String.valueOf(now + leaseDuration * 60 * 1000));
+        File ret = new File(getDirectory(), String.format(".%d.%s.tmp", workflowRunAttemptId, UUID.randomUUID()));
+        try (Writer writer = Files.newBufferedWriter(ret.toPath(), StandardCharsets.UTF_8)) {
+            lease.store(writer, null);
+        }
+        return ret;
+    }
+
+    private Properties read(File leaseFile) throws IOException {
+        Properties ret = new Properties();
+        try (Reader reader = Files.newBufferedReader(leaseFile.toPath(), StandardCharsets.UTF_8)) {
+            ret.load(reader);
+        }
+        return ret;
+    }
+
+    public String getLeaseDirectory() {
+        return leaseDirectory;
+    }
+
+    public void setLeaseDirectory(String leaseDirectory) {
+        this.leaseDirectory = leaseDirectory;
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    public void setOwner(String owner) {
+        if (StringUtils.isNotEmpty(owner)) {
+            this.owner = owner;
+        }
+    }
+
+    public Long getLeaseDuration() {
+        return leaseDuration;
+    }
+
+    public void setLeaseDuration(Long leaseDuration) {
+        this.leaseDuration = leaseDuration;
+    }
+
+}
@@ -0,0 +1,53 @@
+package edu.unc.mapseq.executor.bergmips.alignment;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.unc.mapseq.dao.model.Sample;
+import edu.unc.mapseq.dao.model.WorkflowRunAttempt;
+import edu.unc.mapseq.workflow.WorkflowBeanService;
+import edu.unc.mapseq.workflow.sequencing.SequencingWorkflowUtil;
+
+/**
+ * Takes the study from the attempt's samples. {@link AttemptScheduler} asks once per attempt, so the samples of an attempt that waits
+ * through several dequeues are loaded once.
+ */
+public class SampleStudyLookup implements StudyLookup {
+
+    private static final Logger logger = LoggerFactory.getLogger(SampleStudyLookup.class);
+
+    private WorkflowBeanService workflowBeanService;
+
+    public SampleStudyLookup() {
+        super();
+    }
+
+    @Override
+    public String getStudyName(WorkflowRunAttempt attempt) {
+        logger.debug("ENTERING getStudyName(WorkflowRunAttempt)");
+        Set<String> studyNames = new HashSet<String>();
+        try {
+            for (Sample sample : SequencingWorkflowUtil.getAggregatedSamples(workflowBeanService.getMaPSeqDAOBeanService(), attempt)) {
+                if (sample.getStudy() != null) {
+                    studyNames.add(sample.getStudy().getName());
+                }
+            }
+        } catch (RuntimeException e) {
+            logger.warn(String.format("could not load the samples of WorkflowRunAttempt %d", attempt.getId()), e);
+            return null;
+        }
+        return studyNames.size() == 1 ? studyNames.iterator().next() : null;
+    }
+
+    public WorkflowBeanService getWorkflowBeanService() {
+        return workflowBeanService;
+    }
+
+    public void setWorkflowBeanService(WorkflowBeanService workflowBeanService) {
+        this.workflowBeanService = workflowBeanService;
+    }
+
+}
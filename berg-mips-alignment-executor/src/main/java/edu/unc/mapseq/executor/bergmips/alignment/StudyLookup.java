@@ -0,0 +1,15 @@
+package edu.unc.mapseq.executor.bergmips.alignment;
+
+import edu.unc.mapseq.dao.model.WorkflowRunAttempt;
+
+/**
+ * Finds the study an enqueued attempt belongs to, which {@link AttemptScheduler} shares the free slots by.
+ */
+public interface StudyLookup {
+
+    /**
+     * @return the study name, or null when the attempt's samples don't belong to a single study
+     */
+    public String getStudyName(WorkflowRunAttempt attempt);
+
+}
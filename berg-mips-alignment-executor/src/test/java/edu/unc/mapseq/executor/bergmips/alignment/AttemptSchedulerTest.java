@@ -0,0 +1,153 @@
+package edu.unc.mapseq.executor.bergmips.alignment;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+
+import edu.unc.mapseq.dao.model.Attribute;
+import edu.unc.mapseq.dao.model.WorkflowRun;
+import edu.unc.mapseq.dao.model.WorkflowRunAttempt;
+
+public class AttemptSchedulerTest {
+
+    private static final long MINUTE = 60 * 1000L;
+
+    private WorkflowRunAttempt createAttempt(Long id, String runName, String priority, long minutesAgo) {
+        WorkflowRun workflowRun = new WorkflowRun();
+        workflowRun.setName(runName);
+        Set<Attribute> attributeSet = new HashSet<Attribute>();
+        if (priority != null) {
+            attributeSet.add(new Attribute(AttemptScheduler.PRIORITY, priority));
+        }
+        workflowRun.setAttributes(attributeSet);
+
+        WorkflowRunAttempt ret = new WorkflowRunAttempt();
+        ret.setId(id);
+        ret.setWorkflowRun(workflowRun);
+        ret.setCreated(new Date(System.currentTimeMillis() - minutesAgo * MINUTE));
+        return ret;
+    }
+
+    @Test
+    public void testPriority() {
+        WorkflowRunAttempt low = createAttempt(1L, "FC1_S1", null, 10);
+        WorkflowRunAttempt high = createAttempt(2L, "FC1_S2", "5", 5);
+        WorkflowRunAttempt medium = createAttempt(3L, "FC1_S3", "1", 1);
+
+        List<WorkflowRunAttempt> selected = new AttemptScheduler().select(Arrays.asList(low, high, medium), 2);
+        assertEquals(Arrays.asList(high, medium), selected);
+    }
+
+    @Test
+    public void testShareKeyBalancing() {
+        AttemptScheduler scheduler = new AttemptScheduler();
+        scheduler.acquire(createAttempt(10L, "FC1_S0", null, 30));
+
+        WorkflowRunAttempt fc1First = createAttempt(1L, "FC1_S1", null, 20);
+        WorkflowRunAttempt fc1Second = createAttempt(2L, "FC1_S2", null, 15);
+        WorkflowRunAttempt fc2 = createAttempt(3L, "FC2_S1", null, 10);
+
+        // FC1 already has one running, so FC2 goes first although it was enqueued last
+        List<WorkflowRunAttempt> selected = scheduler.select(Arrays.asList(fc1First, fc1Second, fc2), 3);
+        assertEquals(Arrays.asList(fc2, fc1First), selected);
+        assertEquals(1, scheduler.getRunningCount());
+    }
+
+    @Test
+    public void testAging() {
+        AttemptScheduler scheduler = new AttemptScheduler();
+        scheduler.setAgingInterval(60L);
+
+        WorkflowRunAttempt fresh = createAttempt(1L, "FC1_S1", "2", 0);
+        // three hours of waiting lift priority 0 above a fresh priority 2
+        WorkflowRunAttempt old = createAttempt(2L, "FC2_S1", "0", 180);
+
+        List<WorkflowRunAttempt> selected = scheduler.select(Arrays.asList(fresh, old), 1);
+        assertEquals(Arrays.asList(old), selected);
+        assertTrue(scheduler.getOldestWaitingAge() >= 180 * MINUTE);
+
+        // a scheduler that has just started ages the same attempt the same way
+        assertEquals(Arrays.asList(old), new AttemptScheduler().select(Arrays.asList(fresh, old), 1));
+
+        scheduler.markWaitingUnknown();
+        assertEquals(-1L, scheduler.getOldestWaitingAge());
+
+        scheduler.clearWaiting();
+        assertTrue(scheduler.getOldestWaitingAge() >= 0 && scheduler.getOldestWaitingAge() < MINUTE);
+    }
+
+    @Test
+    public void testBoundedAging() {
+        AttemptScheduler scheduler = new AttemptScheduler();
+        scheduler.setAgingInterval(60L);
+        scheduler.setMaxAgingBoost(3L);
+
+        WorkflowRunAttempt urgent = createAttempt(1L, "FC1_S1", "5", 0);
+        // ten hours of waiting only add three
+        WorkflowRunAttempt old = createAttempt(2L, "FC2_S1", "0", 600);
+        assertEquals(Arrays.asList(urgent, old), scheduler.select(Arrays.asList(old, urgent), 2));
+    }
+
+    @Test
+    public void testShareKeyBalancingWithinBand() {
+        AttemptScheduler scheduler = new AttemptScheduler();
+        scheduler.setAgingInterval(60L);
+        scheduler.setMaxAgingBoost(3L);
+
+        // all have waited out the boost, so they share a band and FC1's backlog takes turns with FC2 instead of going first by age
+        WorkflowRunAttempt fc1First = createAttempt(1L, "FC1_S1", null, 300);
+        WorkflowRunAttempt fc1Second = createAttempt(2L, "FC1_S2", null, 290);
+        WorkflowRunAttempt fc1Third = createAttempt(3L, "FC1_S3", null, 280);
+        WorkflowRunAttempt fc2 = createAttempt(4L, "FC2_S1", null, 200);
+
+        List<WorkflowRunAttempt> selected = scheduler.select(Arrays.asList(fc1First, fc1Second, fc1Third, fc2), 3);
+        assertEquals(Arrays.asList(fc1First, fc2, fc1Second), selected);
+    }
+
+    @Test
+    public void testStudyShareKey() {
+        final Map<Long, String> studyById = new HashMap<Long, String>();
+        studyById.put(1L, "StudyA");
+        studyById.put(2L, "StudyA");
+        studyById.put(3L, "StudyB");
+        final Set<Long> looked = new HashSet<Long>();
+        AttemptScheduler scheduler = new AttemptScheduler();
+        scheduler.setStudyLookup(new StudyLookup() {
+
+            @Override
+            public String getStudyName(WorkflowRunAttempt attempt) {
+                assertTrue(looked.add(attempt.getId()));
+                return studyById.get(attempt.getId());
+            }
+
+        });
+
+        // one flowcell, two studies: the studies take turns
+        WorkflowRunAttempt a1 = createAttempt(1L, "FC1_S1", null, 30);
+        WorkflowRunAttempt a2 = createAttempt(2L, "FC1_S2", null, 20);
+        WorkflowRunAttempt b1 = createAttempt(3L, "FC1_S3", null, 10);
+        // no study either, but its shareKey attribute puts it with StudyA
+        WorkflowRunAttempt other = createAttempt(4L, "FC2_S1", null, 5);
+        other.getWorkflowRun().getAttributes().add(new Attribute(AttemptScheduler.SHAREKEY, "StudyA"));
+
+        assertEquals(Arrays.asList(a1, b1, a2), scheduler.select(Arrays.asList(a1, a2, b1), 3));
+        assertEquals(Arrays.asList(a1, b1), scheduler.select(Arrays.asList(a1, a2, b1), 2));
+
+        // StudyA has one running, so StudyB goes first, then the older of the two StudyA attempts
+        scheduler.acquire(a1);
+        assertEquals(Arrays.asList(b1, a2), scheduler.select(Arrays.asList(a2, b1, other), 3));
+        // the shareKey attribute is used without a lookup
+        assertFalse(looked.contains(4L));
+    }
+
+}
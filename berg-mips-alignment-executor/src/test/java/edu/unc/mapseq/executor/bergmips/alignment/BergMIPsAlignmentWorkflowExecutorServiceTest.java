@@ -0,0 +1,77 @@
+package edu.unc.mapseq.executor.bergmips.alignment;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class BergMIPsAlignmentWorkflowExecutorServiceTest {
+
+    /**
+     * Counts the dequeues instead of reading the queue.
+     */
+    private static class CountingTask extends BergMIPsAlignmentWorkflowExecutorTask {
+
+        private final AtomicInteger runs = new AtomicInteger();
+
+        @Override
+        public void run() {
+            runs.incrementAndGet();
+        }
+
+    }
+
+    private CountingTask createTask(BergMIPsAlignmentWorkflowExecutorService service) {
+        CountingTask ret = new CountingTask();
+        service.setTask(ret);
+        return ret;
+    }
+
+    @Test
+    public void testSignalsCoalesce() throws Exception {
+        BergMIPsAlignmentWorkflowExecutorService service = new BergMIPsAlignmentWorkflowExecutorService();
+        CountingTask task = createTask(service);
+        service.setSignalDelay(1L);
+
+        for (long id = 1L; id <= 5L; id++) {
+            service.enqueued(id);
+        }
+        Thread.sleep(1500L);
+        assertEquals(1, task.runs.get());
+
+        // once it has run, the next signal schedules a new dequeue
+        service.enqueued(6L);
+        Thread.sleep(1500L);
+        assertEquals(2, task.runs.get());
+    }
+
+    @Test
+    public void testEarlierSignalReplacesPending() throws Exception {
+        BergMIPsAlignmentWorkflowExecutorService service = new BergMIPsAlignmentWorkflowExecutorService();
+        CountingTask task = createTask(service);
+
+        // an admission retry is pending when a new attempt arrives
+        service.signal(60L);
+        service.signal(1L);
+        Thread.sleep(1500L);
+        assertEquals(1, task.runs.get());
+    }
+
+    @Test
+    public void testLaterSignalKeepsPending() throws Exception {
+        BergMIPsAlignmentWorkflowExecutorService service = new BergMIPsAlignmentWorkflowExecutorService();
+        CountingTask task = createTask(service);
+
+        service.signal(1L);
+        service.signal(60L);
+        Thread.sleep(1500L);
+        assertEquals(1, task.runs.get());
+
+        // the later signal was covered by the dequeue that ran, not left pending
+        service.signal(1L);
+        Thread.sleep(1500L);
+        assertEquals(2, task.runs.get());
+    }
+
+}
@@ -0,0 +1,37 @@
+package edu.unc.mapseq.executor.bergmips.alignment;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+public class CondorCapacityProbeTest {
+
+    @Test
+    public void testParseTotals() {
+        assertArrayEquals(new int[] { 120, 45 }, CondorCapacityProbe.parseTotals(Arrays.asList("", "-- Schedd: sched.example.edu : <10.0.0.1:9618?...",
+                "Total for query: 3 jobs; 0 completed, 0 removed, 2 idle, 1 running, 0 held, 0 suspended",
+                "Total for mapseq: 3 jobs; 0 completed, 0 removed, 2 idle, 1 running, 0 held, 0 suspended",
+                "Total for all users: 170 jobs; 0 completed, 0 removed, 120 idle, 45 running, 5 held, 0 suspended")));
+        assertArrayEquals(new int[] { 7, 3 }, CondorCapacityProbe
+                .parseTotals(Arrays.asList("10 jobs; 0 completed, 0 removed, 7 idle, 3 running, 0 held, 0 suspended")));
+        assertNull(CondorCapacityProbe.parseTotals(Collections.<String> emptyList()));
+    }
+
+    @Test
+    public void testCommand() {
+        CondorCapacityProbe probe = new CondorCapacityProbe();
+        probe.setCommand("echo 'Total for all users: 100 jobs; 0 completed, 0 removed, 88 idle, 12 running, 0 held, 0 suspended'");
+        probe.setMaxIdleJobs(100);
+        probe.setJobsPerAttempt(5);
+        assertEquals(2, probe.getAdmittableAttempts());
+
+        probe.setCommand("exit 1");
+        assertEquals(-1, probe.getAdmittableAttempts());
+    }
+
+}
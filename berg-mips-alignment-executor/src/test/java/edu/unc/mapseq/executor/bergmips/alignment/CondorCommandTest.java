@@ -0,0 +1,26 @@
+package edu.unc.mapseq.executor.bergmips.alignment;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class CondorCommandTest {
+
+    @Test
+    public void testRun() {
+        assertEquals(Arrays.asList("1", "2"), CondorCommand.run("echo 1; echo 2 >&2", 30L));
+        assertNull(CondorCommand.run("echo 1; exit 1", 30L));
+    }
+
+    @Test
+    public void testTimeout() {
+        long start = System.currentTimeMillis();
+        assertNull(CondorCommand.run("sleep 30", 1L));
+        assertTrue(System.currentTimeMillis() - start < 10000L);
+    }
+
+}
@@ -0,0 +1,30 @@
+package edu.unc.mapseq.executor.bergmips.alignment;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class CondorDAGRemoverTest {
+
+    @Test
+    public void testRemove() {
+        CondorDAGRemover remover = new CondorDAGRemover();
+        assertTrue(remover.remove(null));
+
+        remover.setRemoveCommand("echo removed");
+        assertTrue(remover.remove(42));
+
+        // condor_rm fails for a cluster that already left the queue, condor_q then prints nothing
+        remover.setRemoveCommand("exit 1; echo");
+        remover.setQueryCommand("true");
+        assertTrue(remover.remove(42));
+
+        remover.setQueryCommand("echo");
+        assertFalse(remover.remove(42));
+
+        remover.setQueryCommand("exit 1; echo");
+        assertFalse(remover.remove(42));
+    }
+
+}
@@ -0,0 +1,87 @@
+package edu.unc.mapseq.executor.bergmips.alignment;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+public class LeaseManagerTest {
+
+    private LeaseManager createNode(String leaseDirectory, String owner, long leaseDuration) {
+        LeaseManager ret = new LeaseManager();
+        ret.setLeaseDirectory(leaseDirectory);
+        ret.setOwner(owner);
+        ret.setLeaseDuration(leaseDuration);
+        return ret;
+    }
+
+    @Test
+    public void testClaimAndTakeover() throws Exception {
+        String leaseDirectory = Files.createTempDirectory("lease").toString();
+        // a zero minute lease is expired as soon as it is written
+        LeaseManager dying = createNode(leaseDirectory, "node1", 0L);
+        LeaseManager survivor = createNode(leaseDirectory, "node2", 10L);
+
+        assertTrue(dying.claim(1L));
+        assertFalse(survivor.claim(1L));
+
+        Thread.sleep(5L);
+        assertEquals(Arrays.asList(1L), survivor.takeOverExpired());
+        assertFalse(dying.claim(1L));
+
+        // the old owner notices on its next heartbeat and does not win the lease back
+        dying.heartbeat();
+        assertEquals(Collections.<Long> emptyList(), survivor.takeOverExpired());
+
+        survivor.release(1L);
+        assertTrue(dying.claim(1L));
+    }
+
+    @Test
+    public void testHeartbeat() throws Exception {
+        String leaseDirectory = Files.createTempDirectory("lease").toString();
+        LeaseManager dying = createNode(leaseDirectory, "node1", 0L);
+        LeaseManager survivor = createNode(leaseDirectory, "node2", 10L);
+
+        assertTrue(survivor.claim(2L));
+        survivor.heartbeat();
+        assertEquals(Collections.<Long> emptyList(), dying.takeOverExpired());
+
+        assertTrue(dying.claim(1L));
+        Thread.sleep(5L);
+        assertEquals(Arrays.asList(1L), survivor.takeOverExpired());
+
+        // a late heartbeat of the old owner leaves the new lease in place
+        dying.heartbeat();
+        File leaseFile = new File(leaseDirectory, "1.lease");
+        assertTrue(new String(Files.readAllBytes(leaseFile.toPath()), StandardCharsets.UTF_8).contains("owner=node2"));
+        assertEquals(2, new File(leaseDirectory).list((dir, name) -> name.endsWith(".lease")).length);
+    }
+
+    @Test
+    public void testStrayLease() throws Exception {
+        String leaseDirectory = Files.createTempDirectory("lease").toString();
+        LeaseManager dying = createNode(leaseDirectory, "node1", 0L);
+        LeaseManager survivor = createNode(leaseDirectory, "node2", 10L);
+
+        assertTrue(dying.claim(1L));
+        // the node died while the lease was renamed away for a heartbeat
+        File leaseFile = new File(leaseDirectory, "1.lease");
+        File strayFile = new File(leaseDirectory, "1.lease.d1e0c6f4");
+        Files.move(leaseFile.toPath(), strayFile.toPath());
+        strayFile.setLastModified(System.currentTimeMillis() - 30 * 60 * 1000L);
+
+        assertEquals(Collections.<Long> emptyList(), survivor.takeOverExpired());
+        assertTrue(leaseFile.exists());
+        assertFalse(strayFile.exists());
+        assertEquals(Arrays.asList(1L), survivor.takeOverExpired());
+    }
+
+}
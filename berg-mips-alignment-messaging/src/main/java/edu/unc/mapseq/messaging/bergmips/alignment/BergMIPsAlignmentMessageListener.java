@@ -1,6 +1,8 @@
 package edu.unc.mapseq.messaging.bergmips.alignment;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import javax.jms.JMSException;
@@ -12,17 +14,24 @@ import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
 
+import edu.unc.mapseq.commons.bergmips.alignment.EnqueueSignal;
+import edu.unc.mapseq.commons.bergmips.alignment.instrumentation.PipelineMetrics;
 import edu.unc.mapseq.dao.MaPSeqDAOBeanService;
 import edu.unc.mapseq.dao.MaPSeqDAOException;
 import edu.unc.mapseq.dao.WorkflowDAO;
 import edu.unc.mapseq.dao.WorkflowRunAttemptDAO;
+import edu.unc.mapseq.dao.WorkflowRunDAO;
 import edu.unc.mapseq.dao.model.Workflow;
 import edu.unc.mapseq.dao.model.WorkflowRun;
 import edu.unc.mapseq.dao.model.WorkflowRunAttempt;
 import edu.unc.mapseq.dao.model.WorkflowRunAttemptStatusType;
 import edu.unc.mapseq.workflow.WorkflowException;
+import edu.unc.mapseq.workflow.model.WorkflowEntity;
 import edu.unc.mapseq.workflow.model.WorkflowMessage;
 import edu.unc.mapseq.workflow.sequencing.AbstractSequencingMessageListener;
 
@@ -30,6 +39,21 @@ public class BergMIPsAlignmentMessageListener extends AbstractSequencingMessageL
 
     private static final Logger logger = LoggerFactory.getLogger(BergMIPsAlignmentMessageListener.class);
 
+    public static final String MESSAGES = "messages";
+
+    public static final String IDEMPOTENCY_KEY = "idempotencyKey";
+
+    // immutable and thread safe, so every consumer session shares one, built once
+    private static final ObjectReader workflowMessageReader = new ObjectMapper().readerFor(WorkflowMessage.class);
+
+    private Integer dedupCacheSize = 10000;
+
+    private IdempotencyCache idempotencyCache = new IdempotencyCache(dedupCacheSize);
+
+    private List<EnqueueSignal> enqueueSignals = Collections.emptyList();
+
+    private Workflow workflow;
+
     public BergMIPsAlignmentMessageListener() {
         super();
     }
@@ -37,10 +61,33 @@ public class BergMIPsAlignmentMessageListener extends AbstractSequencingMessageL
     @Override
     public void onMessage(Message message) {
         logger.debug("ENTERING onMessage(Message)");
+        try {
+            handle(message);
+        } catch (MaPSeqDAOException e) {
+            logger.error(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Creates a WorkflowRun and PENDING attempt for each WorkflowMessage. Messages that can never succeed, including a WorkflowMessage
+     * that createWorkflowRun() rejects for an unknown sample or a missing entity, are logged and dropped, so they return normally.
+     *
+     * @throws MaPSeqDAOException
+     *             when the attempt could not be persisted, a transacted consumer rolls back and the message is redelivered
+     */
+    public void handle(Message message) throws MaPSeqDAOException {
+        logger.debug("ENTERING handle(Message)");
+        long start = System.currentTimeMillis();
+        PipelineMetrics.counter(PipelineMetrics.MESSAGES_RECEIVED).incrementAndGet();
 
         String messageValue = null;
+        String explicitKey = null;
 
         try {
+            explicitKey = message.getStringProperty(IDEMPOTENCY_KEY);
+            if (message.getJMSTimestamp() > 0) {
+                PipelineMetrics.timer(PipelineMetrics.MESSAGE_DELIVERY).record(start - message.getJMSTimestamp());
+            }
             if (message instanceof TextMessage) {
                 TextMessage textMessage = (TextMessage) message;
                 messageValue = textMessage.getText();
@@ -52,47 +99,224 @@ public class BergMIPsAlignmentMessageListener extends AbstractSequencingMessageL
 
         if (StringUtils.isEmpty(messageValue)) {
             logger.warn("message value is empty");
+            PipelineMetrics.counter(PipelineMetrics.MESSAGES_REJECTED).incrementAndGet();
             return;
         }
 
         logger.info("messageValue: {}", messageValue);
 
-        ObjectMapper mapper = new ObjectMapper();
-        WorkflowMessage workflowMessage = null;
+        List<WorkflowMessage> workflowMessages = null;
 
         try {
-            workflowMessage = mapper.readValue(messageValue, WorkflowMessage.class);
-            if (workflowMessage.getEntities() == null) {
-                logger.error("json lacks entities");
-                return;
+            workflowMessages = readWorkflowMessages(messageValue);
+            for (WorkflowMessage workflowMessage : workflowMessages) {
+                if (workflowMessage.getEntities() == null) {
+                    logger.error("json lacks entities");
+                    PipelineMetrics.counter(PipelineMetrics.MESSAGES_REJECTED).incrementAndGet();
+                    return;
+                }
             }
         } catch (IOException e) {
             logger.error("BAD JSON format", e);
+            PipelineMetrics.counter(PipelineMetrics.MESSAGES_REJECTED).incrementAndGet();
             return;
         }
 
         MaPSeqDAOBeanService daoBean = getWorkflowBeanService().getMaPSeqDAOBeanService();
         WorkflowDAO workflowDAO = daoBean.getWorkflowDAO();
         WorkflowRunAttemptDAO workflowRunAttemptDAO = daoBean.getWorkflowRunAttemptDAO();
+        WorkflowRunDAO workflowRunDAO = daoBean.getWorkflowRunDAO();
+
+        Workflow workflow = getWorkflow(workflowDAO);
+        if (workflow == null) {
+            logger.error("No Workflow Found: {}", getWorkflowName());
+            return;
+        }
 
+        List<WorkflowRunAttempt> attempts = new ArrayList<WorkflowRunAttempt>();
+        List<String> reservedKeys = new ArrayList<String>();
         try {
-            List<Workflow> workflowList = workflowDAO.findByName(getWorkflowName());
-            if (CollectionUtils.isEmpty(workflowList)) {
-                logger.error("No Workflow Found: {}", getWorkflowName());
-                return;
+            for (int i = 0; i < workflowMessages.size(); i++) {
+                WorkflowMessage workflowMessage = workflowMessages.get(i);
+                String key = getIdempotencyKey(workflowMessage, explicitKey, workflowMessages.size() > 1 ? i : null);
+                if (!idempotencyCache.reserve(key)) {
+                    logger.warn("dropping duplicate message {}", key);
+                    PipelineMetrics.counter(PipelineMetrics.MESSAGES_DUPLICATE).incrementAndGet();
+                    continue;
+                }
+                reservedKeys.add(key);
+                WorkflowRun workflowRun = findWorkflowRun(workflowRunDAO, workflow, getWorkflowRunName(workflowMessage));
+                if (workflowRun != null) {
+                    if (CollectionUtils.isNotEmpty(workflowRunAttemptDAO.findByWorkflowRunId(workflowRun.getId()))) {
+                        // enqueued before a restart or before it fell out of the cache, keep it reserved
+                        logger.warn("dropping message {}, its WorkflowRun already exists", key);
+                        PipelineMetrics.counter(PipelineMetrics.MESSAGES_DUPLICATE).incrementAndGet();
+                        continue;
+                    }
+                    // saved by a delivery that failed before its attempt was, enqueue the attempt that is missing
+                    logger.warn("WorkflowRun {} of message {} has no attempt, enqueuing one", workflowRun.getId(), key);
+                } else {
+                    try {
+                        workflowRun = createWorkflowRun(workflowMessage, workflow);
+                    } catch (WorkflowException e) {
+                        // a redelivery would fail the same way, forget the key so a corrected message is not taken for a duplicate
+                        logger.error(String.format("rejecting message %s", key), e);
+                        PipelineMetrics.counter(PipelineMetrics.MESSAGES_REJECTED).incrementAndGet();
+                        idempotencyCache.forget(key);
+                        reservedKeys.remove(key);
+                        continue;
+                    }
+                }
+
+                WorkflowRunAttempt attempt = new WorkflowRunAttempt();
+                attempt.setStatus(WorkflowRunAttemptStatusType.PENDING);
+                attempt.setWorkflowRun(workflowRun);
+                attempt.setId(workflowRunAttemptDAO.save(attempt));
+                PipelineMetrics.counter(PipelineMetrics.ATTEMPTS_ENQUEUED).incrementAndGet();
+                attempts.add(attempt);
+            }
+        } catch (MaPSeqDAOException | RuntimeException e) {
+            // the message is redelivered, the WorkflowRuns that did get saved are then found by findWorkflowRun()
+            for (String key : reservedKeys) {
+                idempotencyCache.forget(key);
             }
-            Workflow workflow = workflowList.get(0);
-            WorkflowRun workflowRun = createWorkflowRun(workflowMessage, workflow);
+            throw e;
+        }
+        PipelineMetrics.timer(PipelineMetrics.MESSAGE_PERSIST).recordSince(start);
+        if (attempts.size() > 1) {
+            logger.info("enqueued {} WorkflowRunAttempts from one flowcell message", attempts.size());
+        }
+
+        // signals are sent only once the whole message is persisted, so the executor sees the flowcell in one dequeue
+        for (WorkflowRunAttempt attempt : attempts) {
+            signalEnqueued(attempt);
+        }
 
-            WorkflowRunAttempt attempt = new WorkflowRunAttempt();
-            attempt.setStatus(WorkflowRunAttemptStatusType.PENDING);
-            attempt.setWorkflowRun(workflowRun);
-            workflowRunAttemptDAO.save(attempt);
+    }
 
-        } catch (WorkflowException | MaPSeqDAOException e1) {
-            logger.error(e1.getMessage(), e1);
+    /**
+     * The sender's "idempotencyKey" message property when it set one, numbered per WorkflowMessage in a flowcell message. Otherwise the
+     * WorkflowRun name and the sorted sample ids, which is what a re-sent sample repeats.
+     */
+    public static String getIdempotencyKey(WorkflowMessage workflowMessage, String explicitKey, Integer index) {
+        if (StringUtils.isNotEmpty(explicitKey)) {
+            return index != null ? String.format("%s/%d", explicitKey, index) : explicitKey;
+        }
+        List<String> sampleIds = new ArrayList<String>();
+        for (WorkflowEntity entity : workflowMessage.getEntities()) {
+            if ("Sample".equals(entity.getEntityType())) {
+                sampleIds.add(String.valueOf(entity.getId()));
+            }
         }
+        Collections.sort(sampleIds);
+        return String.format("%s:%s", getWorkflowRunName(workflowMessage), StringUtils.join(sampleIds, ","));
+    }
+
+    private static String getWorkflowRunName(WorkflowMessage workflowMessage) {
+        for (WorkflowEntity entity : workflowMessage.getEntities()) {
+            if ("WorkflowRun".equals(entity.getEntityType())) {
+                return entity.getName();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The database side of the check, for duplicates the cache no longer holds. Nothing in the database makes WorkflowRun names unique,
+     * they are unique per workflow by the senders' naming only, so the first match is taken.
+     *
+     * @return the WorkflowRun of that name for this workflow, or null
+     */
+    private WorkflowRun findWorkflowRun(WorkflowRunDAO workflowRunDAO, Workflow workflow, String workflowRunName)
+            throws MaPSeqDAOException {
+        if (StringUtils.isEmpty(workflowRunName)) {
+            return null;
+        }
+        List<WorkflowRun> workflowRunList = workflowRunDAO.findByName(workflowRunName);
+        if (CollectionUtils.isNotEmpty(workflowRunList)) {
+            for (WorkflowRun workflowRun : workflowRunList) {
+                if (workflowRun.getWorkflow() != null && workflow.getId().equals(workflowRun.getWorkflow().getId())) {
+                    return workflowRun;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * A message holds either one WorkflowMessage, or a whole flowcell as {"messages":[{"entities":[...]},...]}, next to any other fields.
+     * The flowcell list is read from the parser one element at a time, so it is never built up as a tree first.
+     */
+    public static List<WorkflowMessage> readWorkflowMessages(String messageValue) throws IOException {
+        List<WorkflowMessage> ret = new ArrayList<WorkflowMessage>();
+        try (JsonParser parser = workflowMessageReader.getFactory().createParser(messageValue)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("message is not a JSON object");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                if (!MESSAGES.equals(parser.getCurrentName())) {
+                    parser.nextToken();
+                    parser.skipChildren();
+                    continue;
+                }
+                if (parser.nextToken() != JsonToken.START_ARRAY) {
+                    throw new IOException(String.format("\"%s\" is not an array", MESSAGES));
+                }
+                JsonToken token = parser.nextToken();
+                while (token == JsonToken.START_OBJECT) {
+                    WorkflowMessage workflowMessage = workflowMessageReader.readValue(parser);
+                    ret.add(workflowMessage);
+                    token = parser.nextToken();
+                }
+                if (token != JsonToken.END_ARRAY) {
+                    throw new IOException(String.format("\"%s\" holds something other than objects", MESSAGES));
+                }
+                return ret;
+            }
+        }
+        ret.add(workflowMessageReader.readValue(messageValue));
+        return ret;
+    }
+
+    /**
+     * The workflow does not change while the bundle is running, so it is looked up once instead of for every message.
+     */
+    private synchronized Workflow getWorkflow(WorkflowDAO workflowDAO) throws MaPSeqDAOException {
+        if (workflow == null) {
+            List<Workflow> workflowList = workflowDAO.findByName(getWorkflowName());
+            if (CollectionUtils.isNotEmpty(workflowList)) {
+                workflow = workflowList.get(0);
+            }
+        }
+        return workflow;
+    }
+
+    private void signalEnqueued(WorkflowRunAttempt attempt) {
+        for (EnqueueSignal enqueueSignal : enqueueSignals) {
+            try {
+                enqueueSignal.enqueued(attempt.getId());
+            } catch (RuntimeException e) {
+                // the executor may be restarting, its reconciliation poll will still find the attempt
+                logger.warn("could not signal executor: {}", e.getMessage());
+            }
+        }
+    }
+
+    public Integer getDedupCacheSize() {
+        return dedupCacheSize;
+    }
+
+    public void setDedupCacheSize(Integer dedupCacheSize) {
+        this.dedupCacheSize = dedupCacheSize;
+        this.idempotencyCache = new IdempotencyCache(dedupCacheSize);
+    }
+
+    public List<EnqueueSignal> getEnqueueSignals() {
+        return enqueueSignals;
+    }
 
+    public void setEnqueueSignals(List<EnqueueSignal> enqueueSignals) {
+        this.enqueueSignals = enqueueSignals;
     }
 
 }
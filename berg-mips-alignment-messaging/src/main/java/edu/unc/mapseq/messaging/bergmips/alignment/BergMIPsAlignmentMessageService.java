@@ -1,21 +1,44 @@
 package edu.unc.mapseq.messaging.bergmips.alignment;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
 import javax.jms.Connection;
 import javax.jms.ConnectionFactory;
 import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.Message;
 import javax.jms.MessageConsumer;
 import javax.jms.Session;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import edu.unc.mapseq.commons.bergmips.alignment.instrumentation.PipelineMetricsMBean;
+import edu.unc.mapseq.dao.MaPSeqDAOException;
+
+/**
+ * Consumes the queue with consumerCount transacted sessions, each on its own thread, so a flowcell's worth of messages is taken in
+ * parallel. A session receives up to batchSize messages and commits them together once every attempt in the batch is saved. A message the
+ * listener rejects, e.g. for an unknown sample, is committed with the rest. When an attempt cannot be saved the batch is rolled back and
+ * the broker redelivers it, so a message is never acknowledged before its attempt exists. The redelivered messages are then taken one per
+ * commit, so a message that keeps failing is rolled back alone and the others go through. The WorkflowRuns a rolled back batch did save are
+ * found again by the listener instead of being created twice.
+ */
 public class BergMIPsAlignmentMessageService {
 
     private final Logger logger = LoggerFactory.getLogger(BergMIPsAlignmentMessageService.class);
 
     private Connection connection;
 
-    private Session session;
+    private final List<Session> sessions = new ArrayList<Session>();
+
+    private ExecutorService consumerExecutor;
+
+    private volatile boolean running = false;
 
     private ConnectionFactory connectionFactory;
 
@@ -23,6 +46,14 @@ public class BergMIPsAlignmentMessageService {
 
     private String destinationName;
 
+    private Integer consumerCount = 4;
+
+    private Integer batchSize = 20;
+
+    private Long receiveTimeout = 1000L;
+
+    private final PipelineMetricsMBean metricsMBean = new PipelineMetricsMBean("message.");
+
     public BergMIPsAlignmentMessageService() {
         super();
     }
@@ -30,18 +61,79 @@ public class BergMIPsAlignmentMessageService {
     public void start() throws Exception {
         logger.info("ENTERING start()");
         this.connection = connectionFactory.createConnection();
-        this.session = this.connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
-        Destination destination = this.session.createQueue(this.destinationName);
-        MessageConsumer consumer = this.session.createConsumer(destination);
-        consumer.setMessageListener(getMessageListener());
+        this.running = true;
+        this.consumerExecutor = Executors.newFixedThreadPool(consumerCount);
+        for (int i = 0; i < consumerCount; i++) {
+            Session session = this.connection.createSession(true, Session.SESSION_TRANSACTED);
+            Destination destination = session.createQueue(this.destinationName);
+            MessageConsumer consumer = session.createConsumer(destination);
+            sessions.add(session);
+            consumerExecutor.execute(() -> consume(session, consumer));
+        }
         this.connection.start();
+        metricsMBean.register("Messaging");
+    }
+
+    /**
+     * Runs on a consumer thread, which is the only thread that touches the session.
+     */
+    private void consume(Session session, MessageConsumer consumer) {
+        logger.debug("ENTERING consume(Session, MessageConsumer)");
+        // messages left to take one at a time after a rollback
+        int isolated = 0;
+        while (running) {
+            int received = 0;
+            try {
+                Message message = consumer.receive(receiveTimeout);
+                while (message != null) {
+                    received++;
+                    messageListener.handle(message);
+                    if (received >= (isolated > 0 ? 1 : batchSize)) {
+                        break;
+                    }
+                    // don't hold a partial batch open waiting for more, take only what is already here
+                    message = consumer.receiveNoWait();
+                }
+                if (received > 0) {
+                    session.commit();
+                    logger.debug("committed {} messages", received);
+                    isolated = Math.max(0, isolated - received);
+                }
+            } catch (MaPSeqDAOException | RuntimeException e) {
+                logger.error(String.format("rolling back %d messages", received), e);
+                rollback(session);
+                isolated = Math.max(isolated, received);
+            } catch (JMSException e) {
+                if (running) {
+                    logger.error(e.getMessage(), e);
+                    rollback(session);
+                    isolated = Math.max(isolated, received);
+                }
+            }
+        }
+    }
+
+    private void rollback(Session session) {
+        try {
+            session.rollback();
+        } catch (JMSException e) {
+            logger.error(e.getMessage(), e);
+        }
     }
 
     public void stop() throws Exception {
         logger.info("ENTERING stop()");
-        if (this.session != null) {
-            this.session.close();
+        metricsMBean.unregister();
+        this.running = false;
+        if (this.consumerExecutor != null) {
+            this.consumerExecutor.shutdown();
+            // lets a batch in progress commit
+            this.consumerExecutor.awaitTermination(receiveTimeout + 30000, TimeUnit.MILLISECONDS);
         }
+        for (Session session : sessions) {
+            session.close();
+        }
+        sessions.clear();
         if (this.connection != null) {
             this.connection.stop();
             this.connection.close();
@@ -72,4 +164,28 @@ public class BergMIPsAlignmentMessageService {
         this.destinationName = destinationName;
     }
 
+    public Integer getConsumerCount() {
+        return consumerCount;
+    }
+
+    public void setConsumerCount(Integer consumerCount) {
+        this.consumerCount = consumerCount;
+    }
+
+    public Integer getBatchSize() {
+        return batchSize;
+    }
+
+    public void setBatchSize(Integer batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public Long getReceiveTimeout() {
+        return receiveTimeout;
+    }
+
+    public void setReceiveTimeout(Long receiveTimeout) {
+        this.receiveTimeout = receiveTimeout;
+    }
+
 }
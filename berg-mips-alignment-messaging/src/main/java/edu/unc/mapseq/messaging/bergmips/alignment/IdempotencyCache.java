@@ -0,0 +1,54 @@
+package edu.unc.mapseq.messaging.bergmips.alignment;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The idempotency keys of the most recently enqueued WorkflowRuns, least recently used first. Only maxSize keys are kept, so an old
+ * duplicate falls through to the database check in the listener. The cache lives in memory on each node, so a duplicate taken by another
+ * node, or one that arrives after a restart, is only caught by that database check.
+ */
+public class IdempotencyCache {
+
+    private final Map<String, Boolean> keys;
+
+    public IdempotencyCache(final int maxSize) {
+        super();
+        this.keys = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > maxSize;
+            }
+
+        };
+    }
+
+    /**
+     * Check and record in one step, so two consumer sessions handling the same duplicate can't both see it as new.
+     *
+     * @return false when the key was already seen
+     */
+    public synchronized boolean reserve(String key) {
+        // get() rather than containsKey(), so a repeated key counts as recently used
+        if (keys.get(key) != null) {
+            return false;
+        }
+        keys.put(key, Boolean.TRUE);
+        return true;
+    }
+
+    /**
+     * Drops a key whose WorkflowRun was not saved after all, so the redelivered message is not taken for a duplicate.
+     */
+    public synchronized void forget(String key) {
+        keys.remove(key);
+    }
+
+    public synchronized int size() {
+        return keys.size();
+    }
+
+}
@@ -0,0 +1,33 @@
+package edu.unc.mapseq.messaging.bergmips.alignment;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class IdempotencyCacheTest {
+
+    @Test
+    public void testReserve() {
+        IdempotencyCache cache = new IdempotencyCache(10);
+        assertTrue(cache.reserve("run_L1_BWA:2546811"));
+        assertFalse(cache.reserve("run_L1_BWA:2546811"));
+        cache.forget("run_L1_BWA:2546811");
+        assertTrue(cache.reserve("run_L1_BWA:2546811"));
+    }
+
+    @Test
+    public void testEviction() {
+        IdempotencyCache cache = new IdempotencyCache(2);
+        assertTrue(cache.reserve("a"));
+        assertTrue(cache.reserve("b"));
+        // touching "a" makes "b" the least recently used
+        assertFalse(cache.reserve("a"));
+        assertTrue(cache.reserve("c"));
+        assertEquals(2, cache.size());
+        assertFalse(cache.reserve("a"));
+        assertTrue(cache.reserve("b"));
+    }
+
+}
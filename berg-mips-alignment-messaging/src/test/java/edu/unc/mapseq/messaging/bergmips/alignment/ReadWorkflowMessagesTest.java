@@ -0,0 +1,55 @@
+package edu.unc.mapseq.messaging.bergmips.alignment;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.Test;
+
+import edu.unc.mapseq.workflow.model.WorkflowMessage;
+
+public class ReadWorkflowMessagesTest {
+
+    @Test
+    public void testSingle() throws IOException {
+        List<WorkflowMessage> workflowMessages = BergMIPsAlignmentMessageListener.readWorkflowMessages(
+                "{\"entities\":[{\"entityType\":\"Sample\",\"id\":\"2546811\"},{\"entityType\":\"WorkflowRun\",\"name\":\"test_L1_BWA\"}]}");
+        assertEquals(1, workflowMessages.size());
+        assertEquals(2, workflowMessages.get(0).getEntities().size());
+    }
+
+    @Test
+    public void testFlowcell() throws IOException {
+        String format = "{\"entities\":[{\"entityType\":\"Sample\",\"id\":\"%d\"},{\"entityType\":\"WorkflowRun\",\"name\":\"test_L1_%d_BWA\"}]}";
+        StringBuilder sb = new StringBuilder("{\"messages\":[");
+        for (int i = 0; i < 96; i++) {
+            if (i > 0) {
+                sb.append(",");
+            }
+            sb.append(String.format(format, 2546811 + i, i));
+        }
+        sb.append("]}");
+        List<WorkflowMessage> workflowMessages = BergMIPsAlignmentMessageListener.readWorkflowMessages(sb.toString());
+        assertEquals(96, workflowMessages.size());
+        for (WorkflowMessage workflowMessage : workflowMessages) {
+            assertEquals(2, workflowMessage.getEntities().size());
+        }
+    }
+
+    @Test
+    public void testMessagesAfterOtherFields() throws IOException {
+        // a "messages" field nested in another field is not the flowcell list
+        String messageValue = "{\"flowcell\":\"test\",\"options\":{\"messages\":1,\"list\":[1,2]},\"messages\":["
+                + "{\"entities\":[{\"entityType\":\"Sample\",\"id\":\"2546811\"}]},"
+                + "{\"entities\":[{\"entityType\":\"Sample\",\"id\":\"2546812\"}]}]}";
+        List<WorkflowMessage> workflowMessages = BergMIPsAlignmentMessageListener.readWorkflowMessages(messageValue);
+        assertEquals(2, workflowMessages.size());
+    }
+
+    @Test(expected = IOException.class)
+    public void testMessagesNotObjects() throws IOException {
+        BergMIPsAlignmentMessageListener.readWorkflowMessages("{\"messages\":[1,2]}");
+    }
+
+}
@@ -1,10 +1,17 @@
 package edu.unc.mapseq.workflow.bergmips.alignment;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.lang.StringUtils;
@@ -12,224 +19,664 @@ import org.jgrapht.DirectedGraph;
 import org.jgrapht.Graph;
 import org.jgrapht.graph.DefaultDirectedGraph;
 import org.renci.jlrm.condor.CondorJob;
-import org.renci.jlrm.condor.CondorJobBuilder;
 import org.renci.jlrm.condor.CondorJobEdge;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import edu.unc.mapseq.commons.bergmips.alignment.ReferenceCache;
 import edu.unc.mapseq.commons.bergmips.alignment.RegisterToIRODSRunnable;
+import edu.unc.mapseq.commons.bergmips.alignment.SampleSnapshot;
 import edu.unc.mapseq.commons.bergmips.alignment.SaveCollectHsMetricsAttributesRunnable;
+import edu.unc.mapseq.commons.bergmips.alignment.instrumentation.PipelineMetrics;
+import edu.unc.mapseq.commons.bergmips.alignment.module.BWAMEMSortCLI;
+import edu.unc.mapseq.commons.bergmips.alignment.module.CollectHsMetricsCLI;
+import edu.unc.mapseq.commons.bergmips.alignment.module.MergeBAMCLI;
+import edu.unc.mapseq.commons.bergmips.alignment.module.SplitFastqCLI;
 import edu.unc.mapseq.dao.MaPSeqDAOBeanService;
+import edu.unc.mapseq.dao.MaPSeqDAOException;
 import edu.unc.mapseq.dao.model.Attribute;
-import edu.unc.mapseq.dao.model.Flowcell;
+import edu.unc.mapseq.dao.model.Job;
 import edu.unc.mapseq.dao.model.Sample;
 import edu.unc.mapseq.dao.model.WorkflowRun;
 import edu.unc.mapseq.dao.model.WorkflowRunAttempt;
-import edu.unc.mapseq.module.core.RemoveCLI;
-import edu.unc.mapseq.module.sequencing.bwa.BWAMEMCLI;
+import edu.unc.mapseq.dao.model.WorkflowRunAttemptStatusType;
 import edu.unc.mapseq.module.sequencing.fastqc.FastQCCLI;
 import edu.unc.mapseq.module.sequencing.fastqc.IgnoreLevelType;
-import edu.unc.mapseq.module.sequencing.picard.PicardSortOrderType;
-import edu.unc.mapseq.module.sequencing.picard2.PicardAddOrReplaceReadGroupsCLI;
 import edu.unc.mapseq.module.sequencing.picard2.PicardCollectHsMetricsCLI;
 import edu.unc.mapseq.module.sequencing.samtools.SAMToolsIndexCLI;
 import edu.unc.mapseq.workflow.WorkflowException;
 import edu.unc.mapseq.workflow.sequencing.AbstractSequencingWorkflow;
-import edu.unc.mapseq.workflow.sequencing.SequencingWorkflowJobFactory;
 import edu.unc.mapseq.workflow.sequencing.SequencingWorkflowUtil;
 
 public class BergMIPsAlignmentWorkflow extends AbstractSequencingWorkflow {
 
     private static final Logger logger = LoggerFactory.getLogger(BergMIPsAlignmentWorkflow.class);
 
+    public static final String FASTQC_R1_STAGE = "fastqcR1";
+
+    public static final String FASTQC_R2_STAGE = "fastqcR2";
+
+    public static final String SPLIT_STAGE = "split";
+
+    public static final String ALIGN_CHUNK_STAGE = "align.chunk%d";
+
+    public static final String ALIGN_STAGE = "align";
+
+    public static final String INDEX_STAGE = "index";
+
+    public static final String HSMETRICS_STAGE = "hsMetrics";
+
+    private SampleSnapshot sampleSnapshot;
+
+    private String siteName;
+
+    private SiteSelector siteSelector;
+
+    private List<File> referenceFiles;
+
+    private List<File> referenceInputs;
+
+    private String referenceSequence;
+
+    private String readGroupPlatform;
+
+    private String baitIntervalList;
+
+    private String targetIntervalList;
+
+    private String referenceCacheDirectory;
+
+    private String referenceCacheKey;
+
+    private long scatterReadCountThreshold;
+
+    private int scatterChunks;
+
+    private long scatterBytesPerRead;
+
+    private boolean resume;
+
+    private boolean nativeHsMetrics;
+
+    private boolean preflight;
+
+    private ResourceEstimator resourceEstimator;
+
+    private StageFusionPass stageFusionPass;
+
+    private CriticalPathOptimizer criticalPathOptimizer;
+
+    private int jobCountOffset = 0;
+
+    private int jobCount = 0;
+
+    private Semaphore workPermits;
+
     public BergMIPsAlignmentWorkflow() {
         super();
     }
 
+    /**
+     * Loaded on first use and then shared by createGraph() and postRun(). postRun() takes only the sample ids from it, the runnables load
+     * each sample again before saving so attributes changed while the DAG ran are not overwritten.
+     */
+    private SampleSnapshot getSampleSnapshot() {
+        if (sampleSnapshot == null) {
+            sampleSnapshot = SampleSnapshot.load(getWorkflowBeanService().getMaPSeqDAOBeanService(), getWorkflowRunAttempt());
+        }
+        return sampleSnapshot;
+    }
+
     @Override
     public Graph<CondorJob, CondorJobEdge> createGraph() throws WorkflowException {
         logger.info("ENTERING createGraph()");
+        acquireWorkPermit();
+        try {
+            return buildGraph();
+        } finally {
+            releaseWorkPermit();
+        }
+    }
+
+    private Graph<CondorJob, CondorJobEdge> buildGraph() throws WorkflowException {
+        long start = System.currentTimeMillis();
 
         DirectedGraph<CondorJob, CondorJobEdge> graph = new DefaultDirectedGraph<CondorJob, CondorJobEdge>(CondorJobEdge.class);
 
-        int count = 0;
-        Set<Sample> sampleSet = SequencingWorkflowUtil.getAggregatedSamples(getWorkflowBeanService().getMaPSeqDAOBeanService(),
-                getWorkflowRunAttempt());
-        logger.info("sampleSet.size(): {}", sampleSet.size());
+        SampleSnapshot snapshot = getSampleSnapshot();
+        logger.info("sampleSet.size(): {}", snapshot.getSamples().size());
 
-        String siteName = getWorkflowBeanService().getAttributes().get("siteName");
-        String referenceSequence = getWorkflowBeanService().getAttributes().get("referenceSequence");
-        String readGroupPlatform = getWorkflowBeanService().getAttributes().get("readGroupPlatform");
-        String baitIntervalList = getWorkflowBeanService().getAttributes().get("baitIntervalList");
-        String targetIntervalList = getWorkflowBeanService().getAttributes().get("targetIntervalList");
+        Map<String, String> attributes = getWorkflowBeanService().getAttributes();
+        configure(attributes);
 
+        int batchSize = 1;
+        String batchSizeValue = attributes.get("batchSize");
+        if (StringUtils.isNotEmpty(batchSizeValue)) {
+            batchSize = Integer.valueOf(batchSizeValue);
+        }
+
+        int graphBuilderParallelism = 1;
+        String graphBuilderParallelismValue = attributes.get("graphBuilderParallelism");
+        if (StringUtils.isNotEmpty(graphBuilderParallelismValue)) {
+            graphBuilderParallelism = Integer.valueOf(graphBuilderParallelismValue);
+        }
+
+        List<SampleInput> sampleInputList = new ArrayList<SampleInput>();
+        for (Sample sample : snapshot.getSamples()) {
+            sampleInputList.add(createSampleInput(snapshot, sample));
+        }
+
+        List<StagePlan> planList = null;
+        try {
+            logger.info("graphBuilderParallelism: {}", graphBuilderParallelism);
+            planList = new ParallelPlanBuilder(graphBuilderParallelism).build(sampleInputList, this::buildSamplePlan);
+        } catch (WorkflowException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new WorkflowException(e);
+        }
+
+        List<String> rejectionList = new ArrayList<String>();
+        long criticalPathBefore = 0L;
+        long criticalPathAfter = 0L;
+        for (SampleInput sampleInput : sampleInputList) {
+            criticalPathBefore = Math.max(criticalPathBefore, sampleInput.getCriticalPathBefore());
+            criticalPathAfter = Math.max(criticalPathAfter, sampleInput.getCriticalPathAfter());
+            if (sampleInput.getPreflightAttributes() != null) {
+                saveSampleAttributes(snapshot, snapshot.getSample(sampleInput.getSampleId()), sampleInput.getPreflightAttributes());
+            }
+            if (sampleInput.getRejection() != null) {
+                rejectionList.add(String.format("sample %d: %s", sampleInput.getSampleId(), sampleInput.getRejection()));
+            }
+        }
+
+        // nothing is submitted, so the attempt fails here instead of finishing DONE and registering a sample that never ran
+        if (!rejectionList.isEmpty()) {
+            throw new WorkflowException(String.format("preflight rejected %s", StringUtils.join(rejectionList, "; ")));
+        }
+
+        StageGraphAssembler assembler = new StageGraphAssembler(batchSize, jobCountOffset);
+        try {
+            logger.info("batchSize: {}", batchSize);
+            assembler.assemble(planList, graph);
+            jobCount = assembler.getCount();
+        } catch (Exception e) {
+            throw new WorkflowException(e);
+        }
+
+        criticalPathOptimizer.report(criticalPathBefore, criticalPathAfter, graph, assembler.getInvocationsByJob());
+
+        PipelineMetrics.timer(PipelineMetrics.CREATE_GRAPH).recordSince(start);
+        return graph;
+    }
+
+    /**
+     * Reads the workflow settings into the fields the plan builder pool reads from.
+     */
+    void configure(Map<String, String> attributes) {
+        siteName = attributes.get("siteName");
+        referenceSequence = attributes.get("referenceSequence");
+        readGroupPlatform = attributes.get("readGroupPlatform");
+        baitIntervalList = attributes.get("baitIntervalList");
+        targetIntervalList = attributes.get("targetIntervalList");
+
+        referenceCacheDirectory = attributes.get("referenceCacheDirectory");
+        referenceCacheKey = null;
+        if (StringUtils.isNotEmpty(referenceCacheDirectory)) {
+            try {
+                referenceCacheKey = ReferenceCache
+                        .computeKey(ReferenceCache.getReferenceFiles(new File(ReferenceCache.expand(referenceSequence))));
+                logger.info("referenceCacheKey: {}", referenceCacheKey);
+            } catch (IOException e) {
+                logger.warn("could not checksum reference, jobs will read the shared copy", e);
+            }
+        }
+
+        // the fasta and its index, so resume notices a rebuilt index as well as a new reference
+        referenceInputs = ReferenceCache.getReferenceFiles(new File(ReferenceCache.expand(referenceSequence)));
+
+        // a cached reference is staged onto the node, so only a shared reference counts toward where a sample runs
+        referenceFiles = referenceCacheKey != null ? Collections.<File> emptyList() : referenceInputs;
+        siteSelector = createSiteSelector(attributes);
+
+        scatterReadCountThreshold = Long.valueOf(attributes.get("scatterReadCountThreshold"));
+        scatterChunks = Integer.valueOf(attributes.get("scatterChunks"));
+        scatterBytesPerRead = Long.valueOf(attributes.get("scatterBytesPerRead"));
+
+        resume = Boolean.valueOf(attributes.get("resume"));
+
+        preflight = Boolean.valueOf(attributes.get("preflight"));
+
+        nativeHsMetrics = "native".equalsIgnoreCase(attributes.get("hsMetricsEngine"));
+
+        int bwaIndexMemory = ResourceEstimator.getBWAIndexMemory(referenceInputs);
+        logger.info("bwaIndexMemory: {}", bwaIndexMemory);
+        resourceEstimator = new ResourceEstimator(JobGraphUtil.parseKeyValueList(attributes.get("resourceCurves")), bwaIndexMemory);
+
+        stageFusionPass = new StageFusionPass(attributes.get("fusionRules"));
+
+        criticalPathOptimizer = new CriticalPathOptimizer(JobGraphUtil.parseKeyValueList(attributes.get("moduleCostHints")),
+                attributes.get("sideBranchModules"));
+    }
+
+    @Override
+    public void execute() throws WorkflowException {
+        long start = System.currentTimeMillis();
+        try {
+            super.execute();
+        } finally {
+            PipelineMetrics.timer(PipelineMetrics.DAG_RUN).recordSince(start);
+            recordOutcome();
+        }
+    }
+
+    /**
+     * Counts the attempt as succeeded or failed and records the run times of its jobs, whether or not postRun() gets to run.
+     */
+    protected void recordOutcome() {
+        WorkflowRunAttempt attempt = getWorkflowRunAttempt();
+        recordJobRunTimes(attempt);
+        if (WorkflowRunAttemptStatusType.FAILED.equals(attempt.getStatus())) {
+            PipelineMetrics.counter(PipelineMetrics.ATTEMPTS_FAILED).incrementAndGet();
+        } else {
+            PipelineMetrics.counter(PipelineMetrics.ATTEMPTS_SUCCEEDED).incrementAndGet();
+        }
+    }
+
+    /**
+     * The site map is "pathPrefix=siteName,...". Samples whose files match no prefix run on siteName.
+     */
+    protected SiteSelector createSiteSelector(Map<String, String> attributes) {
+        Map<String, String> sitesByPrefix = JobGraphUtil.parseKeyValueList(attributes.get("sitePrefixMap"));
+        logger.info("sitePrefixMap: {}", sitesByPrefix);
+        return new PathPrefixSiteSelector(siteName, sitesByPrefix);
+    }
+
+    /**
+     * Everything buildSamplePlan() needs from the sample and its lazy associations, resolved on the calling thread.
+     */
+    private SampleInput createSampleInput(SampleSnapshot snapshot, Sample sample) throws WorkflowException {
         WorkflowRunAttempt attempt = getWorkflowRunAttempt();
         WorkflowRun workflowRun = attempt.getWorkflowRun();
 
-        for (Sample sample : sampleSet) {
+        logger.debug(sample.toString());
 
-            if ("Undetermined".equals(sample.getBarcode())) {
-                continue;
-            }
+        String subjectName = snapshot.getSubjectName(sample);
+        if (StringUtils.isEmpty(subjectName)) {
+            throw new WorkflowException("subjectName is empty");
+        }
 
-            logger.debug(sample.toString());
+        List<File> readPairList = SequencingWorkflowUtil.getReadPairList(sample);
+        logger.debug("readPairList.size(): {}", readPairList.size());
 
-            String subjectName = "";
-            Set<Attribute> sampleAttributes = sample.getAttributes();
-            if (sampleAttributes != null && !sampleAttributes.isEmpty()) {
-                for (Attribute attribute : sampleAttributes) {
-                    if (attribute.getName().equals("subjectName")) {
-                        subjectName = attribute.getValue();
-                        break;
-                    }
+        if (readPairList.size() != 2) {
+            throw new WorkflowException("readPairList != 2");
+        }
+
+        SampleInput ret = new SampleInput(attempt.getId(), sample.getId(),
+                SequencingWorkflowUtil.createOutputDirectory(sample, workflowRun.getWorkflow()));
+        ret.setRootFileName(workflowRun.getName());
+        ret.setBarcode(sample.getBarcode());
+        ret.setLaneIndex(sample.getLaneIndex());
+        ret.setFlowcellName(snapshot.getFlowcell(sample).getName());
+        ret.setSubjectName(subjectName);
+        ret.setR1FastqFile(readPairList.get(0));
+        ret.setR2FastqFile(readPairList.get(1));
+        ret.setReadCount(snapshot.getAttribute(sample, FastqPreflight.READCOUNT));
+        ret.setPreflightStamp(snapshot.getAttribute(sample, FastqPreflight.PREFLIGHTSTAMP));
+        return ret;
+    }
+
+    /**
+     * Builds the stages of one sample. Runs on the plan builder pool, so it only reads the sample input and the settings captured by
+     * configure(), and touches no DAO.
+     *
+     * @return the plan, or null when every stage of the sample is already complete
+     */
+    StagePlan buildSamplePlan(SampleInput sampleInput) throws WorkflowException {
+        Long attemptId = sampleInput.getAttemptId();
+        Long sampleId = sampleInput.getSampleId();
+        String subjectName = sampleInput.getSubjectName();
+
+        File workflowDirectory = sampleInput.getWorkflowDirectory();
+        File tmpDir = new File(workflowDirectory, "tmp");
+        if (!tmpDir.exists()) {
+            tmpDir.mkdirs();
+        }
+
+        File r1FastqFile = sampleInput.getR1FastqFile();
+        File r2FastqFile = sampleInput.getR2FastqFile();
+        List<File> readPairList = Arrays.asList(r1FastqFile, r2FastqFile);
+        if (preflight && !runPreflight(sampleInput)) {
+            return null;
+        }
+
+        // String rootFileName = String.format("%s_%s_L%03d", sample.getFlowcell().getName(), sample.getBarcode(),
+        // sample.getLaneIndex());
+
+        List<File> siteFiles = new ArrayList<File>(readPairList);
+        siteFiles.addAll(referenceFiles);
+        String sampleSiteName = siteSelector.selectSite(siteFiles);
+        logger.debug("sampleSiteName: {}", sampleSiteName);
+
+        String rootFileName = sampleInput.getRootFileName();
+
+        StagePlan plan = new StagePlan(sampleId, workflowDirectory);
+
+        ModuleInvocation invocation = new ModuleInvocation(FastQCCLI.class, attemptId, sampleId);
+        invocation.setSiteName(sampleSiteName);
+        File fastqcR1Output = new File(workflowDirectory, String.format("%s.r1.fastqc.zip", rootFileName));
+        invocation.addArgument(FastQCCLI.INPUT, r1FastqFile.getAbsolutePath()).addArgument(FastQCCLI.OUTPUT, fastqcR1Output.getAbsolutePath())
+                .addArgument(FastQCCLI.IGNORE, IgnoreLevelType.ERROR.toString());
+        invocation.addInput(r1FastqFile).addOutput(fastqcR1Output);
+        plan.addStage(FASTQC_R1_STAGE, invocation);
+
+        invocation = new ModuleInvocation(FastQCCLI.class, attemptId, sampleId);
+        invocation.setSiteName(sampleSiteName);
+        File fastqcR2Output = new File(workflowDirectory, String.format("%s.r2.fastqc.zip", rootFileName));
+        invocation.addArgument(FastQCCLI.INPUT, r2FastqFile.getAbsolutePath()).addArgument(FastQCCLI.OUTPUT, fastqcR2Output.getAbsolutePath())
+                .addArgument(FastQCCLI.IGNORE, IgnoreLevelType.ERROR.toString());
+        invocation.addInput(r2FastqFile).addOutput(fastqcR2Output);
+        plan.addStage(FASTQC_R2_STAGE, invocation);
+
+        invocation = new ModuleInvocation(BWAMEMSortCLI.class, attemptId, sampleId);
+        invocation.setSiteName(sampleSiteName);
+        invocation.setNumberOfProcessors(4);
+        File fixRGOutput = new File(workflowDirectory, String.format("%s.mem.rg.bam", rootFileName));
+        String readGroupId = String.format("%s.L%03d", sampleInput.getFlowcellName(), sampleInput.getLaneIndex());
+        invocation.addArgument(BWAMEMSortCLI.THREADS, "4").addArgument(BWAMEMSortCLI.VERBOSITY, "1")
+                .addArgument(BWAMEMSortCLI.FASTADB, referenceSequence).addArgument(BWAMEMSortCLI.FASTQ1, r1FastqFile.getAbsolutePath())
+                .addArgument(BWAMEMSortCLI.FASTQ2, r2FastqFile.getAbsolutePath()).addArgument(BWAMEMSortCLI.MARKSHORTERSPLITHITS)
+                .addArgument(BWAMEMSortCLI.OUTPUT, fixRGOutput.getAbsolutePath()).addArgument(BWAMEMSortCLI.READGROUPID, readGroupId)
+                .addArgument(BWAMEMSortCLI.READGROUPLIBRARY, String.format("%s.%s", subjectName, sampleInput.getBarcode()))
+                .addArgument(BWAMEMSortCLI.READGROUPPLATFORM, readGroupPlatform).addArgument(BWAMEMSortCLI.READGROUPPLATFORMUNIT, readGroupId)
+                .addArgument(BWAMEMSortCLI.READGROUPSAMPLENAME, subjectName).addArgument(BWAMEMSortCLI.READGROUPCENTERNAME, "UNC");
+        if (referenceCacheKey != null) {
+            invocation.addArgument(BWAMEMSortCLI.REFERENCECACHEDIRECTORY, referenceCacheDirectory).addArgument(BWAMEMSortCLI.REFERENCECACHEKEY,
+                    referenceCacheKey);
+        }
+
+        long inputBytes = r1FastqFile.length() + r2FastqFile.length();
+        long readCount = estimateReadCount(sampleInput.getReadCount(), r1FastqFile, scatterBytesPerRead);
+        logger.debug("readCount: {}", readCount);
+
+        if (scatterChunks > 1 && readCount > scatterReadCountThreshold) {
+            logger.info("scattering alignment of sample {} ({} reads) into {} chunks", sampleId, readCount, scatterChunks);
+
+            ModuleInvocation splitInvocation = new ModuleInvocation(SplitFastqCLI.class, attemptId, sampleId);
+            splitInvocation.setSiteName(sampleSiteName);
+            String chunkPrefix = new File(tmpDir, rootFileName).getAbsolutePath();
+            splitInvocation.addArgument(SplitFastqCLI.FASTQ1, r1FastqFile.getAbsolutePath())
+                    .addArgument(SplitFastqCLI.FASTQ2, r2FastqFile.getAbsolutePath()).addArgument(SplitFastqCLI.OUTPUTPREFIX, chunkPrefix)
+                    .addArgument(SplitFastqCLI.CHUNKS, String.valueOf(scatterChunks));
+            splitInvocation.addInput(r1FastqFile).addInput(r2FastqFile);
+            splitInvocation.setIntermediate(true);
+            plan.addStage(SPLIT_STAGE, splitInvocation);
+            plan.addDependency(FASTQC_R1_STAGE, SPLIT_STAGE);
+            plan.addDependency(FASTQC_R2_STAGE, SPLIT_STAGE);
+
+            ModuleInvocation mergeInvocation = new ModuleInvocation(MergeBAMCLI.class, attemptId, sampleId);
+            mergeInvocation.setSiteName(sampleSiteName);
+            List<String> chunkBAMList = new ArrayList<String>();
+            List<String> chunkFastqList = new ArrayList<String>();
+
+            for (int i = 0; i < scatterChunks; i++) {
+                File chunkR1FastqFile = SplitFastqCLI.getChunkFile(chunkPrefix, i, 1);
+                File chunkR2FastqFile = SplitFastqCLI.getChunkFile(chunkPrefix, i, 2);
+                File chunkBAM = new File(tmpDir, String.format("%s.chunk%d.mem.rg.bam", rootFileName, i));
+                splitInvocation.addOutput(chunkR1FastqFile).addOutput(chunkR2FastqFile);
+
+                ModuleInvocation chunkInvocation = invocation.copy();
+                chunkInvocation.addArgument(BWAMEMSortCLI.FASTQ1, chunkR1FastqFile.getAbsolutePath())
+                        .addArgument(BWAMEMSortCLI.FASTQ2, chunkR2FastqFile.getAbsolutePath())
+                        .addArgument(BWAMEMSortCLI.OUTPUT, chunkBAM.getAbsolutePath());
+                chunkInvocation.addOutput(chunkBAM);
+                for (File referenceInput : referenceInputs) {
+                    chunkInvocation.addInput(referenceInput);
                 }
-            }
+                chunkInvocation.setIntermediate(true);
+                resourceEstimator.apply(chunkInvocation, inputBytes / scatterChunks);
+
+                String chunkStage = String.format(ALIGN_CHUNK_STAGE, i);
+                plan.addStage(chunkStage, chunkInvocation);
+                plan.addDependency(SPLIT_STAGE, chunkStage);
 
-            if (StringUtils.isEmpty(subjectName)) {
-                throw new WorkflowException("subjectName is empty");
+                chunkBAMList.add(chunkBAM.getAbsolutePath());
+                chunkFastqList.add(chunkR1FastqFile.getAbsolutePath());
+                chunkFastqList.add(chunkR2FastqFile.getAbsolutePath());
             }
 
-            Flowcell flowcell = sample.getFlowcell();
-            File workflowDirectory = SequencingWorkflowUtil.createOutputDirectory(sample, workflowRun.getWorkflow());
-            File tmpDir = new File(workflowDirectory, "tmp");
-            if (!tmpDir.exists()) {
-                tmpDir.mkdirs();
+            mergeInvocation.addArgument(MergeBAMCLI.INPUTS, StringUtils.join(chunkBAMList, ","))
+                    .addArgument(MergeBAMCLI.OUTPUT, fixRGOutput.getAbsolutePath()).addArgument(MergeBAMCLI.REMOVEINPUTS)
+                    .addArgument(MergeBAMCLI.INTERMEDIATES, StringUtils.join(chunkFastqList, ","));
+            mergeInvocation.addOutput(fixRGOutput);
+            plan.addStage(ALIGN_STAGE, mergeInvocation);
+            for (int i = 0; i < scatterChunks; i++) {
+                plan.addDependency(String.format(ALIGN_CHUNK_STAGE, i), ALIGN_STAGE);
+            }
+        } else {
+            invocation.addInput(r1FastqFile).addInput(r2FastqFile).addOutput(fixRGOutput);
+            for (File referenceInput : referenceInputs) {
+                invocation.addInput(referenceInput);
             }
+            resourceEstimator.apply(invocation, inputBytes);
+            plan.addStage(ALIGN_STAGE, invocation);
+            plan.addDependency(FASTQC_R1_STAGE, ALIGN_STAGE);
+            plan.addDependency(FASTQC_R2_STAGE, ALIGN_STAGE);
+        }
 
-            List<File> readPairList = SequencingWorkflowUtil.getReadPairList(sample);
-            logger.debug("readPairList.size(): {}", readPairList.size());
+        invocation = new ModuleInvocation(SAMToolsIndexCLI.class, attemptId, sampleId);
+        invocation.setSiteName(sampleSiteName);
+        File picardAddOrReplaceReadGroupsIndexOut = new File(workflowDirectory, fixRGOutput.getName().replace(".bam", ".bai"));
+        invocation.addArgument(SAMToolsIndexCLI.INPUT, fixRGOutput.getAbsolutePath()).addArgument(SAMToolsIndexCLI.OUTPUT,
+                picardAddOrReplaceReadGroupsIndexOut.getAbsolutePath());
+        invocation.addOutput(picardAddOrReplaceReadGroupsIndexOut);
+        plan.addStage(INDEX_STAGE, invocation);
+        plan.addDependency(ALIGN_STAGE, INDEX_STAGE);
+
+        File picardCollectHsMetricsFile = new File(workflowDirectory, fixRGOutput.getName().replace(".bam", ".hs.metrics"));
+        if (nativeHsMetrics) {
+            invocation = new ModuleInvocation(CollectHsMetricsCLI.class, attemptId, sampleId);
+            invocation.addArgument(CollectHsMetricsCLI.INPUT, fixRGOutput.getAbsolutePath())
+                    .addArgument(CollectHsMetricsCLI.OUTPUT, picardCollectHsMetricsFile.getAbsolutePath())
+                    .addArgument(CollectHsMetricsCLI.REFERENCESEQUENCE, referenceSequence)
+                    .addArgument(CollectHsMetricsCLI.BAITINTERVALS, baitIntervalList)
+                    .addArgument(CollectHsMetricsCLI.TARGETINTERVALS, targetIntervalList);
+            if (StringUtils.isNotEmpty(referenceCacheDirectory)) {
+                invocation.addArgument(CollectHsMetricsCLI.INTERVALCACHEDIRECTORY, referenceCacheDirectory);
+            }
+        } else {
+            invocation = new ModuleInvocation(PicardCollectHsMetricsCLI.class, attemptId, sampleId);
+            invocation.addArgument(PicardCollectHsMetricsCLI.INPUT, fixRGOutput.getAbsolutePath())
+                    .addArgument(PicardCollectHsMetricsCLI.OUTPUT, picardCollectHsMetricsFile.getAbsolutePath())
+                    .addArgument(PicardCollectHsMetricsCLI.REFERENCESEQUENCE, referenceSequence)
+                    .addArgument(PicardCollectHsMetricsCLI.BAITINTERVALS, baitIntervalList)
+                    .addArgument(PicardCollectHsMetricsCLI.TARGETINTERVALS, targetIntervalList);
+        }
+        invocation.setSiteName(sampleSiteName);
+        invocation.addInput(new File(ReferenceCache.expand(baitIntervalList))).addInput(new File(ReferenceCache.expand(targetIntervalList)))
+                .addOutput(picardCollectHsMetricsFile);
+        plan.addStage(HSMETRICS_STAGE, invocation);
+        plan.addDependency(ALIGN_STAGE, HSMETRICS_STAGE);
+
+        // before resume, so a rerun QC stage doesn't count as an upstream change of the alignment
+        sampleInput.setCriticalPathBefore(criticalPathOptimizer.getCriticalPathLength(plan));
+        criticalPathOptimizer.detachSideBranches(plan);
+        sampleInput.setCriticalPathAfter(criticalPathOptimizer.getCriticalPathLength(plan));
+
+        for (ModuleInvocation stageInvocation : plan.getStages().values()) {
+            if (!BWAMEMSortCLI.class.equals(stageInvocation.getModuleClass())) {
+                resourceEstimator.apply(stageInvocation, inputBytes);
+            }
+        }
 
-            if (readPairList.size() != 2) {
-                throw new WorkflowException("readPairList != 2");
+        try {
+            StageManifest manifest = new StageManifest(new File(workflowDirectory, String.format("%s.stages.manifest", rootFileName)));
+            if (resume) {
+                skipCompletedStages(plan, manifest);
             }
+            for (String stage : plan.getStages().keySet()) {
+                manifest.record(stage, plan.getStage(stage));
+            }
+            manifest.save();
+        } catch (IOException e) {
+            throw new WorkflowException(e);
+        }
 
-            // String rootFileName = String.format("%s_%s_L%03d", sample.getFlowcell().getName(), sample.getBarcode(),
-            // sample.getLaneIndex());
+        if (plan.getStages().isEmpty()) {
+            logger.info("all stages are complete for sample: {}", sampleId);
+            return null;
+        }
 
-            String rootFileName = workflowRun.getName();
+        stageFusionPass.apply(plan);
+        return plan;
+    }
 
-            try {
+    /**
+     * Streams the read pair unless a preflight of the same files has already passed. The statistics are left on the sample input for the
+     * calling thread to save as sample attributes.
+     *
+     * @return false when the pair is rejected, which fails the attempt once every plan is built
+     */
+    private boolean runPreflight(SampleInput sampleInput) {
+        String stamp = FastqPreflight.getStamp(sampleInput.getR1FastqFile(), sampleInput.getR2FastqFile());
+        if (stamp.equals(sampleInput.getPreflightStamp())) {
+            logger.debug("preflight already passed for sample: {}", sampleInput.getSampleId());
+            return true;
+        }
 
-                // new job
-                CondorJobBuilder builder = SequencingWorkflowJobFactory.createJob(++count, FastQCCLI.class, attempt.getId(), sample.getId())
-                        .siteName(siteName);
-                File r1FastqFile = readPairList.get(0);
-                File fastqcR1Output = new File(workflowDirectory, String.format("%s.r1.fastqc.zip", rootFileName));
-                builder.addArgument(FastQCCLI.INPUT, r1FastqFile.getAbsolutePath()).addArgument(FastQCCLI.OUTPUT, fastqcR1Output.getAbsolutePath())
-                        .addArgument(FastQCCLI.IGNORE, IgnoreLevelType.ERROR.toString());
-
-                CondorJob fastQCR1Job = builder.build();
-                logger.info(fastQCR1Job.toString());
-                graph.addVertex(fastQCR1Job);
-
-                // new job
-                builder = SequencingWorkflowJobFactory.createJob(++count, FastQCCLI.class, attempt.getId(), sample.getId()).siteName(siteName);
-                File r2FastqFile = readPairList.get(1);
-                File fastqcR2Output = new File(workflowDirectory, String.format("%s.r2.fastqc.zip", rootFileName));
-                builder.addArgument(FastQCCLI.INPUT, r2FastqFile.getAbsolutePath()).addArgument(FastQCCLI.OUTPUT, fastqcR2Output.getAbsolutePath())
-                        .addArgument(FastQCCLI.IGNORE, IgnoreLevelType.ERROR.toString());
-                CondorJob fastQCR2Job = builder.build();
-                logger.info(fastQCR2Job.toString());
-                graph.addVertex(fastQCR2Job);
-
-                // new job
-                builder = SequencingWorkflowJobFactory.createJob(++count, BWAMEMCLI.class, attempt.getId(), sample.getId()).siteName(siteName)
-                        .numberOfProcessors(4);
-                File bwaMemOutFile = new File(workflowDirectory, String.format("%s.mem.sam", rootFileName));
-                builder.addArgument(BWAMEMCLI.THREADS, "4").addArgument(BWAMEMCLI.VERBOSITY, "1").addArgument(BWAMEMCLI.FASTADB, referenceSequence)
-                        .addArgument(BWAMEMCLI.FASTQ1, r1FastqFile.getAbsolutePath()).addArgument(BWAMEMCLI.FASTQ2, r2FastqFile.getAbsolutePath())
-                        .addArgument(BWAMEMCLI.OUTFILE, bwaMemOutFile.getAbsolutePath()).addArgument(BWAMEMCLI.MARKSHORTERSPLITHITS);
-                CondorJob bwaMemJob = builder.build();
-                logger.info(bwaMemJob.toString());
-                graph.addVertex(bwaMemJob);
-                graph.addEdge(fastQCR1Job, bwaMemJob);
-                graph.addEdge(fastQCR2Job, bwaMemJob);
-
-                // new job
-                builder = SequencingWorkflowJobFactory.createJob(++count, PicardAddOrReplaceReadGroupsCLI.class, attempt.getId(), sample.getId())
-                        .siteName(siteName);
-                File fixRGOutput = new File(workflowDirectory, bwaMemOutFile.getName().replace(".sam", ".rg.bam"));
-                String readGroupId = String.format("%s.L%03d", flowcell.getName(), sample.getLaneIndex());
-                builder.addArgument(PicardAddOrReplaceReadGroupsCLI.INPUT, bwaMemOutFile.getAbsolutePath())
-                        .addArgument(PicardAddOrReplaceReadGroupsCLI.OUTPUT, fixRGOutput.getAbsolutePath())
-                        .addArgument(PicardAddOrReplaceReadGroupsCLI.SORTORDER, PicardSortOrderType.COORDINATE.toString().toLowerCase())
-                        .addArgument(PicardAddOrReplaceReadGroupsCLI.READGROUPID, readGroupId)
-                        .addArgument(PicardAddOrReplaceReadGroupsCLI.READGROUPLIBRARY, String.format("%s.%s", subjectName, sample.getBarcode()))
-                        .addArgument(PicardAddOrReplaceReadGroupsCLI.READGROUPPLATFORM, readGroupPlatform)
-                        .addArgument(PicardAddOrReplaceReadGroupsCLI.READGROUPPLATFORMUNIT, readGroupId)
-                        .addArgument(PicardAddOrReplaceReadGroupsCLI.READGROUPSAMPLENAME, subjectName)
-                        .addArgument(PicardAddOrReplaceReadGroupsCLI.READGROUPCENTERNAME, "UNC");
-                CondorJob picardAddOrReplaceReadGroupsJob = builder.build();
-                logger.info(picardAddOrReplaceReadGroupsJob.toString());
-                graph.addVertex(picardAddOrReplaceReadGroupsJob);
-                graph.addEdge(bwaMemJob, picardAddOrReplaceReadGroupsJob);
-
-                // new job
-                builder = SequencingWorkflowJobFactory.createJob(++count, SAMToolsIndexCLI.class, attempt.getId(), sample.getId())
-                        .siteName(siteName);
-                File picardAddOrReplaceReadGroupsIndexOut = new File(workflowDirectory, fixRGOutput.getName().replace(".bam", ".bai"));
-                builder.addArgument(SAMToolsIndexCLI.INPUT, fixRGOutput.getAbsolutePath()).addArgument(SAMToolsIndexCLI.OUTPUT,
-                        picardAddOrReplaceReadGroupsIndexOut.getAbsolutePath());
-                CondorJob samtoolsIndexJob = builder.build();
-                logger.info(samtoolsIndexJob.toString());
-                graph.addVertex(samtoolsIndexJob);
-                graph.addEdge(picardAddOrReplaceReadGroupsJob, samtoolsIndexJob);
-
-                // new job
-                builder = SequencingWorkflowJobFactory.createJob(++count, RemoveCLI.class, attempt.getId(), sample.getId()).siteName(siteName);
-                builder.addArgument(RemoveCLI.FILE, bwaMemOutFile.getAbsolutePath());
-                CondorJob removeJob = builder.build();
-                logger.info(removeJob.toString());
-                graph.addVertex(removeJob);
-                graph.addEdge(picardAddOrReplaceReadGroupsJob, removeJob);
-
-                // new job
-                builder = SequencingWorkflowJobFactory.createJob(++count, PicardCollectHsMetricsCLI.class, attempt.getId(), sample.getId())
-                        .siteName(siteName);
-                File picardCollectHsMetricsFile = new File(workflowDirectory, fixRGOutput.getName().replace(".bam", ".hs.metrics"));
-                builder.addArgument(PicardCollectHsMetricsCLI.INPUT, fixRGOutput.getAbsolutePath())
-                        .addArgument(PicardCollectHsMetricsCLI.OUTPUT, picardCollectHsMetricsFile.getAbsolutePath())
-                        .addArgument(PicardCollectHsMetricsCLI.REFERENCESEQUENCE, referenceSequence)
-                        .addArgument(PicardCollectHsMetricsCLI.BAITINTERVALS, baitIntervalList)
-                        .addArgument(PicardCollectHsMetricsCLI.TARGETINTERVALS, targetIntervalList);
-                CondorJob picardCollectHsMetricsJob = builder.build();
-                logger.info(picardCollectHsMetricsJob.toString());
-                graph.addVertex(picardCollectHsMetricsJob);
-                graph.addEdge(picardAddOrReplaceReadGroupsJob, picardCollectHsMetricsJob);
-
-            } catch (Exception e) {
-                throw new WorkflowException(e);
+        FastqPreflight fastqPreflight = new FastqPreflight();
+        if (!fastqPreflight.inspect(sampleInput.getR1FastqFile(), sampleInput.getR2FastqFile())) {
+            logger.error("rejecting sample {}: {}", sampleInput.getSampleId(), fastqPreflight.getError());
+            sampleInput.setRejection(fastqPreflight.getError());
+            return false;
+        }
+
+        Map<String, String> attributes = fastqPreflight.getAttributes();
+        attributes.put(FastqPreflight.PREFLIGHTSTAMP, stamp);
+        sampleInput.setPreflightAttributes(attributes);
+        return true;
+    }
+
+    private void saveSampleAttributes(SampleSnapshot snapshot, Sample sample, Map<String, String> attributes) throws WorkflowException {
+        MaPSeqDAOBeanService daoBean = getWorkflowBeanService().getMaPSeqDAOBeanService();
+        try {
+            Set<Attribute> attributeSet = sample.getAttributes();
+            if (attributeSet == null) {
+                attributeSet = new HashSet<Attribute>();
+            }
+            for (Map.Entry<String, String> entry : attributes.entrySet()) {
+                Attribute existing = null;
+                for (Attribute attribute : attributeSet) {
+                    if (attribute.getName().equals(entry.getKey())) {
+                        existing = attribute;
+                        break;
+                    }
+                }
+                if (existing != null) {
+                    existing.setValue(entry.getValue());
+                } else {
+                    Attribute attribute = new Attribute(entry.getKey(), entry.getValue());
+                    attribute.setId(daoBean.getAttributeDAO().save(attribute));
+                    attributeSet.add(attribute);
+                }
+                snapshot.setAttribute(sample, entry.getKey(), entry.getValue());
             }
+            sample.setAttributes(attributeSet);
+            daoBean.getSampleDAO().save(sample);
+        } catch (MaPSeqDAOException e) {
+            throw new WorkflowException(e);
         }
+    }
 
-        return graph;
+    /**
+     * Uses the readCount sample attribute when it is known, otherwise estimates it from the compressed size of read 1.
+     */
+    private long estimateReadCount(String readCount, File r1FastqFile, long bytesPerRead) {
+        if (StringUtils.isNotEmpty(readCount) && StringUtils.isNumeric(readCount)) {
+            return Long.valueOf(readCount);
+        }
+        return r1FastqFile.length() / Math.max(1L, bytesPerRead);
+    }
+
+    /**
+     * Drops stages whose outputs are already valid and whose upstream stages are not being rerun. Intermediate stages are rerun only when
+     * one of their consumers is.
+     */
+    private void skipCompletedStages(StagePlan plan, StageManifest manifest) throws IOException {
+        List<String> stageList = new ArrayList<String>(plan.getStages().keySet());
+        Set<String> rerun = new HashSet<String>();
+        Set<String> upstreamChanged = new HashSet<String>();
+
+        for (String stage : stageList) {
+            for (String parent : plan.getParents(stage)) {
+                if (rerun.contains(parent) || (plan.getStage(parent).isIntermediate() && upstreamChanged.contains(parent))) {
+                    upstreamChanged.add(stage);
+                }
+            }
+            if (!plan.getStage(stage).isIntermediate() && (upstreamChanged.contains(stage) || !manifest.isComplete(stage, plan.getStage(stage)))) {
+                rerun.add(stage);
+            }
+        }
+
+        for (int i = stageList.size() - 1; i >= 0; i--) {
+            String stage = stageList.get(i);
+            if (!rerun.contains(stage)) {
+                continue;
+            }
+            for (String parent : plan.getParents(stage)) {
+                if (plan.getStage(parent).isIntermediate()) {
+                    rerun.add(parent);
+                }
+            }
+        }
+
+        for (String stage : stageList) {
+            if (!rerun.contains(stage)) {
+                logger.info("skipping completed stage {} for sample: {}", stage, plan.getSampleId());
+                plan.removeStage(stage);
+            }
+        }
     }
 
     @Override
     public void postRun() throws WorkflowException {
         logger.debug("ENTERING postRun()");
+        acquireWorkPermit();
+        try {
+            registerResults();
+        } finally {
+            releaseWorkPermit();
+        }
+    }
+
+    private void registerResults() throws WorkflowException {
+        long start = System.currentTimeMillis();
 
-        Set<Sample> sampleSet = SequencingWorkflowUtil.getAggregatedSamples(getWorkflowBeanService().getMaPSeqDAOBeanService(),
-                getWorkflowRunAttempt());
+        SampleSnapshot snapshot = getSampleSnapshot();
 
         try {
             ExecutorService es = Executors.newSingleThreadExecutor();
 
-            for (Sample sample : sampleSet) {
-
-                if ("Undetermined".equals(sample.getBarcode())) {
-                    continue;
-                }
+            for (Sample sample : snapshot.getSamples()) {
 
                 MaPSeqDAOBeanService daoBean = getWorkflowBeanService().getMaPSeqDAOBeanService();
 
                 RegisterToIRODSRunnable registerToIRODSRunnable = new RegisterToIRODSRunnable(daoBean, getWorkflowRunAttempt().getWorkflowRun());
                 registerToIRODSRunnable.setSampleId(sample.getId());
-                es.submit(registerToIRODSRunnable);
+                es.submit(() -> {
+                    long registrationStart = System.currentTimeMillis();
+                    registerToIRODSRunnable.run();
+                    PipelineMetrics.timer(PipelineMetrics.IRODS_REGISTRATION).recordSince(registrationStart);
+                });
 
                 SaveCollectHsMetricsAttributesRunnable saveCollectHsMetricsAttributesRunnable = new SaveCollectHsMetricsAttributesRunnable(daoBean, getWorkflowRunAttempt().getWorkflowRun());
                 saveCollectHsMetricsAttributesRunnable.setSampleId(sample.getId());
-                es.submit(saveCollectHsMetricsAttributesRunnable);
+                es.submit(() -> {
+                    long persistenceStart = System.currentTimeMillis();
+                    saveCollectHsMetricsAttributesRunnable.run();
+                    PipelineMetrics.timer(PipelineMetrics.METRICS_PERSISTENCE).recordSince(persistenceStart);
+                });
 
             }
 
@@ -238,8 +685,74 @@ public class BergMIPsAlignmentWorkflow extends AbstractSequencingWorkflow {
         } catch (InterruptedException e) {
             logger.error(e.getMessage(), e);
             throw new WorkflowException(e);
+        } finally {
+            PipelineMetrics.timer(PipelineMetrics.POST_RUN).recordSince(start);
+        }
+
+    }
+
+    /**
+     * createGraph() and postRun() do the real work of an attempt, so they take a permit when the executor limits concurrent work. Waiting
+     * on the DAG in between holds none.
+     */
+    private void acquireWorkPermit() throws WorkflowException {
+        if (workPermits == null) {
+            return;
+        }
+        try {
+            workPermits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new WorkflowException(e);
+        }
+    }
+
+    private void releaseWorkPermit() {
+        if (workPermits != null) {
+            workPermits.release();
+        }
+    }
+
+    /**
+     * Each job records its own start and finish, so per job run times are read back once the DAG is done.
+     */
+    protected void recordJobRunTimes(WorkflowRunAttempt attempt) {
+        try {
+            List<Job> jobList = getWorkflowBeanService().getMaPSeqDAOBeanService().getJobDAO().findByWorkflowRunAttemptId(attempt.getId());
+            for (Job job : jobList) {
+                if (job.getStarted() != null && job.getFinished() != null) {
+                    long runTime = job.getFinished().getTime() - job.getStarted().getTime();
+                    String moduleName = job.getName().contains(".") ? StringUtils.substringAfterLast(job.getName(), ".") : job.getName();
+                    PipelineMetrics.timer(PipelineMetrics.JOB_RUN).record(runTime);
+                    PipelineMetrics.timer(String.format("%s.%s", PipelineMetrics.JOB_RUN, moduleName)).record(runTime);
+                }
+            }
+        } catch (MaPSeqDAOException e) {
+            logger.warn("could not read job run times", e);
         }
+    }
+
+    public Semaphore getWorkPermits() {
+        return workPermits;
+    }
+
+    public void setWorkPermits(Semaphore workPermits) {
+        this.workPermits = workPermits;
+    }
+
+    public int getJobCountOffset() {
+        return jobCountOffset;
+    }
+
+    public void setJobCountOffset(int jobCountOffset) {
+        this.jobCountOffset = jobCountOffset;
+    }
 
+    /**
+     * @return the number of the last job created by createGraph()
+     */
+    public int getJobCount() {
+        return jobCount;
     }
 
 }
@@ -0,0 +1,276 @@
+package edu.unc.mapseq.workflow.bergmips.alignment;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.lang.StringUtils;
+import org.jgrapht.DirectedGraph;
+import org.jgrapht.Graph;
+import org.jgrapht.Graphs;
+import org.jgrapht.graph.DefaultDirectedGraph;
+import org.renci.jlrm.condor.CondorJob;
+import org.renci.jlrm.condor.CondorJobEdge;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.unc.mapseq.commons.bergmips.alignment.instrumentation.PipelineMetrics;
+import edu.unc.mapseq.dao.MaPSeqDAOException;
+import edu.unc.mapseq.dao.WorkflowRunAttemptDAO;
+import edu.unc.mapseq.dao.model.WorkflowRunAttempt;
+import edu.unc.mapseq.dao.model.WorkflowRunAttemptStatusType;
+import edu.unc.mapseq.workflow.WorkflowException;
+
+/**
+ * Runs several attempts as one DAG submission, so a flowcell enqueued as one attempt per sample needs a single DAGMan process. The first
+ * attempt whose graph can be built leads: the DAG is submitted and monitored under it. The graphs of the attempts are disjoint and
+ * numbered one after the other. Each job still carries the id of the attempt that built it, and {@link #getOwner(CondorJob)} maps it back
+ * to that attempt. When the DAG fails, DAGMan's rescue DAG says which jobs finished, so an attempt whose own jobs all finished is still
+ * done and only the attempts with an unfinished job fail. postRun() runs for the done attempts only, one at a time, so one attempt failing
+ * there does not fail the others. A retry resumes from the stages that did complete. A member status that can't be saved fails
+ * createGraph() or postRun(), so the executor sees it; one that can't be saved in recordOutcome() is kept and saved again, or reported,
+ * by postRun().
+ */
+public class CombinedBergMIPsAlignmentWorkflow extends BergMIPsAlignmentWorkflow {
+
+    private static final Logger logger = LoggerFactory.getLogger(CombinedBergMIPsAlignmentWorkflow.class);
+
+    private final List<BergMIPsAlignmentWorkflow> members = new ArrayList<BergMIPsAlignmentWorkflow>();
+
+    private final Map<CondorJob, WorkflowRunAttempt> ownerByJob = new HashMap<CondorJob, WorkflowRunAttempt>();
+
+    private final Set<WorkflowRunAttempt> completed = new HashSet<WorkflowRunAttempt>();
+
+    private final Set<WorkflowRunAttempt> unsaved = new HashSet<WorkflowRunAttempt>();
+
+    private final WorkflowRunAttempt firstLead;
+
+    private boolean graphCreated = false;
+
+    public CombinedBergMIPsAlignmentWorkflow(List<BergMIPsAlignmentWorkflow> members) {
+        super();
+        this.members.addAll(members);
+        BergMIPsAlignmentWorkflow lead = members.get(0);
+        this.firstLead = lead.getWorkflowRunAttempt();
+        setWorkflowBeanService(lead.getWorkflowBeanService());
+        setWorkflowRunAttempt(firstLead);
+    }
+
+    @Override
+    public Graph<CondorJob, CondorJobEdge> createGraph() throws WorkflowException {
+        logger.info("ENTERING createGraph()");
+
+        DirectedGraph<CondorJob, CondorJobEdge> graph = new DefaultDirectedGraph<CondorJob, CondorJobEdge>(CondorJobEdge.class);
+
+        int jobCount = 0;
+        for (BergMIPsAlignmentWorkflow member : new ArrayList<BergMIPsAlignmentWorkflow>(members)) {
+            WorkflowRunAttempt attempt = member.getWorkflowRunAttempt();
+            Graph<CondorJob, CondorJobEdge> memberGraph = null;
+            member.setJobCountOffset(jobCount);
+            try {
+                memberGraph = member.createGraph();
+            } catch (WorkflowException e) {
+                if (members.size() == 1) {
+                    throw e;
+                }
+                // one bad attempt must not hold back the rest of the batch
+                logger.error(String.format("could not create graph for WorkflowRunAttempt %d", attempt.getId()), e);
+                updateStatus(attempt, WorkflowRunAttemptStatusType.FAILED);
+                PipelineMetrics.counter(PipelineMetrics.ATTEMPTS_FAILED).incrementAndGet();
+                boolean lead = member == members.get(0);
+                members.remove(member);
+                if (lead) {
+                    // the DAG is submitted and monitored under the lead, so the next attempt takes over
+                    setWorkflowRunAttempt(members.get(0).getWorkflowRunAttempt());
+                    logger.info("WorkflowRunAttempt {} leads in place of {}", getWorkflowRunAttempt().getId(), attempt.getId());
+                }
+                continue;
+            }
+
+            Graphs.addGraph(graph, memberGraph);
+            for (CondorJob job : memberGraph.vertexSet()) {
+                ownerByJob.put(job, attempt);
+            }
+            jobCount = member.getJobCount();
+            logger.info("WorkflowRunAttempt {}: {} jobs", attempt.getId(), memberGraph.vertexSet().size());
+
+            if (attempt != firstLead) {
+                updateStatus(attempt, WorkflowRunAttemptStatusType.RUNNING);
+            }
+        }
+
+        logger.info("combined {} WorkflowRunAttempts into {} jobs", members.size(), graph.vertexSet().size());
+        graphCreated = true;
+        return graph;
+    }
+
+    /**
+     * Runs in the finally of execute(), before postRun(). Each attempt is judged by its own jobs, then counted and its job run times
+     * recorded on its own.
+     */
+    @Override
+    protected void recordOutcome() {
+        WorkflowRunAttempt lead = getWorkflowRunAttempt();
+        // anything short of DONE, including a DAG that never got submitted, is judged job by job
+        boolean dagFailed = !WorkflowRunAttemptStatusType.DONE.equals(lead.getStatus());
+        Set<String> doneJobNames = dagFailed ? readDoneJobNames(lead.getSubmitDirectory()) : null;
+
+        Set<WorkflowRunAttempt> unfinished = new HashSet<WorkflowRunAttempt>();
+        if (dagFailed) {
+            for (Map.Entry<CondorJob, WorkflowRunAttempt> entry : ownerByJob.entrySet()) {
+                if (!doneJobNames.contains(entry.getKey().getName())) {
+                    unfinished.add(entry.getValue());
+                }
+            }
+        }
+
+        for (BergMIPsAlignmentWorkflow member : members) {
+            WorkflowRunAttempt attempt = member.getWorkflowRunAttempt();
+            recordJobRunTimes(attempt);
+            if (!graphCreated || unfinished.contains(attempt)) {
+                if (attempt != lead) {
+                    updateStatusLater(attempt, WorkflowRunAttemptStatusType.FAILED);
+                }
+                PipelineMetrics.counter(PipelineMetrics.ATTEMPTS_FAILED).incrementAndGet();
+                continue;
+            }
+            completed.add(attempt);
+            if (attempt == lead && dagFailed) {
+                // the DAG failed on another attempt's jobs
+                updateStatusLater(attempt, WorkflowRunAttemptStatusType.DONE);
+            }
+            PipelineMetrics.counter(PipelineMetrics.ATTEMPTS_SUCCEEDED).incrementAndGet();
+        }
+        logger.info("{} of {} WorkflowRunAttempts completed", completed.size(), members.size());
+    }
+
+    /**
+     * Names of the DAG nodes that finished, from the DONE lines of the newest rescue DAG in the submit directory. Empty when there is no
+     * rescue DAG, so every job counts as unfinished.
+     */
+    static Set<String> readDoneJobNames(String submitDirectory) {
+        Set<String> ret = new HashSet<String>();
+        if (StringUtils.isEmpty(submitDirectory)) {
+            return ret;
+        }
+        File[] rescueFiles = new File(submitDirectory).listFiles((dir, name) -> name.matches(".+\\.dag\\.rescue\\d+"));
+        if (rescueFiles == null || rescueFiles.length == 0) {
+            logger.warn("no rescue DAG in {}", submitDirectory);
+            return ret;
+        }
+        // rescue001, rescue002, ... so the last in name order is the newest
+        Arrays.sort(rescueFiles);
+        File rescueFile = rescueFiles[rescueFiles.length - 1];
+        try {
+            for (String line : Files.readAllLines(rescueFile.toPath(), StandardCharsets.UTF_8)) {
+                if (line.startsWith("DONE ")) {
+                    ret.add(line.substring("DONE ".length()).trim());
+                }
+            }
+        } catch (IOException e) {
+            logger.error(String.format("could not read %s", rescueFile.getAbsolutePath()), e);
+        }
+        return ret;
+    }
+
+    @Override
+    public void postRun() throws WorkflowException {
+        logger.debug("ENTERING postRun()");
+
+        for (BergMIPsAlignmentWorkflow member : members) {
+            WorkflowRunAttempt attempt = member.getWorkflowRunAttempt();
+            if (!completed.contains(attempt)) {
+                logger.info("skipping postRun for WorkflowRunAttempt {}, its jobs did not all finish", attempt.getId());
+                continue;
+            }
+            try {
+                member.postRun();
+            } catch (WorkflowException e) {
+                logger.error(String.format("postRun failed for WorkflowRunAttempt %d", attempt.getId()), e);
+                updateStatusLater(attempt, WorkflowRunAttemptStatusType.FAILED);
+                continue;
+            }
+            if (attempt != getWorkflowRunAttempt()) {
+                updateStatusLater(attempt, WorkflowRunAttemptStatusType.DONE);
+            }
+        }
+
+        // statuses recordOutcome() or the loop above could not save get one more try, the rest fail the run so the executor sees them
+        List<Long> unsavedIds = new ArrayList<Long>();
+        for (WorkflowRunAttempt attempt : new ArrayList<WorkflowRunAttempt>(unsaved)) {
+            try {
+                updateStatus(attempt, attempt.getStatus());
+            } catch (WorkflowException e) {
+                unsavedIds.add(attempt.getId());
+            }
+        }
+        if (!unsavedIds.isEmpty()) {
+            throw new WorkflowException(String.format("could not save the status of WorkflowRunAttempts %s", unsavedIds));
+        }
+    }
+
+    private void updateStatus(WorkflowRunAttempt attempt, WorkflowRunAttemptStatusType status) throws WorkflowException {
+        attempt.setStatus(status);
+        if (WorkflowRunAttemptStatusType.RUNNING.equals(status)) {
+            attempt.setStarted(new Date());
+        } else {
+            attempt.setFinished(new Date());
+        }
+        try {
+            saveStatus(attempt);
+            unsaved.remove(attempt);
+        } catch (MaPSeqDAOException e) {
+            unsaved.add(attempt);
+            throw new WorkflowException(e);
+        }
+    }
+
+    /**
+     * For the callers that can't fail, the attempt is kept in {@link #getUnsaved()} until postRun() saves it.
+     */
+    private void updateStatusLater(WorkflowRunAttempt attempt, WorkflowRunAttemptStatusType status) {
+        try {
+            updateStatus(attempt, status);
+        } catch (WorkflowException e) {
+            logger.error(String.format("could not save %s for WorkflowRunAttempt %d", status, attempt.getId()), e);
+        }
+    }
+
+    protected void saveStatus(WorkflowRunAttempt attempt) throws MaPSeqDAOException {
+        WorkflowRunAttemptDAO workflowRunAttemptDAO = getWorkflowBeanService().getMaPSeqDAOBeanService().getWorkflowRunAttemptDAO();
+        workflowRunAttemptDAO.save(attempt);
+    }
+
+    /**
+     * @return the attempt whose graph the job came from
+     */
+    public WorkflowRunAttempt getOwner(CondorJob job) {
+        return ownerByJob.get(job);
+    }
+
+    public List<BergMIPsAlignmentWorkflow> getMembers() {
+        return Collections.unmodifiableList(members);
+    }
+
+    /**
+     * @return the attempts whose last status change has not been saved
+     */
+    public Set<WorkflowRunAttempt> getUnsaved() {
+        return Collections.unmodifiableSet(unsaved);
+    }
+
+    public Set<WorkflowRunAttempt> getCompleted() {
+        return Collections.unmodifiableSet(completed);
+    }
+
+}
@@ -0,0 +1,195 @@
+package edu.unc.mapseq.workflow.bergmips.alignment;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.lang.StringUtils;
+import org.jgrapht.DirectedGraph;
+import org.jgrapht.traverse.TopologicalOrderIterator;
+import org.renci.jlrm.condor.CondorJob;
+import org.renci.jlrm.condor.CondorJobEdge;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Detaches QC-only side branches from the main chain of a sample's {@link StagePlan} so they run alongside it, and reports the critical
+ * path before and after, weighted by per-module cost hints. A fused or batched job costs the sum of the modules it runs. A stage is
+ * detached only when it is a true sink: no downstream stage reads any of its outputs, judged from the downstream inputs and arguments.
+ * The check runs on stages rather than job names, so it is the same for fused and batched jobs. sideBranchModules limits which modules
+ * may be detached at all.
+ */
+public class CriticalPathOptimizer {
+
+    private static final Logger logger = LoggerFactory.getLogger(CriticalPathOptimizer.class);
+
+    private static final long DEFAULT_COST = 1L;
+
+    private final Map<String, Long> costHints = new HashMap<String, Long>();
+
+    private final Set<String> sideBranchModules = new HashSet<String>();
+
+    public CriticalPathOptimizer(Map<String, String> costHints, String sideBranchModules) {
+        super();
+        for (Map.Entry<String, String> entry : costHints.entrySet()) {
+            this.costHints.put(entry.getKey(), Long.valueOf(entry.getValue()));
+        }
+        if (StringUtils.isNotEmpty(sideBranchModules)) {
+            for (String module : StringUtils.split(sideBranchModules, ',')) {
+                this.sideBranchModules.add(module.trim());
+            }
+        }
+    }
+
+    /**
+     * The stage's consumers then depend on the stage's own parents instead, so nothing they need is lost. Only reads the configuration,
+     * so it is safe on the plan builder pool.
+     */
+    public void detachSideBranches(StagePlan plan) {
+        for (String stage : new ArrayList<String>(plan.getStages().keySet())) {
+            if (!isSideBranch(plan.getStage(stage))) {
+                continue;
+            }
+            Set<String> children = plan.getChildren(stage);
+            if (children.isEmpty()) {
+                continue;
+            }
+            if (isReadDownstream(plan, stage)) {
+                logger.debug("keeping {} on the main chain, a downstream stage reads its output, sample: {}", stage, plan.getSampleId());
+                continue;
+            }
+            Set<String> parents = new LinkedHashSet<String>(plan.getParents(stage));
+            for (String child : children) {
+                plan.removeDependency(stage, child);
+                for (String parent : parents) {
+                    plan.addDependency(parent, child);
+                }
+            }
+            logger.debug("detached side branch {} for sample: {}", stage, plan.getSampleId());
+        }
+    }
+
+    private boolean isSideBranch(ModuleInvocation invocation) {
+        for (ModuleInvocation chainInvocation : invocation.getChain()) {
+            if (!sideBranchModules.contains(chainInvocation.getModuleClass().getSimpleName())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isReadDownstream(StagePlan plan, String stage) {
+        Set<String> outputs = new HashSet<String>();
+        for (File output : plan.getStage(stage).getOutputs()) {
+            outputs.add(output.getAbsolutePath());
+        }
+        if (outputs.isEmpty()) {
+            // nothing declared, so nothing proves the consumers don't need it
+            return true;
+        }
+        Set<String> descendants = new LinkedHashSet<String>();
+        collectDescendants(plan, stage, descendants);
+        for (String descendant : descendants) {
+            for (ModuleInvocation invocation : plan.getStage(descendant).getChain()) {
+                for (File input : invocation.getInputs()) {
+                    if (outputs.contains(input.getAbsolutePath())) {
+                        return true;
+                    }
+                }
+                for (String value : invocation.getArguments().values()) {
+                    if (value == null) {
+                        continue;
+                    }
+                    // list arguments such as MergeBAMCLI's inputs are comma separated
+                    for (String path : StringUtils.split(value, ',')) {
+                        if (outputs.contains(path.trim())) {
+                            return true;
+                        }
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    private void collectDescendants(StagePlan plan, String stage, Set<String> descendants) {
+        for (String child : plan.getChildren(stage)) {
+            if (descendants.add(child)) {
+                collectDescendants(plan, child, descendants);
+            }
+        }
+    }
+
+    public void report(long before, long after, DirectedGraph<CondorJob, CondorJobEdge> graph,
+            Map<CondorJob, List<ModuleInvocation>> invocationsByJob) {
+        logger.info("critical path length before detaching side branches: {}, after: {}, assembled graph: {}", before, after,
+                getCriticalPathLength(graph, invocationsByJob));
+    }
+
+    /**
+     * The longest chain of stage costs through the plan.
+     */
+    public long getCriticalPathLength(StagePlan plan) {
+        Map<String, Long> finish = new HashMap<String, Long>();
+        long ret = 0L;
+        for (String stage : plan.getStages().keySet()) {
+            ret = Math.max(ret, getFinish(plan, stage, finish));
+        }
+        return ret;
+    }
+
+    private long getFinish(StagePlan plan, String stage, Map<String, Long> finish) {
+        Long ret = finish.get(stage);
+        if (ret == null) {
+            long start = 0L;
+            for (String parent : plan.getParents(stage)) {
+                start = Math.max(start, getFinish(plan, parent, finish));
+            }
+            ret = start + getCost(plan.getStage(stage).getChain());
+            finish.put(stage, ret);
+        }
+        return ret;
+    }
+
+    /**
+     * A job runs its invocations one after the other, so it costs their sum. A job the assembler did not build is costed by its module
+     * name.
+     */
+    public long getCriticalPathLength(DirectedGraph<CondorJob, CondorJobEdge> graph,
+            Map<CondorJob, List<ModuleInvocation>> invocationsByJob) {
+        Map<CondorJob, Long> finish = new HashMap<CondorJob, Long>();
+        long ret = 0L;
+        TopologicalOrderIterator<CondorJob, CondorJobEdge> iter = new TopologicalOrderIterator<CondorJob, CondorJobEdge>(graph);
+        while (iter.hasNext()) {
+            CondorJob job = iter.next();
+            long start = 0L;
+            for (CondorJobEdge edge : graph.incomingEdgesOf(job)) {
+                start = Math.max(start, finish.get(graph.getEdgeSource(edge)));
+            }
+            List<ModuleInvocation> invocations = invocationsByJob.get(job);
+            long end = start + (invocations != null ? getCost(invocations) : getCost(JobGraphUtil.getModuleName(job)));
+            finish.put(job, end);
+            ret = Math.max(ret, end);
+        }
+        return ret;
+    }
+
+    private long getCost(List<ModuleInvocation> invocations) {
+        long ret = 0L;
+        for (ModuleInvocation invocation : invocations) {
+            ret += getCost(invocation.getModuleClass().getSimpleName());
+        }
+        return ret;
+    }
+
+    private long getCost(String moduleName) {
+        Long cost = costHints.get(moduleName);
+        return cost != null ? cost : DEFAULT_COST;
+    }
+
+}
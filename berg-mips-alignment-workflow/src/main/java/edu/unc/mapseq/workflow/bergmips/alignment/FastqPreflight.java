@@ -0,0 +1,159 @@
+package edu.unc.mapseq.workflow.bergmips.alignment;
+
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.unc.mapseq.commons.bergmips.alignment.FastqUtils;
+
+/**
+ * Streams a gzipped FASTQ pair once before any job is queued. The pair is rejected when either file is truncated or malformed, when the
+ * record counts differ, or when the read names fall out of step. Read count and length statistics are collected on the way through.
+ */
+public class FastqPreflight {
+
+    private static final Logger logger = LoggerFactory.getLogger(FastqPreflight.class);
+
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    public static final String READCOUNT = "readCount";
+
+    public static final String BASECOUNT = "baseCount";
+
+    public static final String READLENGTHMIN = "readLengthMin";
+
+    public static final String READLENGTHMAX = "readLengthMax";
+
+    public static final String READLENGTHMEAN = "readLengthMean";
+
+    public static final String PREFLIGHTSTAMP = "preflightStamp";
+
+    private String error;
+
+    private long readCount = 0L;
+
+    private long baseCount = 0L;
+
+    private int minReadLength = Integer.MAX_VALUE;
+
+    private int maxReadLength = 0;
+
+    public FastqPreflight() {
+        super();
+    }
+
+    /**
+     * Identifies the pair by size and modification time, so an unchanged pair does not have to be streamed again.
+     */
+    public static String getStamp(File r1FastqFile, File r2FastqFile) {
+        return String.format("%d:%d:%d:%d", r1FastqFile.length(), r1FastqFile.lastModified(), r2FastqFile.length(),
+                r2FastqFile.lastModified());
+    }
+
+    /**
+     * @return true when the pair is usable, otherwise {@link #getError()} says why not
+     */
+    public boolean inspect(File r1FastqFile, File r2FastqFile) {
+        logger.debug("ENTERING inspect(File, File)");
+        long start = System.currentTimeMillis();
+
+        try (BufferedReader r1Reader = createReader(r1FastqFile); BufferedReader r2Reader = createReader(r2FastqFile)) {
+            while (true) {
+                String r1Name = readRecord(r1Reader, r1FastqFile);
+                String r2Name = readRecord(r2Reader, r2FastqFile);
+                if (r1Name == null && r2Name == null) {
+                    break;
+                }
+                if (r1Name == null || r2Name == null) {
+                    error = String.format("record counts differ: %s ended after %d records", (r1Name == null ? r1FastqFile : r2FastqFile).getName(),
+                            readCount);
+                    return false;
+                }
+                if (!r1Name.equals(r2Name)) {
+                    error = String.format("read names out of sync at record %d: %s != %s", readCount + 1, r1Name, r2Name);
+                    return false;
+                }
+                readCount++;
+            }
+        } catch (EOFException | ZipException e) {
+            error = String.format("truncated or corrupt gzip after %d records: %s", readCount, e.getMessage());
+            return false;
+        } catch (IOException e) {
+            error = e.getMessage();
+            return false;
+        }
+
+        if (readCount == 0) {
+            error = "no records";
+            return false;
+        }
+
+        logger.info("inspected {} read pairs of {} in {} ms", readCount, r1FastqFile.getName(), System.currentTimeMillis() - start);
+        return true;
+    }
+
+    private BufferedReader createReader(File f) throws IOException {
+        return new BufferedReader(
+                new InputStreamReader(new GZIPInputStream(new FileInputStream(f), BUFFER_SIZE), StandardCharsets.US_ASCII), BUFFER_SIZE);
+    }
+
+    /**
+     * Reads one four line record, counting its bases, and returns the read name without the mate suffix or comment, or null at end of file.
+     */
+    private String readRecord(BufferedReader reader, File f) throws IOException {
+        String header = reader.readLine();
+        if (header == null) {
+            return null;
+        }
+        String sequence = reader.readLine();
+        String separator = reader.readLine();
+        String qualities = reader.readLine();
+        if (qualities == null) {
+            throw new EOFException(String.format("%s ends mid-record", f.getName()));
+        }
+        if (!header.startsWith("@") || !separator.startsWith("+") || sequence.length() != qualities.length()) {
+            throw new IOException(String.format("malformed record %d in %s", readCount + 1, f.getName()));
+        }
+
+        int length = sequence.length();
+        baseCount += length;
+        minReadLength = Math.min(minReadLength, length);
+        maxReadLength = Math.max(maxReadLength, length);
+
+        return FastqUtils.getReadName(header);
+    }
+
+    /**
+     * The statistics as sample attributes. Lengths cover both reads of the pair.
+     */
+    public Map<String, String> getAttributes() {
+        Map<String, String> ret = new LinkedHashMap<String, String>();
+        ret.put(READCOUNT, String.valueOf(readCount));
+        ret.put(BASECOUNT, String.valueOf(baseCount));
+        ret.put(READLENGTHMIN, String.valueOf(readCount > 0 ? minReadLength : 0));
+        ret.put(READLENGTHMAX, String.valueOf(maxReadLength));
+        ret.put(READLENGTHMEAN, String.format(Locale.US, "%.1f", readCount > 0 ? baseCount / (2D * readCount) : 0D));
+        return ret;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public long getReadCount() {
+        return readCount;
+    }
+
+}
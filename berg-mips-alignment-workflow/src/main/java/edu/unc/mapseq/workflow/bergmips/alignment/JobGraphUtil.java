@@ -0,0 +1,41 @@
+package edu.unc.mapseq.workflow.bergmips.alignment;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.lang.StringUtils;
+import org.renci.jlrm.condor.CondorJob;
+
+public class JobGraphUtil {
+
+    /**
+     * Job names are "&lt;module simple name&gt;_&lt;count&gt;", so the module is everything before the last underscore.
+     */
+    public static String getModuleName(CondorJob job) {
+        String name = job.getName();
+        int idx = name.lastIndexOf('_');
+        if (idx > 0 && StringUtils.isNumeric(name.substring(idx + 1))) {
+            return name.substring(0, idx);
+        }
+        return name;
+    }
+
+    /**
+     * Parses "key=value,key=value" configuration attributes.
+     */
+    public static Map<String, String> parseKeyValueList(String value) {
+        Map<String, String> ret = new HashMap<String, String>();
+        if (StringUtils.isEmpty(value)) {
+            return ret;
+        }
+        for (String entry : StringUtils.split(value, ',')) {
+            String key = StringUtils.substringBefore(entry, "=").trim();
+            String val = StringUtils.substringAfter(entry, "=").trim();
+            if (StringUtils.isNotEmpty(key)) {
+                ret.put(key, val);
+            }
+        }
+        return ret;
+    }
+
+}
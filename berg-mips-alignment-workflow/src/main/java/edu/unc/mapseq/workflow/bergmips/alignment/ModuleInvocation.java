@@ -0,0 +1,204 @@
+package edu.unc.mapseq.workflow.bergmips.alignment;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.renci.jlrm.condor.CondorJobBuilder;
+
+import edu.unc.mapseq.workflow.sequencing.SequencingWorkflowJobFactory;
+
+/**
+ * A single module call for one sample, kept independent of Condor so it can either become its own job or one line of a batched job.
+ */
+public class ModuleInvocation {
+
+    private final Class<?> moduleClass;
+
+    private final Long workflowRunAttemptId;
+
+    private final Long sampleId;
+
+    private final Map<String, String> arguments = new LinkedHashMap<String, String>();
+
+    private final List<File> inputs = new ArrayList<File>();
+
+    private final List<File> outputs = new ArrayList<File>();
+
+    private final List<ModuleInvocation> fused = new ArrayList<ModuleInvocation>();
+
+    private Integer numberOfProcessors = 1;
+
+    private Integer memory;
+
+    private String siteName;
+
+    private boolean intermediate = false;
+
+    public ModuleInvocation(Class<?> moduleClass, Long workflowRunAttemptId, Long sampleId) {
+        super();
+        this.moduleClass = moduleClass;
+        this.workflowRunAttemptId = workflowRunAttemptId;
+        this.sampleId = sampleId;
+    }
+
+    /**
+     * A copy with the same module, arguments and resources but no inputs or outputs, for building sibling invocations such as chunks.
+     */
+    public ModuleInvocation copy() {
+        ModuleInvocation ret = new ModuleInvocation(moduleClass, workflowRunAttemptId, sampleId);
+        ret.arguments.putAll(arguments);
+        ret.numberOfProcessors = numberOfProcessors;
+        ret.memory = memory;
+        ret.siteName = siteName;
+        return ret;
+    }
+
+    public ModuleInvocation addArgument(String name) {
+        this.arguments.put(name, null);
+        return this;
+    }
+
+    public ModuleInvocation addArgument(String name, String value) {
+        this.arguments.put(name, value);
+        return this;
+    }
+
+    /**
+     * Inputs that come from outside the sample's plan; files produced by an upstream stage are covered by that stage's outputs.
+     */
+    public ModuleInvocation addInput(File input) {
+        this.inputs.add(input);
+        return this;
+    }
+
+    public ModuleInvocation addOutput(File output) {
+        this.outputs.add(output);
+        return this;
+    }
+
+    public String getArgument(String name) {
+        return this.arguments.get(name);
+    }
+
+    /**
+     * Appends a downstream invocation to run after this one in the same job. The job is sized for the largest of the fused modules.
+     */
+    public ModuleInvocation fuse(ModuleInvocation next) {
+        fused.add(next);
+        fused.addAll(next.fused);
+        next.fused.clear();
+        numberOfProcessors = Math.max(numberOfProcessors, next.numberOfProcessors);
+        if (next.memory != null) {
+            memory = memory == null ? next.memory : Math.max(memory, next.memory);
+        }
+        outputs.addAll(next.outputs);
+        return this;
+    }
+
+    public boolean isFused() {
+        return !fused.isEmpty();
+    }
+
+    /**
+     * This invocation followed by any fused ones, in run order.
+     */
+    public List<ModuleInvocation> getChain() {
+        List<ModuleInvocation> ret = new ArrayList<ModuleInvocation>();
+        ret.add(this);
+        ret.addAll(fused);
+        return ret;
+    }
+
+    public CondorJobBuilder createJobBuilder(int count) {
+        CondorJobBuilder builder = SequencingWorkflowJobFactory.createJob(count, moduleClass, workflowRunAttemptId, sampleId).siteName(siteName);
+        if (numberOfProcessors > 1) {
+            builder.numberOfProcessors(numberOfProcessors);
+        }
+        if (memory != null) {
+            builder.memory(memory);
+        }
+        for (Map.Entry<String, String> entry : arguments.entrySet()) {
+            if (entry.getValue() == null) {
+                builder.addArgument(entry.getKey());
+            } else {
+                builder.addArgument(entry.getKey(), entry.getValue());
+            }
+        }
+        return builder;
+    }
+
+    public String toCommandLine() {
+        StringBuilder sb = new StringBuilder(moduleClass.getName());
+        sb.append(String.format(" --workflowRunAttemptId %d --sampleId %d", workflowRunAttemptId, sampleId));
+        for (Map.Entry<String, String> entry : arguments.entrySet()) {
+            sb.append(" ").append(entry.getKey());
+            if (entry.getValue() != null) {
+                sb.append(" '").append(entry.getValue().replace("'", "'\\''")).append("'");
+            }
+        }
+        return sb.toString();
+    }
+
+    public Class<?> getModuleClass() {
+        return moduleClass;
+    }
+
+    public Long getWorkflowRunAttemptId() {
+        return workflowRunAttemptId;
+    }
+
+    public Long getSampleId() {
+        return sampleId;
+    }
+
+    public Map<String, String> getArguments() {
+        return arguments;
+    }
+
+    public List<File> getInputs() {
+        return inputs;
+    }
+
+    public List<File> getOutputs() {
+        return outputs;
+    }
+
+    public Integer getNumberOfProcessors() {
+        return numberOfProcessors;
+    }
+
+    public void setNumberOfProcessors(Integer numberOfProcessors) {
+        this.numberOfProcessors = numberOfProcessors;
+    }
+
+    public Integer getMemory() {
+        return memory;
+    }
+
+    public void setMemory(Integer memory) {
+        this.memory = memory;
+    }
+
+    public boolean isIntermediate() {
+        return intermediate;
+    }
+
+    /**
+     * Intermediate stages have outputs that a downstream stage deletes, so on resume they only run again when a consumer does.
+     */
+    public void setIntermediate(boolean intermediate) {
+        this.intermediate = intermediate;
+    }
+
+    public String getSiteName() {
+        return siteName;
+    }
+
+    public void setSiteName(String siteName) {
+        this.siteName = siteName;
+    }
+
+}
@@ -0,0 +1,77 @@
+package edu.unc.mapseq.workflow.bergmips.alignment;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Builds per-sample {@link StagePlan}s on a bounded fork-join pool. Plans are collected in the order of the input list, not in completion
+ * order, and job numbers are only handed out afterwards by {@link StageGraphAssembler}, so the resulting graph is the same as a sequential
+ * build.
+ */
+public class ParallelPlanBuilder {
+
+    private static final Logger logger = LoggerFactory.getLogger(ParallelPlanBuilder.class);
+
+    private final int parallelism;
+
+    public ParallelPlanBuilder(int parallelism) {
+        super();
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    public <T> List<StagePlan> build(List<T> items, PlanFunction<T> function) throws Exception {
+        logger.debug("ENTERING build(List<T>, PlanFunction<T>)");
+
+        long start = System.currentTimeMillis();
+        List<StagePlan> ret = new ArrayList<StagePlan>();
+
+        if (parallelism == 1 || items.size() < 2) {
+            for (T item : items) {
+                StagePlan plan = function.apply(item);
+                if (plan != null) {
+                    ret.add(plan);
+                }
+            }
+        } else {
+            ForkJoinPool pool = new ForkJoinPool(Math.min(parallelism, items.size()));
+            try {
+                List<ForkJoinTask<StagePlan>> tasks = new ArrayList<ForkJoinTask<StagePlan>>();
+                for (T item : items) {
+                    tasks.add(pool.submit(() -> function.apply(item)));
+                }
+                for (ForkJoinTask<StagePlan> task : tasks) {
+                    StagePlan plan = task.get();
+                    if (plan != null) {
+                        ret.add(plan);
+                    }
+                }
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof Exception) {
+                    throw (Exception) e.getCause();
+                }
+                throw e;
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+
+        logger.info("built {} plans from {} items in {} ms", ret.size(), items.size(), System.currentTimeMillis() - start);
+        return ret;
+    }
+
+    /**
+     * Builds the plan for one item, or returns null when the item has nothing left to run.
+     */
+    public interface PlanFunction<T> {
+
+        StagePlan apply(T item) throws Exception;
+
+    }
+
+}
@@ -0,0 +1,70 @@
+package edu.unc.mapseq.workflow.bergmips.alignment;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends a sample to the site whose storage already holds most of its input bytes. Sites are configured as "pathPrefix=siteName" pairs. Each
+ * file counts toward the site with the longest matching prefix. Files that match no prefix are ignored. When no file matches, the default
+ * site is used.
+ */
+public class PathPrefixSiteSelector implements SiteSelector {
+
+    private static final Logger logger = LoggerFactory.getLogger(PathPrefixSiteSelector.class);
+
+    private final String defaultSiteName;
+
+    private final List<String> prefixes = new ArrayList<String>();
+
+    private final Map<String, String> sitesByPrefix;
+
+    public PathPrefixSiteSelector(String defaultSiteName, Map<String, String> sitesByPrefix) {
+        super();
+        this.defaultSiteName = defaultSiteName;
+        this.sitesByPrefix = sitesByPrefix;
+        this.prefixes.addAll(sitesByPrefix.keySet());
+        // longest prefix first, so a mount nested inside another wins
+        Collections.sort(this.prefixes, (a, b) -> Integer.compare(b.length(), a.length()));
+    }
+
+    @Override
+    public String selectSite(List<File> files) {
+        Map<String, Long> bytesBySite = new LinkedHashMap<String, Long>();
+        for (File f : files) {
+            String site = getSite(f);
+            if (site != null) {
+                Long bytes = bytesBySite.get(site);
+                bytesBySite.put(site, (bytes != null ? bytes : 0L) + f.length());
+            }
+        }
+
+        String ret = defaultSiteName;
+        long max = -1L;
+        for (Map.Entry<String, Long> entry : bytesBySite.entrySet()) {
+            if (entry.getValue() > max) {
+                max = entry.getValue();
+                ret = entry.getKey();
+            }
+        }
+        logger.debug("bytesBySite: {}, selected: {}", bytesBySite, ret);
+        return ret;
+    }
+
+    private String getSite(File f) {
+        String path = f.getAbsolutePath();
+        for (String prefix : prefixes) {
+            if (path.equals(prefix) || path.startsWith(prefix.endsWith("/") ? prefix : prefix + "/")) {
+                return sitesByPrefix.get(prefix);
+            }
+        }
+        return null;
+    }
+
+}
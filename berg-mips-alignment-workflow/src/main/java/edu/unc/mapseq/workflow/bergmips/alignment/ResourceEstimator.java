@@ -0,0 +1,130 @@
+package edu.unc.mapseq.workflow.bergmips.alignment;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.unc.mapseq.commons.bergmips.alignment.ReferenceCache;
+import edu.unc.mapseq.commons.bergmips.alignment.module.BWAMEMSortCLI;
+
+/**
+ * Sizes a job's processors, memory and thread arguments from the size of the sample's FASTQs. Each module has a linear curve, configured
+ * as "module=baseCpus:cpusPerGB:maxCpus:baseMemoryMB:memoryMBPerGB:maxMemoryMB". Modules without a curve keep their defaults. A
+ * BWAMEMSortCLI job never gets less than the BWA index plus a full samtools sort buffer per thread, whatever its curve says.
+ */
+public class ResourceEstimator {
+
+    private static final Logger logger = LoggerFactory.getLogger(ResourceEstimator.class);
+
+    private static final double BYTES_PER_GB = 1024D * 1024D * 1024D;
+
+    private static final long BYTES_PER_MB = 1024L * 1024L;
+
+    /**
+     * What bwa mem holds for a human build 37 index, used when the index can't be seen from the submit host.
+     */
+    public static final int DEFAULT_BWA_INDEX_MEMORY = 6144;
+
+    /**
+     * The per thread default of BWAMEMSortCLI's --sortMemory.
+     */
+    public static final int SORT_MEMORY_PER_THREAD = 768;
+
+    private final int bwaIndexMemory;
+
+    private final Map<String, ResourceCurve> curves = new HashMap<String, ResourceCurve>();
+
+    /**
+     * @param bwaIndexMemory
+     *            megabytes bwa mem needs for the index, see {@link #getBWAIndexMemory(List)}
+     */
+    public ResourceEstimator(Map<String, String> curves, int bwaIndexMemory) {
+        super();
+        this.bwaIndexMemory = bwaIndexMemory;
+        for (Map.Entry<String, String> entry : curves.entrySet()) {
+            String[] values = StringUtils.split(entry.getValue(), ':');
+            if (values.length != 6) {
+                logger.warn("ignoring malformed resource curve: {}={}", entry.getKey(), entry.getValue());
+                continue;
+            }
+            this.curves.put(entry.getKey(), new ResourceCurve(Integer.valueOf(values[0]), Double.valueOf(values[1]), Integer.valueOf(values[2]),
+                    Integer.valueOf(values[3]), Integer.valueOf(values[4]), Integer.valueOf(values[5])));
+        }
+    }
+
+    public void apply(ModuleInvocation invocation, long inputBytes) {
+        ResourceCurve curve = curves.get(invocation.getModuleClass().getSimpleName());
+        if (curve == null) {
+            return;
+        }
+        double inputGB = inputBytes / BYTES_PER_GB;
+        int numberOfProcessors = Math.min(curve.maxCpus, curve.baseCpus + (int) Math.ceil(curve.cpusPerGB * inputGB));
+        int memory = Math.min(curve.maxMemory, curve.baseMemory + (int) Math.ceil(curve.memoryPerGB * inputGB));
+        if (BWAMEMSortCLI.class.equals(invocation.getModuleClass())) {
+            memory = Math.max(memory, bwaIndexMemory + numberOfProcessors * SORT_MEMORY_PER_THREAD);
+        }
+        logger.debug("{}: inputGB = {}, numberOfProcessors = {}, memory = {}", invocation.getModuleClass().getSimpleName(), inputGB,
+                numberOfProcessors, memory);
+
+        invocation.setNumberOfProcessors(numberOfProcessors);
+        invocation.setMemory(memory);
+
+        if (BWAMEMSortCLI.class.equals(invocation.getModuleClass())) {
+            // samtools sort takes -m per thread and gets what the index leaves
+            int sortMemory = (memory - bwaIndexMemory) / numberOfProcessors;
+            invocation.addArgument(BWAMEMSortCLI.THREADS, String.valueOf(numberOfProcessors));
+            invocation.addArgument(BWAMEMSortCLI.SORTMEMORY, String.format("%dM", sortMemory));
+        }
+    }
+
+    /**
+     * bwa mem loads the whole index, so its size on disk is what the job needs before any reads are aligned.
+     */
+    public static int getBWAIndexMemory(List<File> referenceFiles) {
+        long bytes = 0L;
+        for (File f : referenceFiles) {
+            for (String extension : ReferenceCache.BWA_INDEX_EXTENSIONS) {
+                if (f.getName().endsWith(extension)) {
+                    bytes += f.length();
+                }
+            }
+        }
+        if (bytes == 0L) {
+            return DEFAULT_BWA_INDEX_MEMORY;
+        }
+        // a little headroom for bwa's own buffers
+        return (int) (bytes / BYTES_PER_MB) + 512;
+    }
+
+    static class ResourceCurve {
+
+        private final int baseCpus;
+
+        private final double cpusPerGB;
+
+        private final int maxCpus;
+
+        private final int baseMemory;
+
+        private final int memoryPerGB;
+
+        private final int maxMemory;
+
+        ResourceCurve(int baseCpus, double cpusPerGB, int maxCpus, int baseMemory, int memoryPerGB, int maxMemory) {
+            super();
+            this.baseCpus = baseCpus;
+            this.cpusPerGB = cpusPerGB;
+            this.maxCpus = maxCpus;
+            this.baseMemory = baseMemory;
+            this.memoryPerGB = memoryPerGB;
+            this.maxMemory = maxMemory;
+        }
+
+    }
+
+}
@@ -0,0 +1,178 @@
+package edu.unc.mapseq.workflow.bergmips.alignment;
+
+import java.io.File;
+import java.util.Map;
+
+/**
+ * What a sample's plan needs from the MaPSeq entities, read on the thread running createGraph() before the plans are built. The plan
+ * builder pool only sees these values, so no DAO call or lazy association is made off that thread. Preflight statistics found on the pool
+ * are handed back through {@link #setPreflightAttributes(Map)} and saved by the calling thread once the plans are built. The critical path
+ * of the sample's plan before and after its side branches are detached is handed back the same way, for the graph's report.
+ */
+public class SampleInput {
+
+    private final Long attemptId;
+
+    private final Long sampleId;
+
+    private final File workflowDirectory;
+
+    private String rootFileName;
+
+    private String barcode;
+
+    private Integer laneIndex;
+
+    private String flowcellName;
+
+    private String subjectName;
+
+    private File r1FastqFile;
+
+    private File r2FastqFile;
+
+    private String readCount;
+
+    private String preflightStamp;
+
+    private Map<String, String> preflightAttributes;
+
+    private String rejection;
+
+    private long criticalPathBefore = 0L;
+
+    private long criticalPathAfter = 0L;
+
+    public SampleInput(Long attemptId, Long sampleId, File workflowDirectory) {
+        super();
+        this.attemptId = attemptId;
+        this.sampleId = sampleId;
+        this.workflowDirectory = workflowDirectory;
+    }
+
+    public Long getAttemptId() {
+        return attemptId;
+    }
+
+    public Long getSampleId() {
+        return sampleId;
+    }
+
+    public File getWorkflowDirectory() {
+        return workflowDirectory;
+    }
+
+    public String getRootFileName() {
+        return rootFileName;
+    }
+
+    public void setRootFileName(String rootFileName) {
+        this.rootFileName = rootFileName;
+    }
+
+    public String getBarcode() {
+        return barcode;
+    }
+
+    public void setBarcode(String barcode) {
+        this.barcode = barcode;
+    }
+
+    public Integer getLaneIndex() {
+        return laneIndex;
+    }
+
+    public void setLaneIndex(Integer laneIndex) {
+        this.laneIndex = laneIndex;
+    }
+
+    public String getFlowcellName() {
+        return flowcellName;
+    }
+
+    public void setFlowcellName(String flowcellName) {
+        this.flowcellName = flowcellName;
+    }
+
+    public String getSubjectName() {
+        return subjectName;
+    }
+
+    public void setSubjectName(String subjectName) {
+        this.subjectName = subjectName;
+    }
+
+    public File getR1FastqFile() {
+        return r1FastqFile;
+    }
+
+    public void setR1FastqFile(File r1FastqFile) {
+        this.r1FastqFile = r1FastqFile;
+    }
+
+    public File getR2FastqFile() {
+        return r2FastqFile;
+    }
+
+    public void setR2FastqFile(File r2FastqFile) {
+        this.r2FastqFile = r2FastqFile;
+    }
+
+    /**
+     * The readCount attribute, or the count from a preflight run on this pass.
+     */
+    public String getReadCount() {
+        if (preflightAttributes != null && preflightAttributes.containsKey(FastqPreflight.READCOUNT)) {
+            return preflightAttributes.get(FastqPreflight.READCOUNT);
+        }
+        return readCount;
+    }
+
+    public void setReadCount(String readCount) {
+        this.readCount = readCount;
+    }
+
+    public String getPreflightStamp() {
+        return preflightStamp;
+    }
+
+    public void setPreflightStamp(String preflightStamp) {
+        this.preflightStamp = preflightStamp;
+    }
+
+    public Map<String, String> getPreflightAttributes() {
+        return preflightAttributes;
+    }
+
+    public void setPreflightAttributes(Map<String, String> preflightAttributes) {
+        this.preflightAttributes = preflightAttributes;
+    }
+
+    /**
+     * @return why preflight rejected the read pair, or null
+     */
+    public String getRejection() {
+        return rejection;
+    }
+
+    public void setRejection(String rejection) {
+        this.rejection = rejection;
+    }
+
+    public long getCriticalPathBefore() {
+        return criticalPathBefore;
+    }
+
+    public void setCriticalPathBefore(long criticalPathBefore) {
+        this.criticalPathBefore = criticalPathBefore;
+    }
+
+    public long getCriticalPathAfter() {
+        return criticalPathAfter;
+    }
+
+    public void setCriticalPathAfter(long criticalPathAfter) {
+        this.criticalPathAfter = criticalPathAfter;
+    }
+
+}
@@ -0,0 +1,18 @@
+package edu.unc.mapseq.workflow.bergmips.alignment;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * Chooses the Condor site that a sample's jobs run on.
+ */
+public interface SiteSelector {
+
+    /**
+     * @param files
+     *            the files the sample's jobs read
+     * @return the site name handed to every job of the sample
+     */
+    public String selectSite(List<File> files);
+
+}
@@ -0,0 +1,79 @@
+package edu.unc.mapseq.workflow.bergmips.alignment;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Fuses adjacent stages of a {@link StagePlan} into one job, driven by declarative rules such as
+ * "BWAMEMSortCLI&gt;SAMToolsIndexCLI,MergeBAMCLI&gt;SAMToolsIndexCLI". Each rule is a chain of module simple names. A chain matches when every
+ * stage after the first has the previous stage as its only parent, so the fused job can never start before its inputs exist. Other
+ * consumers of a fused stage wait for the whole composite job.
+ */
+public class StageFusionPass {
+
+    private static final Logger logger = LoggerFactory.getLogger(StageFusionPass.class);
+
+    private final List<List<String>> rules = new ArrayList<List<String>>();
+
+    public StageFusionPass(String fusionRules) {
+        super();
+        if (StringUtils.isNotEmpty(fusionRules)) {
+            for (String rule : StringUtils.split(fusionRules, ',')) {
+                List<String> chain = Arrays.asList(StringUtils.stripAll(StringUtils.split(rule, '>')));
+                if (chain.size() > 1) {
+                    rules.add(chain);
+                }
+            }
+        }
+    }
+
+    public void apply(StagePlan plan) {
+        for (List<String> chain : rules) {
+            for (String stage : new ArrayList<String>(plan.getStages().keySet())) {
+                if (plan.getStage(stage) == null || plan.getStage(stage).isFused()) {
+                    continue;
+                }
+                List<String> matched = match(plan, stage, chain);
+                if (matched == null) {
+                    continue;
+                }
+                for (String child : matched.subList(1, matched.size())) {
+                    plan.fuseStage(stage, child);
+                }
+                logger.debug("fused {} for sample: {}", matched, plan.getSampleId());
+            }
+        }
+    }
+
+    private List<String> match(StagePlan plan, String head, List<String> chain) {
+        if (!chain.get(0).equals(plan.getStage(head).getModuleClass().getSimpleName())) {
+            return null;
+        }
+        List<String> ret = new ArrayList<String>();
+        ret.add(head);
+        String current = head;
+        for (String module : chain.subList(1, chain.size())) {
+            String next = null;
+            for (String child : plan.getChildren(current)) {
+                Set<String> parents = plan.getParents(child);
+                if (parents.size() == 1 && module.equals(plan.getStage(child).getModuleClass().getSimpleName())) {
+                    next = child;
+                    break;
+                }
+            }
+            if (next == null) {
+                return null;
+            }
+            ret.add(next);
+            current = next;
+        }
+        return ret;
+    }
+
+}
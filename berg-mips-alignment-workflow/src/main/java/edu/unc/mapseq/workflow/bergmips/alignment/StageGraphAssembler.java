@@ -0,0 +1,164 @@
+package edu.unc.mapseq.workflow.bergmips.alignment;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.jgrapht.DirectedGraph;
+import org.renci.jlrm.condor.CondorJob;
+import org.renci.jlrm.condor.CondorJobBuilder;
+import org.renci.jlrm.condor.CondorJobEdge;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.unc.mapseq.commons.bergmips.alignment.module.ModuleBatchCLI;
+import edu.unc.mapseq.workflow.sequencing.SequencingWorkflowJobFactory;
+
+/**
+ * Turns per-sample {@link StagePlan}s into CondorJobs. With a batch size above one, plans of the same shape are grouped and each stage
+ * of a group becomes a single {@link ModuleBatchCLI} job that runs the stage for every sample in the group. Fused stages also become
+ * {@link ModuleBatchCLI} jobs, run with --failFast so a module is never started on the output of a failed one.
+ */
+public class StageGraphAssembler {
+
+    private static final Logger logger = LoggerFactory.getLogger(StageGraphAssembler.class);
+
+    private final int batchSize;
+
+    private int count = 0;
+
+    private final Map<String, Integer> jobCountBySite = new TreeMap<String, Integer>();
+
+    private final Map<CondorJob, List<ModuleInvocation>> invocationsByJob = new HashMap<CondorJob, List<ModuleInvocation>>();
+
+    public StageGraphAssembler(int batchSize) {
+        this(batchSize, 0);
+    }
+
+    /**
+     * @param jobCountOffset
+     *            the number after which job numbering starts, so graphs assembled separately can share one DAG
+     */
+    public StageGraphAssembler(int batchSize, int jobCountOffset) {
+        super();
+        this.batchSize = Math.max(1, batchSize);
+        this.count = jobCountOffset;
+    }
+
+    public void assemble(List<StagePlan> plans, DirectedGraph<CondorJob, CondorJobEdge> graph) throws IOException {
+        logger.debug("ENTERING assemble(List<StagePlan>, DirectedGraph<CondorJob, CondorJobEdge>)");
+
+        Map<String, List<StagePlan>> plansBySignature = new LinkedHashMap<String, List<StagePlan>>();
+        for (StagePlan plan : plans) {
+            String signature = plan.getSignature();
+            if (!plansBySignature.containsKey(signature)) {
+                plansBySignature.put(signature, new ArrayList<StagePlan>());
+            }
+            plansBySignature.get(signature).add(plan);
+        }
+
+        for (List<StagePlan> samePlans : plansBySignature.values()) {
+            for (int i = 0; i < samePlans.size(); i += batchSize) {
+                List<StagePlan> group = samePlans.subList(i, Math.min(i + batchSize, samePlans.size()));
+                assembleGroup(group, graph);
+            }
+        }
+
+        logger.info("jobs per site: {}", jobCountBySite);
+    }
+
+    private void assembleGroup(List<StagePlan> group, DirectedGraph<CondorJob, CondorJobEdge> graph) throws IOException {
+        StagePlan first = group.get(0);
+        Map<String, CondorJob> jobsByStage = new HashMap<String, CondorJob>();
+
+        for (String stage : first.getStages().keySet()) {
+            CondorJob job = null;
+            if (group.size() == 1 && !first.getStage(stage).isFused()) {
+                job = first.getStage(stage).createJobBuilder(++count).build();
+            } else {
+                job = createBatchJob(group, stage, ++count);
+            }
+            logger.info(job.toString());
+            List<ModuleInvocation> invocations = new ArrayList<ModuleInvocation>();
+            for (StagePlan plan : group) {
+                invocations.addAll(plan.getStage(stage).getChain());
+            }
+            invocationsByJob.put(job, invocations);
+            String siteName = String.valueOf(first.getStage(stage).getSiteName());
+            Integer siteCount = jobCountBySite.get(siteName);
+            jobCountBySite.put(siteName, siteCount != null ? siteCount + 1 : 1);
+            graph.addVertex(job);
+            for (String parent : first.getParents(stage)) {
+                graph.addEdge(jobsByStage.get(parent), job);
+            }
+            jobsByStage.put(stage, job);
+        }
+    }
+
+    private CondorJob createBatchJob(List<StagePlan> group, String stage, int jobCount) throws IOException {
+        ModuleInvocation invocation = group.get(0).getStage(stage);
+
+        File tmpDir = new File(group.get(0).getWorkflowDirectory(), "tmp");
+        if (!tmpDir.exists()) {
+            tmpDir.mkdirs();
+        }
+        File commandFile = new File(tmpDir, String.format("%s_%d.batch", invocation.getModuleClass().getSimpleName(), jobCount));
+
+        List<String> lines = new ArrayList<String>();
+        int numberOfProcessors = 1;
+        Integer memory = null;
+        for (StagePlan plan : group) {
+            ModuleInvocation sampleInvocation = plan.getStage(stage);
+            for (ModuleInvocation chainInvocation : sampleInvocation.getChain()) {
+                String label = String.valueOf(chainInvocation.getSampleId());
+                if (sampleInvocation.isFused()) {
+                    label = String.format("%s:%s", label, chainInvocation.getModuleClass().getSimpleName());
+                }
+                lines.add(String.format("%s\t%s", label, chainInvocation.toCommandLine()));
+            }
+            numberOfProcessors = Math.max(numberOfProcessors, sampleInvocation.getNumberOfProcessors());
+            if (sampleInvocation.getMemory() != null) {
+                memory = memory == null ? sampleInvocation.getMemory() : Math.max(memory, sampleInvocation.getMemory());
+            }
+        }
+        Files.write(commandFile.toPath(), lines, StandardCharsets.UTF_8);
+
+        CondorJobBuilder builder = SequencingWorkflowJobFactory
+                .createJob(jobCount, ModuleBatchCLI.class, invocation.getWorkflowRunAttemptId(), invocation.getSampleId())
+                .name(String.format("%s_%d", invocation.getModuleClass().getSimpleName(), jobCount)).siteName(invocation.getSiteName());
+        if (numberOfProcessors > 1) {
+            builder.numberOfProcessors(numberOfProcessors);
+        }
+        if (memory != null) {
+            builder.memory(memory);
+        }
+        builder.addArgument(ModuleBatchCLI.COMMANDFILE, commandFile.getAbsolutePath());
+        if (invocation.isFused()) {
+            builder.addArgument(ModuleBatchCLI.FAILFAST);
+        }
+        return builder.build();
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public Map<String, Integer> getJobCountBySite() {
+        return jobCountBySite;
+    }
+
+    /**
+     * @return every module call a job runs, in run order, across the samples of a batch and the members of a fused chain
+     */
+    public Map<CondorJob, List<ModuleInvocation>> getInvocationsByJob() {
+        return invocationsByJob;
+    }
+
+}
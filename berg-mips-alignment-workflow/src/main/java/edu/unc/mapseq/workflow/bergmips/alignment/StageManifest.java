@@ -0,0 +1,140 @@
+package edu.unc.mapseq.workflow.bergmips.alignment;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Properties;
+import java.util.zip.ZipFile;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Per-sample record of which stages were submitted with which inputs. A stage is considered complete when its recorded input fingerprint
+ * still matches and every expected output exists, was written after the stage was recorded and passes a cheap format check.
+ */
+public class StageManifest {
+
+    private static final Logger logger = LoggerFactory.getLogger(StageManifest.class);
+
+    private static final byte[] BGZF_EOF = new byte[] { 0x1f, (byte) 0x8b, 0x08, 0x04, 0x00, 0x00, 0x00, 0x00, 0x00, (byte) 0xff, 0x06, 0x00,
+            0x42, 0x43, 0x02, 0x00, 0x1b, 0x00, 0x03, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00 };
+
+    private final File manifestFile;
+
+    private final Properties properties = new Properties();
+
+    public StageManifest(File manifestFile) throws IOException {
+        super();
+        this.manifestFile = manifestFile;
+        if (manifestFile.exists()) {
+            try (InputStream is = new FileInputStream(manifestFile)) {
+                properties.load(is);
+            }
+        }
+    }
+
+    public boolean isComplete(String stage, ModuleInvocation invocation) throws IOException {
+        String fingerprint = properties.getProperty(String.format("%s.fingerprint", stage));
+        String recorded = properties.getProperty(String.format("%s.recorded", stage));
+        if (fingerprint == null || recorded == null || !fingerprint.equals(fingerprint(invocation))) {
+            return false;
+        }
+        for (File input : invocation.getInputs()) {
+            if (!input.exists()) {
+                // an input that can't be seen can't be compared either
+                logger.warn("{} is not visible, rerunning stage {}", input.getAbsolutePath(), stage);
+                return false;
+            }
+        }
+        long recordedTime = Long.valueOf(recorded);
+        for (File output : invocation.getOutputs()) {
+            if (!output.exists() || output.length() == 0 || output.lastModified() < recordedTime || !isValid(output)) {
+                logger.debug("{} is missing or invalid", output.getAbsolutePath());
+                return false;
+            }
+        }
+        return !invocation.getOutputs().isEmpty();
+    }
+
+    public void record(String stage, ModuleInvocation invocation) throws IOException {
+        properties.setProperty(String.format("%s.fingerprint", stage), fingerprint(invocation));
+        properties.setProperty(String.format("%s.recorded", stage), String.valueOf(System.currentTimeMillis()));
+    }
+
+    public void save() throws IOException {
+        File tmpFile = new File(manifestFile.getParentFile(), String.format(".%s.tmp", manifestFile.getName()));
+        try (OutputStream os = new FileOutputStream(tmpFile)) {
+            properties.store(os, null);
+        }
+        Files.move(tmpFile.toPath(), manifestFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private String fingerprint(ModuleInvocation invocation) throws IOException {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            md.update(invocation.getModuleClass().getName().getBytes(StandardCharsets.UTF_8));
+            for (Map.Entry<String, String> entry : invocation.getArguments().entrySet()) {
+                md.update(String.format("%s=%s;", entry.getKey(), entry.getValue()).getBytes(StandardCharsets.UTF_8));
+            }
+            for (File input : invocation.getInputs()) {
+                md.update(String.format("%s:%d:%d;", input.getAbsolutePath(), input.length(), input.lastModified()).getBytes(StandardCharsets.UTF_8));
+            }
+            StringBuilder sb = new StringBuilder();
+            for (byte b : md.digest()) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private boolean isValid(File output) throws IOException {
+        String name = output.getName();
+        if (name.endsWith(".bam")) {
+            if (output.length() < BGZF_EOF.length) {
+                return false;
+            }
+            byte[] tail = new byte[BGZF_EOF.length];
+            try (RandomAccessFile raf = new RandomAccessFile(output, "r")) {
+                raf.seek(output.length() - BGZF_EOF.length);
+                raf.readFully(tail);
+            }
+            return Arrays.equals(BGZF_EOF, tail);
+        }
+        if (name.endsWith(".bai")) {
+            if (output.length() < 4) {
+                return false;
+            }
+            byte[] magic = new byte[4];
+            try (RandomAccessFile raf = new RandomAccessFile(output, "r")) {
+                raf.readFully(magic);
+            }
+            return Arrays.equals(new byte[] { 'B', 'A', 'I', 1 }, magic);
+        }
+        if (name.endsWith(".zip")) {
+            try (ZipFile zipFile = new ZipFile(output)) {
+                return zipFile.size() > 0;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+        if (name.endsWith(".metrics")) {
+            return new String(Files.readAllBytes(output.toPath()), StandardCharsets.UTF_8).contains("## METRICS CLASS");
+        }
+        return true;
+    }
+
+}
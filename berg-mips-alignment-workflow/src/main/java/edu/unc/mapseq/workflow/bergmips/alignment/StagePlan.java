@@ -0,0 +1,112 @@
+package edu.unc.mapseq.workflow.bergmips.alignment;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The per-sample sub-DAG expressed as named stages and the dependencies between them, before any CondorJob is built.
+ */
+public class StagePlan {
+
+    private final Long sampleId;
+
+    private final File workflowDirectory;
+
+    private final Map<String, ModuleInvocation> stages = new LinkedHashMap<String, ModuleInvocation>();
+
+    private final Map<String, Set<String>> dependencies = new LinkedHashMap<String, Set<String>>();
+
+    public StagePlan(Long sampleId, File workflowDirectory) {
+        super();
+        this.sampleId = sampleId;
+        this.workflowDirectory = workflowDirectory;
+    }
+
+    public void addStage(String name, ModuleInvocation invocation) {
+        stages.put(name, invocation);
+        dependencies.put(name, new LinkedHashSet<String>());
+    }
+
+    public void addDependency(String parent, String child) {
+        if (!stages.containsKey(parent) || !stages.containsKey(child)) {
+            throw new IllegalArgumentException(String.format("unknown stage in %s -> %s", parent, child));
+        }
+        dependencies.get(child).add(parent);
+    }
+
+    public void removeDependency(String parent, String child) {
+        Set<String> parents = dependencies.get(child);
+        if (parents != null) {
+            parents.remove(parent);
+        }
+    }
+
+    public void removeStage(String name) {
+        stages.remove(name);
+        dependencies.remove(name);
+        for (Set<String> parents : dependencies.values()) {
+            parents.remove(name);
+        }
+    }
+
+    public ModuleInvocation getStage(String name) {
+        return stages.get(name);
+    }
+
+    public Set<String> getParents(String name) {
+        return dependencies.get(name);
+    }
+
+    public Set<String> getChildren(String name) {
+        Set<String> ret = new LinkedHashSet<String>();
+        for (Map.Entry<String, Set<String>> entry : dependencies.entrySet()) {
+            if (entry.getValue().contains(name)) {
+                ret.add(entry.getKey());
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Folds the child stage into its parent: the child's invocation is fused onto the parent's and the child's consumers depend on the
+     * parent instead.
+     */
+    public void fuseStage(String parent, String child) {
+        stages.get(parent).fuse(stages.get(child));
+        for (String grandchild : getChildren(child)) {
+            dependencies.get(grandchild).add(parent);
+        }
+        removeStage(child);
+    }
+
+    /**
+     * Plans with the same signature have the same shape and site, and can share batched jobs.
+     */
+    public String getSignature() {
+        StringBuilder sb = new StringBuilder();
+        for (String stage : stages.keySet()) {
+            sb.append(stage).append("@").append(stages.get(stage).getSiteName()).append(":");
+            for (ModuleInvocation invocation : stages.get(stage).getChain()) {
+                sb.append(invocation.getModuleClass().getSimpleName()).append(">");
+            }
+            sb.append(dependencies.get(stage)).append(";");
+        }
+        return sb.toString();
+    }
+
+    public Long getSampleId() {
+        return sampleId;
+    }
+
+    public File getWorkflowDirectory() {
+        return workflowDirectory;
+    }
+
+    public Map<String, ModuleInvocation> getStages() {
+        return stages;
+    }
+
+}
@@ -0,0 +1,276 @@
+package edu.unc.mapseq.workflow.bergmips.alignment;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.jgrapht.DirectedGraph;
+import org.jgrapht.Graph;
+import org.jgrapht.graph.DefaultDirectedGraph;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.renci.jlrm.condor.CondorJob;
+import org.renci.jlrm.condor.CondorJobBuilder;
+import org.renci.jlrm.condor.CondorJobEdge;
+
+import edu.unc.mapseq.dao.MaPSeqDAOException;
+import edu.unc.mapseq.dao.model.WorkflowRunAttempt;
+import edu.unc.mapseq.dao.model.WorkflowRunAttemptStatusType;
+import edu.unc.mapseq.workflow.WorkflowException;
+
+public class CombinedBergMIPsAlignmentWorkflowTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Builds two jobs numbered on from its offset, or fails, and remembers whether postRun() ran.
+     */
+    private static class Member extends BergMIPsAlignmentWorkflow {
+
+        private final boolean broken;
+
+        private int jobCount;
+
+        private boolean postRunCalled = false;
+
+        Member(long id, boolean broken) {
+            super();
+            this.broken = broken;
+            WorkflowRunAttempt attempt = new WorkflowRunAttempt();
+            attempt.setId(id);
+            setWorkflowRunAttempt(attempt);
+        }
+
+        @Override
+        public Graph<CondorJob, CondorJobEdge> createGraph() throws WorkflowException {
+            if (broken) {
+                throw new WorkflowException("no samples");
+            }
+            DirectedGraph<CondorJob, CondorJobEdge> graph = new DefaultDirectedGraph<CondorJob, CondorJobEdge>(CondorJobEdge.class);
+            jobCount = getJobCountOffset();
+            CondorJob fastQCJob = new CondorJobBuilder().name(String.format("FastQCCLI_%d", ++jobCount)).build();
+            CondorJob bwaJob = new CondorJobBuilder().name(String.format("BWAMEMSortCLI_%d", ++jobCount)).build();
+            graph.addVertex(fastQCJob);
+            graph.addVertex(bwaJob);
+            graph.addEdge(fastQCJob, bwaJob);
+            return graph;
+        }
+
+        @Override
+        public int getJobCount() {
+            return jobCount;
+        }
+
+        @Override
+        public void postRun() throws WorkflowException {
+            postRunCalled = true;
+        }
+
+    }
+
+    /**
+     * Keeps the saved statuses instead of writing them, and fails the saves of the given attempts a number of times.
+     */
+    private static class Combined extends CombinedBergMIPsAlignmentWorkflow {
+
+        private final Map<Long, WorkflowRunAttemptStatusType> saved = new LinkedHashMap<Long, WorkflowRunAttemptStatusType>();
+
+        private final Map<Long, Integer> failures = new LinkedHashMap<Long, Integer>();
+
+        Combined(List<BergMIPsAlignmentWorkflow> members) {
+            super(members);
+        }
+
+        @Override
+        protected void saveStatus(WorkflowRunAttempt attempt) throws MaPSeqDAOException {
+            Integer remaining = failures.get(attempt.getId());
+            if (remaining != null && remaining > 0) {
+                failures.put(attempt.getId(), remaining - 1);
+                throw new MaPSeqDAOException("database unavailable");
+            }
+            saved.put(attempt.getId(), attempt.getStatus());
+        }
+
+        @Override
+        protected void recordJobRunTimes(WorkflowRunAttempt attempt) {
+        }
+
+    }
+
+    private File writeRescueDAG(String... doneJobNames) throws Exception {
+        File submitDirectory = folder.newFolder("submit");
+        List<String> lines = new ArrayList<String>();
+        lines.add("# Rescue DAG file");
+        for (String name : doneJobNames) {
+            lines.add(String.format("DONE %s", name));
+        }
+        Files.write(new File(submitDirectory, "BergMIPsAlignment.dag.rescue001").toPath(), lines, StandardCharsets.UTF_8);
+        return submitDirectory;
+    }
+
+    @Test
+    public void testJudgedByRescueDAG() throws Exception {
+        Member first = new Member(1L, false);
+        Member second = new Member(2L, false);
+        Member third = new Member(3L, false);
+        Combined workflow = new Combined(Arrays.<BergMIPsAlignmentWorkflow> asList(first, second, third));
+        Graph<CondorJob, CondorJobEdge> graph = workflow.createGraph();
+        assertEquals(6, graph.vertexSet().size());
+        assertEquals(WorkflowRunAttemptStatusType.RUNNING, workflow.saved.get(2L));
+        assertEquals(WorkflowRunAttemptStatusType.RUNNING, workflow.saved.get(3L));
+        assertFalse(workflow.saved.containsKey(1L));
+
+        // the second attempt's BWAMEMSortCLI_4 failed, so DAGMan failed the DAG and with it the lead
+        WorkflowRunAttempt lead = first.getWorkflowRunAttempt();
+        lead.setSubmitDirectory(writeRescueDAG("FastQCCLI_1", "BWAMEMSortCLI_2", "FastQCCLI_3", "FastQCCLI_5", "BWAMEMSortCLI_6")
+                .getAbsolutePath());
+        lead.setStatus(WorkflowRunAttemptStatusType.FAILED);
+        workflow.saved.clear();
+        workflow.recordOutcome();
+
+        assertEquals(new HashSet<WorkflowRunAttempt>(Arrays.asList(lead, third.getWorkflowRunAttempt())), workflow.getCompleted());
+        assertEquals(WorkflowRunAttemptStatusType.DONE, workflow.saved.get(1L));
+        assertEquals(WorkflowRunAttemptStatusType.FAILED, workflow.saved.get(2L));
+        assertFalse(workflow.saved.containsKey(3L));
+
+        workflow.postRun();
+        assertTrue(first.postRunCalled);
+        assertFalse(second.postRunCalled);
+        assertTrue(third.postRunCalled);
+        assertEquals(WorkflowRunAttemptStatusType.DONE, workflow.saved.get(3L));
+        assertTrue(workflow.getUnsaved().isEmpty());
+    }
+
+    @Test
+    public void testNoRescueDAGFailsEveryMember() throws Exception {
+        Member first = new Member(1L, false);
+        Member second = new Member(2L, false);
+        Combined workflow = new Combined(Arrays.<BergMIPsAlignmentWorkflow> asList(first, second));
+        workflow.createGraph();
+
+        first.getWorkflowRunAttempt().setSubmitDirectory(folder.newFolder("submit").getAbsolutePath());
+        first.getWorkflowRunAttempt().setStatus(WorkflowRunAttemptStatusType.FAILED);
+        workflow.recordOutcome();
+
+        assertTrue(workflow.getCompleted().isEmpty());
+        assertEquals(WorkflowRunAttemptStatusType.FAILED, workflow.saved.get(2L));
+        workflow.postRun();
+        assertFalse(first.postRunCalled);
+        assertFalse(second.postRunCalled);
+    }
+
+    @Test
+    public void testLeadPromotion() throws Exception {
+        Member first = new Member(1L, true);
+        Member second = new Member(2L, false);
+        Member third = new Member(3L, false);
+        Combined workflow = new Combined(Arrays.<BergMIPsAlignmentWorkflow> asList(first, second, third));
+        Graph<CondorJob, CondorJobEdge> graph = workflow.createGraph();
+
+        assertSame(second.getWorkflowRunAttempt(), workflow.getWorkflowRunAttempt());
+        assertEquals(Arrays.asList(second, third), workflow.getMembers());
+        assertEquals(WorkflowRunAttemptStatusType.FAILED, workflow.saved.get(1L));
+        assertEquals(WorkflowRunAttemptStatusType.RUNNING, workflow.saved.get(3L));
+        // the new lead's jobs are numbered from the start
+        Set<String> jobNames = new HashSet<String>();
+        for (CondorJob job : graph.vertexSet()) {
+            jobNames.add(job.getName());
+            assertTrue(workflow.getOwner(job) != first.getWorkflowRunAttempt());
+        }
+        assertEquals(new HashSet<String>(Arrays.asList("FastQCCLI_1", "BWAMEMSortCLI_2", "FastQCCLI_3", "BWAMEMSortCLI_4")), jobNames);
+
+        second.getWorkflowRunAttempt().setStatus(WorkflowRunAttemptStatusType.DONE);
+        workflow.recordOutcome();
+        assertEquals(2, workflow.getCompleted().size());
+    }
+
+    @Test
+    public void testOnlyMemberFailsGraph() throws Exception {
+        Combined workflow = new Combined(Arrays.<BergMIPsAlignmentWorkflow> asList(new Member(1L, true)));
+        try {
+            workflow.createGraph();
+            fail("the only member's failure should be passed on");
+        } catch (WorkflowException e) {
+            assertEquals("no samples", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testUnsavedStatusSavedByPostRun() throws Exception {
+        Member first = new Member(1L, false);
+        Member second = new Member(2L, false);
+        Combined workflow = new Combined(Arrays.<BergMIPsAlignmentWorkflow> asList(first, second));
+        workflow.createGraph();
+
+        first.getWorkflowRunAttempt().setStatus(WorkflowRunAttemptStatusType.FAILED);
+        first.getWorkflowRunAttempt().setSubmitDirectory(writeRescueDAG("FastQCCLI_1", "BWAMEMSortCLI_2").getAbsolutePath());
+        workflow.failures.put(2L, 1);
+        workflow.recordOutcome();
+        assertEquals(new HashSet<WorkflowRunAttempt>(Arrays.asList(second.getWorkflowRunAttempt())), workflow.getUnsaved());
+
+        workflow.postRun();
+        assertEquals(WorkflowRunAttemptStatusType.FAILED, workflow.saved.get(2L));
+        assertTrue(workflow.getUnsaved().isEmpty());
+    }
+
+    @Test
+    public void testUnsavedStatusFailsPostRun() throws Exception {
+        Member first = new Member(1L, false);
+        Member second = new Member(2L, false);
+        Member third = new Member(3L, false);
+        Combined workflow = new Combined(Arrays.<BergMIPsAlignmentWorkflow> asList(first, second, third));
+        workflow.createGraph();
+
+        first.getWorkflowRunAttempt().setStatus(WorkflowRunAttemptStatusType.DONE);
+        workflow.recordOutcome();
+        workflow.failures.put(2L, 2);
+        try {
+            workflow.postRun();
+            fail("an unsaved status should fail postRun");
+        } catch (WorkflowException e) {
+            assertEquals("could not save the status of WorkflowRunAttempts [2]", e.getMessage());
+        }
+        // the other members are not held back by it
+        assertTrue(third.postRunCalled);
+        assertEquals(WorkflowRunAttemptStatusType.DONE, workflow.saved.get(3L));
+    }
+
+    @Test
+    public void testReadDoneJobNames() throws Exception {
+        File submitDirectory = folder.newFolder("submit");
+        Files.write(new File(submitDirectory, "BergMIPsAlignment.dag.rescue001").toPath(),
+                Arrays.asList("# Rescue DAG file", "DONE FastQCCLI_1"), StandardCharsets.UTF_8);
+        Files.write(new File(submitDirectory, "BergMIPsAlignment.dag.rescue002").toPath(),
+                Arrays.asList("# Rescue DAG file", "# Nodes premarked DONE: 2", "DONE FastQCCLI_1", "DONE FastQCCLI_2", "",
+                        "# Nodes that failed: 1", "# BWAMEMSortCLI_3,<ENDLIST>"),
+                StandardCharsets.UTF_8);
+        Files.write(new File(submitDirectory, "BergMIPsAlignment.dag").toPath(), Arrays.asList("JOB FastQCCLI_1 FastQCCLI_1.sub"),
+                StandardCharsets.UTF_8);
+
+        Set<String> doneJobNames = CombinedBergMIPsAlignmentWorkflow.readDoneJobNames(submitDirectory.getAbsolutePath());
+        assertEquals(2, doneJobNames.size());
+        assertTrue(doneJobNames.contains("FastQCCLI_2"));
+    }
+
+    @Test
+    public void testNoRescueDAG() throws Exception {
+        assertTrue(CombinedBergMIPsAlignmentWorkflow.readDoneJobNames(folder.newFolder("empty").getAbsolutePath()).isEmpty());
+        assertTrue(CombinedBergMIPsAlignmentWorkflow.readDoneJobNames(null).isEmpty());
+    }
+
+}
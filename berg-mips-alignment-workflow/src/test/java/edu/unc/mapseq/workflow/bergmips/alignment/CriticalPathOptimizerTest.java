@@ -0,0 +1,135 @@
+package edu.unc.mapseq.workflow.bergmips.alignment;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jgrapht.DirectedGraph;
+import org.jgrapht.graph.DefaultDirectedGraph;
+import org.junit.Test;
+import org.renci.jlrm.condor.CondorJob;
+import org.renci.jlrm.condor.CondorJobEdge;
+
+import edu.unc.mapseq.commons.bergmips.alignment.module.BWAMEMSortCLI;
+import edu.unc.mapseq.commons.bergmips.alignment.module.MergeBAMCLI;
+import edu.unc.mapseq.module.sequencing.fastqc.FastQCCLI;
+import edu.unc.mapseq.module.sequencing.samtools.SAMToolsIndexCLI;
+
+public class CriticalPathOptimizerTest {
+
+    private final CriticalPathOptimizer optimizer = new CriticalPathOptimizer(
+            JobGraphUtil.parseKeyValueList("FastQCCLI=5,BWAMEMSortCLI=40,SAMToolsIndexCLI=2"), "FastQCCLI");
+
+    private StagePlan createPlan(Long sampleId) {
+        File workflowDirectory = new File(System.getProperty("java.io.tmpdir"), String.valueOf(sampleId));
+        File r1 = new File(workflowDirectory, "r1.fastq.gz");
+        File r2 = new File(workflowDirectory, "r2.fastq.gz");
+        File bam = new File(workflowDirectory, "mem.rg.bam");
+
+        StagePlan plan = new StagePlan(sampleId, workflowDirectory);
+
+        ModuleInvocation fastqcR1 = new ModuleInvocation(FastQCCLI.class, 1L, sampleId);
+        fastqcR1.addArgument(FastQCCLI.INPUT, r1.getAbsolutePath()).addInput(r1).addOutput(new File(workflowDirectory, "r1.fastqc.zip"));
+        plan.addStage("fastqcR1", fastqcR1);
+
+        ModuleInvocation fastqcR2 = new ModuleInvocation(FastQCCLI.class, 1L, sampleId);
+        fastqcR2.addArgument(FastQCCLI.INPUT, r2.getAbsolutePath()).addInput(r2).addOutput(new File(workflowDirectory, "r2.fastqc.zip"));
+        plan.addStage("fastqcR2", fastqcR2);
+
+        ModuleInvocation align = new ModuleInvocation(BWAMEMSortCLI.class, 1L, sampleId);
+        align.addArgument(BWAMEMSortCLI.FASTQ1, r1.getAbsolutePath()).addArgument(BWAMEMSortCLI.FASTQ2, r2.getAbsolutePath())
+                .addArgument(BWAMEMSortCLI.OUTPUT, bam.getAbsolutePath()).addInput(r1).addInput(r2).addOutput(bam);
+        plan.addStage("align", align);
+        plan.addDependency("fastqcR1", "align");
+        plan.addDependency("fastqcR2", "align");
+
+        ModuleInvocation index = new ModuleInvocation(SAMToolsIndexCLI.class, 1L, sampleId);
+        index.addArgument(SAMToolsIndexCLI.INPUT, bam.getAbsolutePath()).addOutput(new File(workflowDirectory, "mem.rg.bai"));
+        plan.addStage("index", index);
+        plan.addDependency("align", "index");
+        return plan;
+    }
+
+    private StageGraphAssembler assemble(List<StagePlan> plans, int batchSize, DirectedGraph<CondorJob, CondorJobEdge> graph)
+            throws Exception {
+        StageGraphAssembler ret = new StageGraphAssembler(batchSize);
+        ret.assemble(plans, graph);
+        return ret;
+    }
+
+    @Test
+    public void testDetachFastQC() throws Exception {
+        List<StagePlan> plans = new ArrayList<StagePlan>();
+        plans.add(createPlan(1L));
+        assertEquals(47L, optimizer.getCriticalPathLength(plans.get(0)));
+
+        optimizer.detachSideBranches(plans.get(0));
+        assertTrue(plans.get(0).getParents("align").isEmpty());
+        assertTrue(plans.get(0).getParents("index").contains("align"));
+        assertEquals(42L, optimizer.getCriticalPathLength(plans.get(0)));
+
+        DirectedGraph<CondorJob, CondorJobEdge> graph = new DefaultDirectedGraph<CondorJob, CondorJobEdge>(CondorJobEdge.class);
+        StageGraphAssembler assembler = assemble(plans, 1, graph);
+        assertEquals(42L, optimizer.getCriticalPathLength(graph, assembler.getInvocationsByJob()));
+        assertEquals(4, graph.vertexSet().size());
+        assertEquals(1, graph.edgeSet().size());
+    }
+
+    @Test
+    public void testKeepReadOutput() {
+        StagePlan plan = createPlan(1L);
+        // a downstream stage that reads the QC report through a list argument
+        ModuleInvocation merge = new ModuleInvocation(MergeBAMCLI.class, 1L, 1L);
+        merge.addArgument(MergeBAMCLI.INPUTS, String.format("%s,%s", new File(plan.getWorkflowDirectory(), "mem.rg.bam").getAbsolutePath(),
+                new File(plan.getWorkflowDirectory(), "r1.fastqc.zip").getAbsolutePath()));
+        plan.addStage("merge", merge);
+        plan.addDependency("index", "merge");
+
+        optimizer.detachSideBranches(plan);
+        assertEquals(1, plan.getParents("align").size());
+        assertTrue(plan.getParents("align").contains("fastqcR1"));
+    }
+
+    @Test
+    public void testDetachKeepsUpstream() {
+        StagePlan plan = createPlan(1L);
+        // QC between the alignment and the index: the index still needs the alignment once QC is detached
+        ModuleInvocation qc = new ModuleInvocation(FastQCCLI.class, 1L, 1L);
+        qc.addOutput(new File(plan.getWorkflowDirectory(), "bam.fastqc.zip"));
+        plan.addStage("bamQC", qc);
+        plan.removeDependency("align", "index");
+        plan.addDependency("align", "bamQC");
+        plan.addDependency("bamQC", "index");
+
+        optimizer.detachSideBranches(plan);
+        assertTrue(plan.getParents("index").contains("align"));
+        assertTrue(plan.getChildren("bamQC").isEmpty());
+    }
+
+    @Test
+    public void testFusedAndBatched() throws Exception {
+        List<StagePlan> plans = new ArrayList<StagePlan>();
+        StageFusionPass stageFusionPass = new StageFusionPass("BWAMEMSortCLI>SAMToolsIndexCLI");
+        for (long sampleId = 1; sampleId <= 4; sampleId++) {
+            StagePlan plan = createPlan(sampleId);
+            optimizer.detachSideBranches(plan);
+            stageFusionPass.apply(plan);
+            plans.add(plan);
+        }
+
+        // the fused align+index costs both modules
+        assertEquals(42L, optimizer.getCriticalPathLength(plans.get(0)));
+
+        DirectedGraph<CondorJob, CondorJobEdge> graph = new DefaultDirectedGraph<CondorJob, CondorJobEdge>(CondorJobEdge.class);
+        StageGraphAssembler assembler = assemble(plans, 2, graph);
+        // two batches of fastqcR1, fastqcR2 and the fused align+index
+        assertEquals(6, graph.vertexSet().size());
+        assertTrue(graph.edgeSet().isEmpty());
+        // a batch runs the align+index of both its samples one after the other
+        assertEquals(84L, optimizer.getCriticalPathLength(graph, assembler.getInvocationsByJob()));
+    }
+
+}
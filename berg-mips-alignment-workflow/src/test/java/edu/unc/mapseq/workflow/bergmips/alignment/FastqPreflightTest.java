@@ -0,0 +1,99 @@
+package edu.unc.mapseq.workflow.bergmips.alignment;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FastqPreflightTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File write(String name, String content) throws IOException {
+        File ret = new File(folder.getRoot(), name);
+        try (OutputStream os = new GZIPOutputStream(new FileOutputStream(ret))) {
+            os.write(content.getBytes(StandardCharsets.US_ASCII));
+        }
+        return ret;
+    }
+
+    private String records(String suffix, String... names) {
+        StringBuilder sb = new StringBuilder();
+        for (String name : names) {
+            sb.append(String.format("@%s%s%nACGTA%n+%nIIIII%n", name, suffix));
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void testValidPair() throws Exception {
+        File r1 = write("r1.fastq.gz", records("/1", "a", "b") + "@c 1:N:0:ACGT\nACG\n+\nIII\n");
+        File r2 = write("r2.fastq.gz", records("/2", "a", "b") + "@c 2:N:0:ACGT\nACGTACG\n+\nIIIIIII\n");
+
+        FastqPreflight preflight = new FastqPreflight();
+        assertTrue(preflight.getError(), preflight.inspect(r1, r2));
+        Map<String, String> attributes = preflight.getAttributes();
+        assertEquals("3", attributes.get(FastqPreflight.READCOUNT));
+        assertEquals("30", attributes.get(FastqPreflight.BASECOUNT));
+        assertEquals("3", attributes.get(FastqPreflight.READLENGTHMIN));
+        assertEquals("7", attributes.get(FastqPreflight.READLENGTHMAX));
+        assertEquals("5.0", attributes.get(FastqPreflight.READLENGTHMEAN));
+    }
+
+    @Test
+    public void testTruncatedRecord() throws Exception {
+        File r1 = write("r1.fastq.gz", records("/1", "a", "b"));
+        File r2 = write("r2.fastq.gz", records("/2", "a") + "@b/2\nACGTA\n");
+
+        FastqPreflight preflight = new FastqPreflight();
+        assertFalse(preflight.inspect(r1, r2));
+        assertTrue(preflight.getError(), preflight.getError().contains("r2.fastq.gz ends mid-record"));
+    }
+
+    @Test
+    public void testTruncatedGzip() throws Exception {
+        File r1 = write("r1.fastq.gz", records("/1", "a", "b", "c", "d"));
+        File r2 = write("r2.fastq.gz", records("/2", "a", "b", "c", "d"));
+        byte[] bytes = Files.readAllBytes(r2.toPath());
+        Files.write(r2.toPath(), Arrays.copyOf(bytes, bytes.length - 10));
+
+        FastqPreflight preflight = new FastqPreflight();
+        assertFalse(preflight.inspect(r1, r2));
+        assertTrue(preflight.getError(), preflight.getError().startsWith("truncated or corrupt gzip"));
+    }
+
+    @Test
+    public void testMismatchedNames() throws Exception {
+        File r1 = write("r1.fastq.gz", records("/1", "a", "b", "c"));
+        File r2 = write("r2.fastq.gz", records("/2", "a", "c", "b"));
+
+        FastqPreflight preflight = new FastqPreflight();
+        assertFalse(preflight.inspect(r1, r2));
+        assertEquals("read names out of sync at record 2: b != c", preflight.getError());
+    }
+
+    @Test
+    public void testCountMismatch() throws Exception {
+        File r1 = write("r1.fastq.gz", records("/1", "a", "b", "c"));
+        File r2 = write("r2.fastq.gz", records("/2", "a", "b"));
+
+        FastqPreflight preflight = new FastqPreflight();
+        assertFalse(preflight.inspect(r1, r2));
+        assertEquals("record counts differ: r2.fastq.gz ended after 2 records", preflight.getError());
+    }
+
+}
@@ -0,0 +1,175 @@
+package edu.unc.mapseq.workflow.bergmips.alignment;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.GZIPOutputStream;
+
+import org.jgrapht.DirectedGraph;
+import org.jgrapht.graph.DefaultDirectedGraph;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.renci.jlrm.condor.CondorJob;
+import org.renci.jlrm.condor.CondorJobEdge;
+
+import edu.unc.mapseq.module.sequencing.fastqc.FastQCCLI;
+import edu.unc.mapseq.module.sequencing.samtools.SAMToolsIndexCLI;
+
+public class ParallelPlanBuilderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private StagePlan createPlan(Long sampleId) throws Exception {
+        // uneven work so parallel plans finish out of order
+        Thread.sleep(ThreadLocalRandom.current().nextInt(20));
+        if (sampleId % 7 == 0) {
+            return null;
+        }
+        StagePlan plan = new StagePlan(sampleId, new File(System.getProperty("java.io.tmpdir"), String.valueOf(sampleId)));
+        ModuleInvocation fastqc = new ModuleInvocation(FastQCCLI.class, 1L, sampleId);
+        fastqc.addArgument(FastQCCLI.INPUT, String.format("/tmp/%d.r1.fastq.gz", sampleId));
+        plan.addStage("fastqc", fastqc);
+        ModuleInvocation index = new ModuleInvocation(SAMToolsIndexCLI.class, 1L, sampleId);
+        index.addArgument(SAMToolsIndexCLI.INPUT, String.format("/tmp/%d.bam", sampleId));
+        plan.addStage("index", index);
+        plan.addDependency("fastqc", "index");
+        return plan;
+    }
+
+    private Set<String> describe(DirectedGraph<CondorJob, CondorJobEdge> graph) {
+        Set<String> ret = new TreeSet<String>();
+        for (CondorJob job : graph.vertexSet()) {
+            ret.add(job.toString());
+        }
+        for (CondorJobEdge edge : graph.edgeSet()) {
+            ret.add(String.format("%s -> %s", graph.getEdgeSource(edge).getName(), graph.getEdgeTarget(edge).getName()));
+        }
+        return ret;
+    }
+
+    @Test
+    public void testParallelMatchesSequential() throws Exception {
+        List<Long> sampleIds = new ArrayList<Long>();
+        for (long i = 1; i <= 48; i++) {
+            sampleIds.add(i);
+        }
+
+        List<StagePlan> sequentialPlans = new ParallelPlanBuilder(1).build(sampleIds, this::createPlan);
+        List<StagePlan> parallelPlans = new ParallelPlanBuilder(8).build(sampleIds, this::createPlan);
+
+        assertEquals(sequentialPlans.size(), parallelPlans.size());
+        for (int i = 0; i < sequentialPlans.size(); i++) {
+            assertEquals(sequentialPlans.get(i).getSampleId(), parallelPlans.get(i).getSampleId());
+            for (String stage : sequentialPlans.get(i).getStages().keySet()) {
+                assertEquals(sequentialPlans.get(i).getStage(stage).toCommandLine(), parallelPlans.get(i).getStage(stage).toCommandLine());
+            }
+        }
+
+        DirectedGraph<CondorJob, CondorJobEdge> sequentialGraph = new DefaultDirectedGraph<CondorJob, CondorJobEdge>(CondorJobEdge.class);
+        new StageGraphAssembler(1).assemble(sequentialPlans, sequentialGraph);
+        DirectedGraph<CondorJob, CondorJobEdge> parallelGraph = new DefaultDirectedGraph<CondorJob, CondorJobEdge>(CondorJobEdge.class);
+        new StageGraphAssembler(1).assemble(parallelPlans, parallelGraph);
+
+        assertEquals(sequentialGraph.vertexSet().size(), parallelGraph.vertexSet().size());
+        assertEquals(describe(sequentialGraph), describe(parallelGraph));
+    }
+
+    private void writeFastq(File fastq, long sampleId, int mate) throws IOException {
+        try (Writer writer = new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(fastq)), StandardCharsets.US_ASCII)) {
+            for (int i = 0; i < sampleId; i++) {
+                // the mates of sample 5 fall out of step, so its preflight rejects it
+                String name = sampleId == 5 && mate == 2 ? String.format("read%d", i + 1) : String.format("read%d", i);
+                writer.write(String.format("@%s/%d%nACGTACGTAC%n+%nIIIIIIIIII%n", name, mate));
+            }
+        }
+    }
+
+    private List<SampleInput> createSampleInputs() throws IOException {
+        List<SampleInput> ret = new ArrayList<SampleInput>();
+        for (long sampleId = 1; sampleId <= 12; sampleId++) {
+            File sampleDirectory = new File(folder.getRoot(), String.format("sample%d", sampleId));
+            sampleDirectory.mkdirs();
+            File r1 = new File(sampleDirectory, "r1.fastq.gz");
+            File r2 = new File(sampleDirectory, "r2.fastq.gz");
+            if (!r1.exists()) {
+                writeFastq(r1, sampleId, 1);
+                writeFastq(r2, sampleId, 2);
+            }
+            SampleInput sampleInput = new SampleInput(1L, sampleId, sampleDirectory);
+            sampleInput.setRootFileName("run1");
+            sampleInput.setBarcode(String.format("BC%d", sampleId));
+            sampleInput.setLaneIndex(1);
+            sampleInput.setFlowcellName("FC1");
+            sampleInput.setSubjectName(String.format("subject%d", sampleId));
+            sampleInput.setR1FastqFile(r1);
+            sampleInput.setR2FastqFile(r2);
+            ret.add(sampleInput);
+        }
+        return ret;
+    }
+
+    /**
+     * The workflow has no WorkflowBeanService here, so any DAO access from buildSamplePlan would fail on the pool.
+     */
+    @Test
+    public void testWorkflowPlansMatchSequential() throws Exception {
+        File referenceSequence = folder.newFile("reference.fa");
+        Map<String, String> attributes = new HashMap<String, String>();
+        attributes.put("siteName", "Hatteras");
+        attributes.put("referenceSequence", referenceSequence.getAbsolutePath());
+        attributes.put("readGroupPlatform", "Illumina");
+        attributes.put("baitIntervalList", new File(folder.getRoot(), "baits.interval_list").getAbsolutePath());
+        attributes.put("targetIntervalList", new File(folder.getRoot(), "targets.interval_list").getAbsolutePath());
+        attributes.put("scatterReadCountThreshold", "6");
+        attributes.put("scatterChunks", "2");
+        attributes.put("scatterBytesPerRead", "90");
+        attributes.put("resume", "false");
+        attributes.put("preflight", "true");
+        attributes.put("hsMetricsEngine", "native");
+        attributes.put("moduleCostHints", "FastQCCLI=5,BWAMEMSortCLI=40,SAMToolsIndexCLI=2");
+        attributes.put("sideBranchModules", "FastQCCLI");
+        attributes.put("fusionRules", "BWAMEMSortCLI>SAMToolsIndexCLI");
+
+        BergMIPsAlignmentWorkflow workflow = new BergMIPsAlignmentWorkflow();
+        workflow.configure(attributes);
+
+        List<SampleInput> sequentialInputs = createSampleInputs();
+        List<StagePlan> sequentialPlans = new ParallelPlanBuilder(1).build(sequentialInputs, workflow::buildSamplePlan);
+        List<SampleInput> parallelInputs = createSampleInputs();
+        List<StagePlan> parallelPlans = new ParallelPlanBuilder(8).build(parallelInputs, workflow::buildSamplePlan);
+
+        assertEquals(11, sequentialPlans.size());
+        assertEquals(sequentialPlans.size(), parallelPlans.size());
+        for (int i = 0; i < sequentialInputs.size(); i++) {
+            assertEquals(sequentialInputs.get(i).getRejection(), parallelInputs.get(i).getRejection());
+            assertEquals(sequentialInputs.get(i).getPreflightAttributes(), parallelInputs.get(i).getPreflightAttributes());
+        }
+        assertNotNull(sequentialInputs.get(4).getRejection());
+        assertNull(sequentialInputs.get(4).getPreflightAttributes());
+        assertEquals("12", sequentialInputs.get(11).getPreflightAttributes().get(FastqPreflight.READCOUNT));
+
+        DirectedGraph<CondorJob, CondorJobEdge> sequentialGraph = new DefaultDirectedGraph<CondorJob, CondorJobEdge>(CondorJobEdge.class);
+        new StageGraphAssembler(2).assemble(sequentialPlans, sequentialGraph);
+        DirectedGraph<CondorJob, CondorJobEdge> parallelGraph = new DefaultDirectedGraph<CondorJob, CondorJobEdge>(CondorJobEdge.class);
+        new StageGraphAssembler(2).assemble(parallelPlans, parallelGraph);
+
+        assertEquals(describe(sequentialGraph), describe(parallelGraph));
+    }
+
+}
@@ -0,0 +1,51 @@
+package edu.unc.mapseq.workflow.bergmips.alignment;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class PathPrefixSiteSelectorTest {
+
+    private File createFile(File dir, String name, int size) throws IOException {
+        dir.mkdirs();
+        File ret = new File(dir, name);
+        Files.write(ret.toPath(), new byte[size]);
+        ret.deleteOnExit();
+        return ret;
+    }
+
+    @Test
+    public void testSelectSite() throws IOException {
+        File root = Files.createTempDirectory("site").toFile();
+        File scratch = new File(root, "scratch");
+        File nested = new File(scratch, "nested");
+        File projects = new File(root, "projects");
+
+        Map<String, String> sitesByPrefix = new HashMap<String, String>();
+        sitesByPrefix.put(scratch.getAbsolutePath(), "Kure");
+        sitesByPrefix.put(nested.getAbsolutePath() + "/", "Dogwood");
+        sitesByPrefix.put(projects.getAbsolutePath(), "Hatteras");
+        SiteSelector selector = new PathPrefixSiteSelector("Default", sitesByPrefix);
+
+        File r1 = createFile(scratch, "r1.fastq.gz", 100);
+        File r2 = createFile(scratch, "r2.fastq.gz", 100);
+        File reference = createFile(projects, "ref.fa", 150);
+        assertEquals("Kure", selector.selectSite(Arrays.asList(r1, r2, reference)));
+
+        File nestedR1 = createFile(nested, "r1.fastq.gz", 100);
+        File nestedR2 = createFile(nested, "r2.fastq.gz", 100);
+        assertEquals("Dogwood", selector.selectSite(Arrays.asList(nestedR1, nestedR2, reference)));
+
+        // a sibling directory sharing the prefix string is not under the prefix
+        File sibling = createFile(new File(root, "scratch2"), "r1.fastq.gz", 100);
+        assertEquals("Default", selector.selectSite(Arrays.asList(sibling)));
+    }
+
+}
@@ -0,0 +1,45 @@
+package edu.unc.mapseq.workflow.bergmips.alignment;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.util.Collections;
+
+import org.junit.Test;
+
+import edu.unc.mapseq.commons.bergmips.alignment.module.BWAMEMSortCLI;
+
+public class ResourceEstimatorTest {
+
+    private static final long GB = 1024L * 1024L * 1024L;
+
+    private final ResourceEstimator resourceEstimator = new ResourceEstimator(
+            JobGraphUtil.parseKeyValueList("BWAMEMSortCLI=4:1:8:9216:1024:20480"), 6144);
+
+    @Test
+    public void testSmallLibrary() {
+        ModuleInvocation invocation = new ModuleInvocation(BWAMEMSortCLI.class, 1L, 1L);
+        resourceEstimator.apply(invocation, GB / 10);
+        assertEquals(Integer.valueOf(5), invocation.getNumberOfProcessors());
+        assertEquals("5", invocation.getArgument(BWAMEMSortCLI.THREADS));
+        // the index plus a full sort buffer per thread, above the curve's base
+        assertEquals(Integer.valueOf(6144 + 5 * 768), invocation.getMemory());
+        assertEquals("768M", invocation.getArgument(BWAMEMSortCLI.SORTMEMORY));
+    }
+
+    @Test
+    public void testLargeLibrary() {
+        ModuleInvocation invocation = new ModuleInvocation(BWAMEMSortCLI.class, 1L, 1L);
+        resourceEstimator.apply(invocation, 20 * GB);
+        assertEquals(Integer.valueOf(8), invocation.getNumberOfProcessors());
+        assertEquals(Integer.valueOf(20480), invocation.getMemory());
+        assertEquals(String.format("%dM", (20480 - 6144) / 8), invocation.getArgument(BWAMEMSortCLI.SORTMEMORY));
+    }
+
+    @Test
+    public void testIndexNotVisible() {
+        assertEquals(ResourceEstimator.DEFAULT_BWA_INDEX_MEMORY,
+                ResourceEstimator.getBWAIndexMemory(Collections.singletonList(new File("/does/not/exist.fa"))));
+    }
+
+}
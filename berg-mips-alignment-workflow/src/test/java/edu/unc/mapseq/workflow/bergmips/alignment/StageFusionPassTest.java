@@ -0,0 +1,55 @@
+package edu.unc.mapseq.workflow.bergmips.alignment;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.junit.Test;
+
+import edu.unc.mapseq.commons.bergmips.alignment.module.BWAMEMSortCLI;
+import edu.unc.mapseq.module.sequencing.fastqc.FastQCCLI;
+import edu.unc.mapseq.module.sequencing.picard2.PicardCollectHsMetricsCLI;
+import edu.unc.mapseq.module.sequencing.samtools.SAMToolsIndexCLI;
+
+public class StageFusionPassTest {
+
+    private StagePlan createPlan() {
+        StagePlan plan = new StagePlan(1L, new File(System.getProperty("java.io.tmpdir")));
+        plan.addStage("fastqc", new ModuleInvocation(FastQCCLI.class, 1L, 1L));
+        ModuleInvocation align = new ModuleInvocation(BWAMEMSortCLI.class, 1L, 1L);
+        align.setNumberOfProcessors(4);
+        plan.addStage("align", align);
+        plan.addStage("index", new ModuleInvocation(SAMToolsIndexCLI.class, 1L, 1L));
+        plan.addStage("hsMetrics", new ModuleInvocation(PicardCollectHsMetricsCLI.class, 1L, 1L));
+        plan.addDependency("fastqc", "align");
+        plan.addDependency("align", "index");
+        plan.addDependency("align", "hsMetrics");
+        return plan;
+    }
+
+    @Test
+    public void testFuseIndexIntoAlign() {
+        StagePlan plan = createPlan();
+        new StageFusionPass("BWAMEMSortCLI>SAMToolsIndexCLI").apply(plan);
+
+        assertNull(plan.getStage("index"));
+        ModuleInvocation align = plan.getStage("align");
+        assertTrue(align.isFused());
+        assertEquals(2, align.getChain().size());
+        assertEquals(SAMToolsIndexCLI.class, align.getChain().get(1).getModuleClass());
+        assertEquals(Integer.valueOf(4), align.getNumberOfProcessors());
+        assertTrue(plan.getParents("hsMetrics").contains("align"));
+    }
+
+    @Test
+    public void testNoMatch() {
+        StagePlan plan = createPlan();
+        new StageFusionPass("FastQCCLI>SAMToolsIndexCLI,BWAMEMSortCLI>FastQCCLI").apply(plan);
+        assertEquals(4, plan.getStages().size());
+        assertFalse(plan.getStage("align").isFused());
+    }
+
+}
@@ -0,0 +1,128 @@
+package edu.unc.mapseq.workflow.bergmips.alignment;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import edu.unc.mapseq.commons.bergmips.alignment.module.BWAMEMSortCLI;
+import edu.unc.mapseq.module.sequencing.samtools.SAMToolsIndexCLI;
+
+public class StageManifestTest {
+
+    private static final byte[] BGZF_EOF = new byte[] { 0x1f, (byte) 0x8b, 0x08, 0x04, 0x00, 0x00, 0x00, 0x00, 0x00, (byte) 0xff, 0x06, 0x00,
+            0x42, 0x43, 0x02, 0x00, 0x1b, 0x00, 0x03, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00 };
+
+    private static final long MINUTE = 60 * 1000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File write(String name, byte[]... parts) throws IOException {
+        File ret = new File(folder.getRoot(), name);
+        Files.write(ret.toPath(), new byte[0]);
+        for (byte[] part : parts) {
+            Files.write(ret.toPath(), part, StandardOpenOption.APPEND);
+        }
+        // written by the job, after the stage was recorded
+        ret.setLastModified(System.currentTimeMillis() + MINUTE);
+        return ret;
+    }
+
+    private ModuleInvocation createAlign(File fastq, File bam) {
+        ModuleInvocation ret = new ModuleInvocation(BWAMEMSortCLI.class, 1L, 1L);
+        ret.addArgument(BWAMEMSortCLI.FASTQ1, fastq.getAbsolutePath()).addArgument(BWAMEMSortCLI.OUTPUT, bam.getAbsolutePath())
+                .addInput(fastq).addOutput(bam);
+        return ret;
+    }
+
+    private StageManifest record(String stage, ModuleInvocation invocation) throws IOException {
+        File manifestFile = new File(folder.getRoot(), "sample.stages.manifest");
+        StageManifest manifest = new StageManifest(manifestFile);
+        manifest.record(stage, invocation);
+        manifest.save();
+        // read back, as the next attempt does
+        return new StageManifest(manifestFile);
+    }
+
+    @Test
+    public void testComplete() throws Exception {
+        File fastq = write("r1.fastq.gz", "@r1".getBytes(StandardCharsets.UTF_8));
+        File bam = new File(folder.getRoot(), "mem.rg.bam");
+        ModuleInvocation align = createAlign(fastq, bam);
+
+        StageManifest manifest = record("align", align);
+        assertFalse(manifest.isComplete("align", align));
+        assertFalse(manifest.isComplete("index", align));
+
+        write(bam.getName(), "BAM".getBytes(StandardCharsets.UTF_8), BGZF_EOF);
+        assertTrue(manifest.isComplete("align", align));
+    }
+
+    @Test
+    public void testFingerprintChange() throws Exception {
+        File fastq = write("r1.fastq.gz", "@r1".getBytes(StandardCharsets.UTF_8));
+        File bam = new File(folder.getRoot(), "mem.rg.bam");
+        StageManifest manifest = record("align", createAlign(fastq, bam));
+        write(bam.getName(), "BAM".getBytes(StandardCharsets.UTF_8), BGZF_EOF);
+
+        // another argument
+        ModuleInvocation align = createAlign(fastq, bam);
+        align.addArgument(BWAMEMSortCLI.THREADS, "8");
+        assertFalse(manifest.isComplete("align", align));
+
+        // the same input path rewritten
+        write(fastq.getName(), "@r1 rewritten".getBytes(StandardCharsets.UTF_8));
+        assertFalse(manifest.isComplete("align", createAlign(fastq, bam)));
+    }
+
+    @Test
+    public void testStaleOutput() throws Exception {
+        File fastq = write("r1.fastq.gz", "@r1".getBytes(StandardCharsets.UTF_8));
+        File bam = write("mem.rg.bam", "BAM".getBytes(StandardCharsets.UTF_8), BGZF_EOF);
+        ModuleInvocation align = createAlign(fastq, bam);
+        StageManifest manifest = record("align", align);
+
+        // left over from before the stage was recorded
+        bam.setLastModified(System.currentTimeMillis() - MINUTE);
+        assertFalse(manifest.isComplete("align", align));
+    }
+
+    @Test
+    public void testTruncatedOutputs() throws Exception {
+        File fastq = write("r1.fastq.gz", "@r1".getBytes(StandardCharsets.UTF_8));
+        File bam = new File(folder.getRoot(), "mem.rg.bam");
+        ModuleInvocation align = createAlign(fastq, bam);
+        File bai = new File(folder.getRoot(), "mem.rg.bai");
+        ModuleInvocation index = new ModuleInvocation(SAMToolsIndexCLI.class, 1L, 1L);
+        index.addArgument(SAMToolsIndexCLI.INPUT, bam.getAbsolutePath()).addOutput(bai);
+
+        File manifestFile = new File(folder.getRoot(), "sample.stages.manifest");
+        StageManifest manifest = new StageManifest(manifestFile);
+        manifest.record("align", align);
+        manifest.record("index", index);
+        manifest.save();
+        manifest = new StageManifest(manifestFile);
+
+        // cut short before the BGZF end of file block
+        write(bam.getName(), "BAM".getBytes(StandardCharsets.UTF_8), Arrays.copyOf(BGZF_EOF, BGZF_EOF.length - 4));
+        assertFalse(manifest.isComplete("align", align));
+        write(bam.getName(), "BAM".getBytes(StandardCharsets.UTF_8), BGZF_EOF);
+        assertTrue(manifest.isComplete("align", align));
+
+        write(bai.getName(), "BA".getBytes(StandardCharsets.UTF_8));
+        assertFalse(manifest.isComplete("index", index));
+        write(bai.getName(), new byte[] { 'B', 'A', 'I', 1, 0, 0, 0, 0 });
+        assertTrue(manifest.isComplete("index", index));
+    }
+
+}